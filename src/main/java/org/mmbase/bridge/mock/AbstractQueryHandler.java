@@ -12,6 +12,8 @@ package org.mmbase.bridge.mock;
 
 import java.util.*;
 import org.mmbase.bridge.*;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.Casting;
 
 /**
 
@@ -31,11 +33,548 @@ abstract class AbstractQueryHandler implements QueryHandler  {
     protected Set<String> getNodeManagerAndDescendants(NodeManager nm) {
         Set<String> wantedNodeManagers = new HashSet<String>();
         wantedNodeManagers.add(nm.getName());
-        for (NodeManager descendant : nm.getDescendants()) {
-            wantedNodeManagers.add(descendant.getName());
+        if (nm instanceof MockNodeManager) {
+            wantedNodeManagers.addAll(((MockNodeManager) nm).getDescendantNames());
+        } else {
+            for (NodeManager descendant : nm.getDescendants()) {
+                wantedNodeManagers.add(descendant.getName());
+            }
         }
         return wantedNodeManagers;
     }
 
+    /**
+     * Returns the rows of the query which match its constraint. A row contains the {@link
+     * MockCloudContext.NodeDescription} for every step of the query.
+     *
+     * The constraint is {@link ConstraintMatcher#compile compiled} once. The parts of it which
+     * concern only one step are evaluated while collecting the candidates for that step, in one
+     * pass over the nodes of the cloud context. Queries with more than one step are then joined
+     * via hash tables on the 'snumber' and 'dnumber' fields of the relation steps, starting at the
+     * node step with the fewest candidates.
+     *
+     * The read lock of the cloud context is only held while the rows are collected, so writers
+     * are blocked for that part of the query only. Sorting and producing the records happens
+     * afterwards, on values which cannot change any more: the value maps of the nodes are replaced
+     * on every change, and values in {@linkplain MockCloudContext#setColumnar columns} are copied
+     * before the lock is released. So the result reflects the nodes as they were at one moment.
+     */
+    protected List<MockCloudContext.NodeDescription[]> getRows(Query query) {
+        List<Step> steps = query.getSteps();
+        int size = steps.size();
+        for (int i = 0; i < size; i++) {
+            if ((steps.get(i) instanceof RelationStep) != (i % 2 == 1)) {
+                throw new UnsupportedOperationException("The steps of " + steps + " do not alternate between node steps and relation steps");
+            }
+        }
+        if (size % 2 == 0) {
+            throw new UnsupportedOperationException("The last step of " + steps + " is a relation step");
+        }
+
+        List<List<Constraint>> stepConstraints = new ArrayList<List<Constraint>>();
+        for (int i = 0; i < size; i++) {
+            stepConstraints.add(new ArrayList<Constraint>());
+        }
+        List<Constraint> joinConstraints = new ArrayList<Constraint>();
+        splitConstraint(steps, query.getConstraint(), stepConstraints, joinConstraints);
+        ConstraintMatcher[] matchers = new ConstraintMatcher[size];
+        List<Set<String>> wantedNodeManagers = new ArrayList<Set<String>>();
+        for (int i = 0; i < size; i++) {
+            matchers[i] = ConstraintMatcher.compile(steps, stepConstraints.get(i));
+            // resolved before locking the nodes, because node managers have their own lock
+            wantedNodeManagers.add(getNodeManagerAndDescendants(cloud.getNodeManager(steps.get(i).getTableName())));
+            if (! stepConstraints.get(i).isEmpty()) {
+                for (String type : wantedNodeManagers.get(i)) {
+                    cloud.cloudContext.ensureUniqueIndices(type);
+                }
+            }
+        }
+
+        // queries can run simultaneously, but not while nodes or indices are changed
+        cloud.cloudContext.lock.readLock().lock();
+        try {
+            List<List<MockCloudContext.NodeDescription>> candidates = new ArrayList<List<MockCloudContext.NodeDescription>>();
+            for (int i = 0; i < size; i++) {
+                candidates.add(getCandidates(steps, i, wantedNodeManagers.get(i), stepConstraints.get(i), matchers[i]));
+            }
+
+            int start = 0;
+            for (int i = 2; i < size; i += 2) {
+                if (candidates.get(i).size() < candidates.get(start).size()) {
+                    start = i;
+                }
+            }
+            List<MockCloudContext.NodeDescription[]> rows = new ArrayList<MockCloudContext.NodeDescription[]>(candidates.get(start).size());
+            for (MockCloudContext.NodeDescription nd : candidates.get(start)) {
+                MockCloudContext.NodeDescription[] row = new MockCloudContext.NodeDescription[size];
+                row[start] = nd;
+                rows.add(row);
+            }
+            int first = start;
+            int last  = start;
+            while ((first > 0 || last < size - 1) && ! rows.isEmpty()) {
+                boolean forward = first == 0 ||
+                    (last < size - 1 && candidates.get(last + 2).size() <= candidates.get(first - 2).size());
+                if (forward) {
+                    rows = join(rows, (RelationStep) steps.get(last + 1), candidates.get(last + 1), last, candidates.get(last + 2), true);
+                    last += 2;
+                } else {
+                    rows = join(rows, (RelationStep) steps.get(first - 1), candidates.get(first - 1), first, candidates.get(first - 2), false);
+                    first -= 2;
+                }
+            }
+
+            if (! joinConstraints.isEmpty()) {
+                ConstraintMatcher matcher = ConstraintMatcher.compile(steps, joinConstraints);
+                List<MockCloudContext.NodeDescription[]> result = new ArrayList<MockCloudContext.NodeDescription[]>();
+                for (MockCloudContext.NodeDescription[] row : rows) {
+                    if (matcher.matches(row)) {
+                        result.add(row);
+                    }
+                }
+                rows = result;
+            }
+            return cloud.cloudContext.isColumnar() ? detach(rows) : rows;
+        } finally {
+            cloud.cloudContext.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the values of the nodes in the rows by copies. Values in {@linkplain ColumnStore
+     * columns} are views which are changed in place, so this must happen while holding the read
+     * lock. A node occurring in more than one row gets the same copy, so rows can still be compared
+     * by the identity of their node descriptions.
+     */
+    private static List<MockCloudContext.NodeDescription[]> detach(List<MockCloudContext.NodeDescription[]> rows) {
+        Map<MockCloudContext.NodeDescription, MockCloudContext.NodeDescription> copies = new IdentityHashMap<MockCloudContext.NodeDescription, MockCloudContext.NodeDescription>();
+        for (MockCloudContext.NodeDescription[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                MockCloudContext.NodeDescription copy = copies.get(row[i]);
+                if (copy == null) {
+                    copy = new MockCloudContext.NodeDescription(row[i].type, new HashMap<String, Object>(row[i].values), row[i].aliases);
+                    copies.put(row[i], copy);
+                }
+                row[i] = copy;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Sorts the rows according to the sort orders of the query, and applies its offset and max
+     * number. Rows which are equal according to the sort orders stay in their original order.
+     *
+     * If only the first few rows of the sorted result are needed, the whole list is not sorted,
+     * but the best rows are collected in a bounded heap (top-K). Both ways only compute the sort
+     * keys of every row once.
+     *
+     * @param rows The rows, e.g. as returned by {@link #getRows}, already made distinct if needed.
+     * @return The requested rows, or a view on the given list.
+     */
+    protected List<MockCloudContext.NodeDescription[]> order(List<MockCloudContext.NodeDescription[]> rows, Query query) {
+        int offset = query.getOffset();
+        int max = query.getMaxNumber();
+        int size = rows.size();
+        int end = max < 0 || ((long) offset + max) > size ? size : offset + max;
+        if (offset >= end) {
+            return Collections.emptyList();
+        }
+        List<SortOrder> sortOrders = query.getSortOrders();
+        if (sortOrders.isEmpty()) {
+            return rows.subList(offset, end);
+        }
+        RowComparator comparator = new RowComparator(query.getSteps(), sortOrders);
+        List<SortedRow> sorted;
+        if (end <= size / TOP_K_FACTOR) {
+            // the heap has the worst of the best rows at its head
+            PriorityQueue<SortedRow> heap = new PriorityQueue<SortedRow>(end + 1, Collections.reverseOrder(comparator));
+            for (int i = 0; i < size; i++) {
+                MockCloudContext.NodeDescription[] row = rows.get(i);
+                if (heap.size() < end) {
+                    heap.add(comparator.sortedRow(row, i));
+                } else {
+                    SortedRow sortedRow = comparator.sortedRow(row, i);
+                    if (comparator.compare(sortedRow, heap.peek()) < 0) {
+                        heap.poll();
+                        heap.add(sortedRow);
+                    }
+                }
+            }
+            sorted = new ArrayList<SortedRow>(heap);
+        } else {
+            sorted = new ArrayList<SortedRow>(size);
+            for (int i = 0; i < size; i++) {
+                sorted.add(comparator.sortedRow(rows.get(i), i));
+            }
+        }
+        Collections.sort(sorted, comparator);
+        List<MockCloudContext.NodeDescription[]> result = new ArrayList<MockCloudContext.NodeDescription[]>(end - offset);
+        for (SortedRow sortedRow : sorted.subList(offset, end)) {
+            result.add(sortedRow.row);
+        }
+        return result;
+    }
+
+    /**
+     * If less than this part of the rows is needed, {@link #order} uses a heap in stead of sorting all rows.
+     */
+    private static final int TOP_K_FACTOR = 4;
+
+    /**
+     * A row together with its (normalized) values for the sort orders.
+     */
+    private static class SortedRow {
+        final MockCloudContext.NodeDescription[] row;
+        final Object[] keys;
+        final int position;
+        SortedRow(MockCloudContext.NodeDescription[] row, Object[] keys, int position) {
+            this.row = row;
+            this.keys = keys;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Compares rows on their values for a list of sort orders. Like {@link
+     * org.mmbase.bridge.util.Queries#compare(Object, Object, SortOrder)}, <code>null</code> values
+     * come last when sorting ascending.
+     */
+    private static class RowComparator implements Comparator<SortedRow> {
+        private final int[] steps;
+        private final String[] fields;
+        private final int[] types;
+        private final boolean[] caseSensitive;
+        private final boolean[] descending;
+        private final int[] parts;
+
+        RowComparator(List<Step> querySteps, List<SortOrder> sortOrders) {
+            int size = sortOrders.size();
+            steps = new int[size];
+            fields = new String[size];
+            types = new int[size];
+            caseSensitive = new boolean[size];
+            descending = new boolean[size];
+            parts = new int[size];
+            for (int i = 0; i < size; i++) {
+                SortOrder sortOrder = sortOrders.get(i);
+                StepField field = sortOrder.getField();
+                steps[i] = ConstraintMatcher.indexOf(querySteps, field.getStep());
+                fields[i] = field.getFieldName();
+                types[i] = field.getType();
+                caseSensitive[i] = sortOrder.isCaseSensitive();
+                descending[i] = sortOrder.getDirection() == SortOrder.ORDER_DESCENDING;
+                parts[i] = sortOrder instanceof DateSortOrder ? ((DateSortOrder) sortOrder).getPart() : -1;
+            }
+        }
+
+        SortedRow sortedRow(MockCloudContext.NodeDescription[] row, int position) {
+            Object[] keys = new Object[fields.length];
+            for (int i = 0; i < keys.length; i++) {
+                Object value = row[steps[i]].values.get(fields[i]);
+                if (value != null) {
+                    if (parts[i] != -1) {
+                        keys[i] = Long.valueOf(ConstraintMatcher.getDatePart(Casting.toDate(value), parts[i]));
+                    } else {
+                        // an unknown type is guessed from the first value
+                        types[i] = ConstraintMatcher.getType(types[i], value);
+                        keys[i] = ConstraintMatcher.normalize(types[i], value, caseSensitive[i]);
+                    }
+                }
+            }
+            return new SortedRow(row, keys, position);
+        }
+
+        @Override
+        public int compare(SortedRow row1, SortedRow row2) {
+            for (int i = 0; i < fields.length; i++) {
+                Object key1 = row1.keys[i];
+                Object key2 = row2.keys[i];
+                int result;
+                if (key1 == null) {
+                    result = key2 == null ? 0 : 1;
+                } else if (key2 == null) {
+                    result = -1;
+                } else {
+                    result = ((Comparable<Object>) key1).compareTo(key2);
+                }
+                if (result != 0) {
+                    return descending[i] ? -result : result;
+                }
+            }
+            return row1.position - row2.position;
+        }
+    }
+
+    /**
+     * Splits the constraint in the parts which only concern one step, and the rest.
+     */
+    private static void splitConstraint(List<Step> steps, Constraint constraint, List<List<Constraint>> stepConstraints, List<Constraint> joinConstraints) {
+        if (constraint == null) {
+            return;
+        }
+        if (constraint instanceof CompositeConstraint && ! constraint.isInverse() &&
+            ((CompositeConstraint) constraint).getLogicalOperator() == CompositeConstraint.LOGICAL_AND) {
+            for (Constraint child : ((CompositeConstraint) constraint).getChilds()) {
+                splitConstraint(steps, child, stepConstraints, joinConstraints);
+            }
+        } else {
+            Set<Integer> referenced = new HashSet<Integer>();
+            if (ConstraintMatcher.getSteps(steps, constraint, referenced) && referenced.size() == 1) {
+                stepConstraints.get(referenced.iterator().next()).add(constraint);
+            } else {
+                joinConstraints.add(constraint);
+            }
+        }
+    }
+
+    /**
+     * Collects the node descriptions which can be used for the given step. They must be of the
+     * right type, the right role (for relation steps), be one of the nodes of the step (if it
+     * has nodes) and match the given matcher.
+     *
+     * Only the nodes of the wanted types are visited, using the {@linkplain
+     * MockCloudContext#getNodeNumbers index on type}, or even fewer if one of the constraints on
+     * the step can be {@linkplain #lookup looked up}.
+     */
+    private List<MockCloudContext.NodeDescription> getCandidates(List<Step> steps, int index, Set<String> wantedNodeManagers,
+                                                                 List<Constraint> constraints, ConstraintMatcher matcher) {
+        MockCloudContext cloudContext = cloud.cloudContext;
+        Step step = steps.get(index);
+        Integer role = step instanceof RelationStep ? ((RelationStep) step).getRole() : null;
+        List<MockCloudContext.NodeDescription> result = new ArrayList<MockCloudContext.NodeDescription>();
+        MockCloudContext.NodeDescription[] row = new MockCloudContext.NodeDescription[steps.size()];
+        Collection<Integer> numbers = step.getNodes();
+        if (numbers == null || numbers.isEmpty()) {
+            numbers = lookup(wantedNodeManagers, constraints);
+        }
+        if (numbers != null) {
+            for (Integer number : numbers) {
+                MockCloudContext.NodeDescription nd = cloudContext.nodes.get(number);
+                if (nd != null && wantedNodeManagers.contains(nd.type)) {
+                    addCandidate(result, nd, role, row, index, matcher);
+                }
+            }
+        } else {
+            for (String type : wantedNodeManagers) {
+                for (Integer number : cloudContext.getNodeNumbers(type)) {
+                    addCandidate(result, cloudContext.nodes.get(number), role, row, index, matcher);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Uses the constraints on 'number' and the {@linkplain MockCloudContext#createIndex field
+     * indices} of the cloud context to find the numbers of the nodes which possibly match the
+     * given constraints. If more than one constraint can be looked up, the one with the smallest
+     * result is used. The result may contain nodes which do not match, or are of other types.
+     *
+     * @return A collection of node numbers, or <code>null</code> if no index could be used.
+     */
+    private Collection<Integer> lookup(Set<String> types, List<Constraint> constraints) {
+        Collection<Integer> best = null;
+        for (Constraint constraint : constraints) {
+            if (constraint.isInverse() || constraint instanceof FieldValueDateConstraint) {
+                continue;
+            }
+            Collection<Integer> found = null;
+            if (constraint instanceof FieldConstraint && ((FieldConstraint) constraint).getField().getFieldName().equals("number")) {
+                if (constraint instanceof FieldValueConstraint) {
+                    FieldValueConstraint fvc = (FieldValueConstraint) constraint;
+                    if (fvc.getOperator() == FieldCompareConstraint.EQUAL) {
+                        found = Collections.singleton(getNumber(fvc.getValue()));
+                    }
+                } else if (constraint instanceof FieldValueInConstraint) {
+                    found = new ArrayList<Integer>();
+                    for (Object value : ((FieldValueInConstraint) constraint).getValues()) {
+                        found.add(getNumber(value));
+                    }
+                }
+            } else if (constraint instanceof FieldValueConstraint) {
+                FieldValueConstraint fvc = (FieldValueConstraint) constraint;
+                switch(fvc.getOperator()) {
+                case FieldCompareConstraint.EQUAL:
+                    found = lookup(types, fvc, Collections.singleton(fvc.getValue()));
+                    break;
+                case FieldCompareConstraint.LESS:
+                    found = lookup(types, fvc, null, false, fvc.getValue(), false);
+                    break;
+                case FieldCompareConstraint.LESS_EQUAL:
+                    found = lookup(types, fvc, null, false, fvc.getValue(), true);
+                    break;
+                case FieldCompareConstraint.GREATER:
+                    found = lookup(types, fvc, fvc.getValue(), false, null, false);
+                    break;
+                case FieldCompareConstraint.GREATER_EQUAL:
+                    found = lookup(types, fvc, fvc.getValue(), true, null, false);
+                    break;
+                }
+            } else if (constraint instanceof FieldValueBetweenConstraint) {
+                FieldValueBetweenConstraint between = (FieldValueBetweenConstraint) constraint;
+                found = lookup(types, between, between.getLowerLimit(), true, between.getUpperLimit(), true);
+            } else if (constraint instanceof FieldValueInConstraint) {
+                FieldValueInConstraint in = (FieldValueInConstraint) constraint;
+                found = lookup(types, in, in.getValues());
+            }
+            if (found != null && (best == null || found.size() < best.size())) {
+                best = found;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Looks up nodes with one of the given values, if all types have an index on the field.
+     */
+    private Collection<Integer> lookup(Set<String> types, FieldConstraint constraint, Collection<Object> values) {
+        Collection<Integer> result = new ArrayList<Integer>();
+        for (String type : types) {
+            FieldIndex fieldIndex = cloud.cloudContext.getFieldIndex(type, constraint.getField().getFieldName());
+            if (fieldIndex == null) {
+                return null;
+            }
+            for (Object value : values) {
+                result.addAll(fieldIndex.get(value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Looks up nodes with a value in the given range, if all types have a sorted index on the field.
+     */
+    private Collection<Integer> lookup(Set<String> types, FieldConstraint constraint, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        Collection<Integer> result = new ArrayList<Integer>();
+        for (String type : types) {
+            FieldIndex fieldIndex = cloud.cloudContext.getFieldIndex(type, constraint.getField().getFieldName());
+            if (fieldIndex == null || ! fieldIndex.sorted) {
+                return null;
+            }
+            if (constraint.isCaseSensitive() && (fieldIndex.fieldType == Field.TYPE_STRING || fieldIndex.fieldType == Field.TYPE_XML)) {
+                // the index is ordered on the lowercased strings
+                return null;
+            }
+            result.addAll(fieldIndex.getRange(lower, lowerInclusive, upper, upperInclusive));
+        }
+        return result;
+    }
+
+    private static void addCandidate(List<MockCloudContext.NodeDescription> result, MockCloudContext.NodeDescription nd, Integer role,
+                                     MockCloudContext.NodeDescription[] row, int index, ConstraintMatcher matcher) {
+        if (role != null && role.intValue() != getNumber(nd.values.get("rnumber"))) {
+            return;
+        }
+        row[index] = nd;
+        if (matcher.matches(row)) {
+            result.add(nd);
+        }
+    }
+
+    /**
+     * Extends the given (partial) rows over a relation step to the node step on the other side of it.
+     *
+     * @param rows      The rows, which are filled at least for the step at index <code>from</code>
+     * @param step      The relation step to join over
+     * @param relations The candidate relation nodes for that step
+     * @param from      The index of the node step from which is joined
+     * @param targets   The candidate nodes for the node step on the other side of the relation step
+     * @param forward   Whether the relation step follows the <code>from</code> step (or precedes it)
+     */
+    private List<MockCloudContext.NodeDescription[]> join(List<MockCloudContext.NodeDescription[]> rows, RelationStep step, List<MockCloudContext.NodeDescription> relations,
+                                                         int from, List<MockCloudContext.NodeDescription> targets, boolean forward) {
+        int rel = forward ? from + 1 : from - 1;
+        int to  = forward ? from + 2 : from - 2;
+        Map<Integer, MockCloudContext.NodeDescription> targetMap = new HashMap<Integer, MockCloudContext.NodeDescription>(targets.size() * 2);
+        for (MockCloudContext.NodeDescription nd : targets) {
+            targetMap.put(getNumber(nd.values.get("number")), nd);
+        }
+        int directionality = step.getDirectionality();
+        // 'previous is source' is allowed unless only the source direction is requested, and vice versa
+        boolean previousIsSource      = directionality != RelationStep.DIRECTIONS_SOURCE;
+        boolean previousIsDestination = directionality != RelationStep.DIRECTIONS_DESTINATION;
+        Map<Integer, List<MockCloudContext.NodeDescription>> bySource = null;
+        Map<Integer, List<MockCloudContext.NodeDescription>> byDestination = null;
+        if (forward ? previousIsSource : previousIsDestination) {
+            bySource = hash(relations, "snumber");
+        }
+        if (forward ? previousIsDestination : previousIsSource) {
+            byDestination = hash(relations, "dnumber");
+        }
+
+        List<MockCloudContext.NodeDescription[]> result = new ArrayList<MockCloudContext.NodeDescription[]>();
+        for (MockCloudContext.NodeDescription[] row : rows) {
+            Integer number = getNumber(row[from].values.get("number"));
+            if (bySource != null) {
+                expand(result, row, bySource.get(number), "dnumber", targetMap, rel, to, false);
+            }
+            if (byDestination != null) {
+                // relations to the node itself were already found via the source
+                expand(result, row, byDestination.get(number), "snumber", targetMap, rel, to, bySource != null);
+            }
+        }
+        return result;
+    }
+
+    private static Map<Integer, List<MockCloudContext.NodeDescription>> hash(List<MockCloudContext.NodeDescription> relations, String field) {
+        Map<Integer, List<MockCloudContext.NodeDescription>> result = new HashMap<Integer, List<MockCloudContext.NodeDescription>>();
+        for (MockCloudContext.NodeDescription relation : relations) {
+            Integer key = getNumber(relation.values.get(field));
+            List<MockCloudContext.NodeDescription> bucket = result.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<MockCloudContext.NodeDescription>(2);
+                result.put(key, bucket);
+            }
+            bucket.add(relation);
+        }
+        return result;
+    }
+
+    private static void expand(List<MockCloudContext.NodeDescription[]> result, MockCloudContext.NodeDescription[] row,
+                               List<MockCloudContext.NodeDescription> relations, String otherField,
+                               Map<Integer, MockCloudContext.NodeDescription> targetMap, int rel, int to, boolean skipSelf) {
+        if (relations == null) {
+            return;
+        }
+        for (MockCloudContext.NodeDescription relation : relations) {
+            if (skipSelf && getNumber(relation.values.get("snumber")) == getNumber(relation.values.get("dnumber"))) {
+                continue;
+            }
+            MockCloudContext.NodeDescription other = targetMap.get(getNumber(relation.values.get(otherField)));
+            if (other != null) {
+                MockCloudContext.NodeDescription[] newRow = row.clone();
+                newRow[rel] = relation;
+                newRow[to]  = other;
+                result.add(newRow);
+            }
+        }
+    }
+
+    /**
+     * Node numbers are normally stored as Integers, but node fields may also contain Nodes.
+     */
+    protected static int getNumber(Object value) {
+        if (value instanceof Node) {
+            return ((Node) value).getNumber();
+        }
+        return Casting.toInt(value);
+    }
+
+    /**
+     * The key with which the value of the given field is stored in the records of a query result.
+     */
+    protected static String getKey(StepField sf) {
+        String key = sf.getAlias();
+        if (key == null) {
+            String prefix = sf.getStep().getAlias();
+            if (prefix == null) {
+                prefix = sf.getStep().getTableName();
+            }
+            key = prefix + "." + sf.getFieldName();
+        }
+        return key;
+    }
+
 
 }
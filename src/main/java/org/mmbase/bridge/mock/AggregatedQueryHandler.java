@@ -11,12 +11,16 @@ See http://www.MMBase.org/license
 package org.mmbase.bridge.mock;
 
 import java.util.*;
+import org.mmbase.bridge.Field;
 import org.mmbase.bridge.Query;
 import org.mmbase.storage.search.*;
+import org.mmbase.util.Casting;
 
 /**
- * Query-handler that deals with aggregated queries.  At the moment this is only partly implemented
- * (Only count queries with 1 step, and no constraint).
+ * Query-handler that deals with aggregated queries. All aggregation types of {@link
+ * AggregatedField} are supported, also combined, and grouped by one or more fields. The rows of
+ * the query are aggregated in one pass, with a hash table on the values of the 'group by' fields.
+ * The offset and max number of the query apply to the aggregated records.
  *
  * @author  Michiel Meeuwissen
  * @version $Id$
@@ -33,42 +37,284 @@ class AggregatedQueryHandler extends  AbstractQueryHandler  {
 
     @Override
     public List<Map<String, Object>> getRecords(Query query) {
-        if (query.getSteps().size() == 1 && query.getFields().size() == 1) {
-            StepField field = query.getFields().get(0);
-            if (field instanceof AggregatedField) {
-                AggregatedField af = (AggregatedField) field;
-                if (af.getAggregationType() == AggregatedField.AGGREGATION_TYPE_COUNT ||
-                    af.getAggregationType() == AggregatedField.AGGREGATION_TYPE_COUNT_DISTINCT // we count for one field so it is automaticly distinct
-                    ) {
-                    if (query.getConstraint() != null) {
-                        throw new UnsupportedOperationException("Query '" + query.toSql() + "' has a constraint, that is not yet supported");
-                    } else {
-                        String tableName = query.getSteps().get(0).getTableName();
-                        Set<String> wantedNodeManagers = getNodeManagerAndDescendants(cloud.getNodeManager(tableName));
-                        int count = 0;
-                        for (MockCloudContext.NodeDescription nd : cloud.cloudContext.nodes.values()) {
-                            //System.out.println("Checking " + nd);
-                            if (wantedNodeManagers.contains(nd.type)) {
-                                count++;
-                            }
-                        }
-                        Map<String, Object> result = new HashMap<String, Object>();
-                        String key = field.getAlias();
-                        if (key == null) key = field.getFieldName();
-                        result.put(key, count);
-                        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
-                        list.add(result);
-                        //System.out.println("Count " + result);
-                        return list;
-                    }
-                } else {
-                    throw new UnsupportedOperationException("Aggregation " + af.getAggregationType() + " is not supported");
-                }
-            } else {
+        List<StepField> fields = query.getFields();
+        List<Step> steps = query.getSteps();
+        int size = fields.size();
+        AggregatedField[] aggregatedFields = new AggregatedField[size];
+        int[] stepIndices = new int[size];
+        String[] keys = new String[size];
+        List<Integer> groupBy = new ArrayList<Integer>();
+        for (int i = 0; i < size; i++) {
+            StepField field = fields.get(i);
+            if (! (field instanceof AggregatedField)) {
                 throw new UnsupportedOperationException("Field should be AggregatedField, but is " + field.getClass()); // RuntimeException ?
             }
-        } else {
-            throw new UnsupportedOperationException("Query '" + query.toSql() + "' has more than one field, which is not yet supported");
+            aggregatedFields[i] = (AggregatedField) field;
+            stepIndices[i] = ConstraintMatcher.indexOf(steps, field.getStep());
+            String key = field.getAlias();
+            if (key == null) key = field.getFieldName();
+            keys[i] = key;
+            if (aggregatedFields[i].getAggregationType() == AggregatedField.AGGREGATION_TYPE_GROUP_BY) {
+                groupBy.add(i);
+            }
+        }
+
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        if (size == 1 && groupBy.isEmpty() && isCountable(query, aggregatedFields[0])) {
+            // can be answered from the index on type alone
+            Step step = steps.get(0);
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put(keys[0], cloud.cloudContext.countNodes(getNodeManagerAndDescendants(cloud.getNodeManager(step.getTableName()))));
+            list.add(result);
+            return limit(list, query);
+        }
+
+        Map<List<Object>, Accumulator[]> groups = new LinkedHashMap<List<Object>, Accumulator[]>();
+        Accumulator[] accumulators = null;
+        if (groupBy.isEmpty()) {
+            // without grouping, there is always one result, also if there are no rows
+            accumulators = createAccumulators(aggregatedFields);
+            groups.put(Collections.emptyList(), accumulators);
+        }
+        Object[] groupValues = new Object[groupBy.size()];
+        for (MockCloudContext.NodeDescription[] row : getRows(query)) {
+            if (! groupBy.isEmpty()) {
+                for (int g = 0; g < groupValues.length; g++) {
+                    int i = groupBy.get(g);
+                    groupValues[g] = row[stepIndices[i]].values.get(aggregatedFields[i].getFieldName());
+                }
+                List<Object> groupKey = Arrays.asList(groupValues);
+                accumulators = groups.get(groupKey);
+                if (accumulators == null) {
+                    accumulators = createAccumulators(aggregatedFields);
+                    groups.put(groupKey, accumulators);
+                    groupValues = new Object[groupValues.length];
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                accumulators[i].add(row[stepIndices[i]].values.get(aggregatedFields[i].getFieldName()));
+            }
+        }
+        for (Accumulator[] result : groups.values()) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            for (int i = 0; i < size; i++) {
+                record.put(keys[i], result[i].getResult());
+            }
+            list.add(record);
+        }
+        return limit(list, query);
+    }
+
+    /**
+     * Applies the offset and max number of the query to the aggregated records, like SQL does
+     * after grouping.
+     */
+    private static List<Map<String, Object>> limit(List<Map<String, Object>> records, Query query) {
+        int offset = query.getOffset();
+        int max = query.getMaxNumber();
+        int size = records.size();
+        int end = max < 0 || ((long) offset + max) > size ? size : offset + max;
+        if (offset >= end) {
+            return Collections.emptyList();
+        }
+        return records.subList(offset, end);
+    }
+
+    /**
+     * Whether the query is a count of all nodes of its one step.
+     */
+    private boolean isCountable(Query query, AggregatedField field) {
+        if (query.getSteps().size() != 1 || query.getConstraint() != null) {
+            return false;
+        }
+        Step step = query.getSteps().get(0);
+        if (step.getNodes() != null && ! step.getNodes().isEmpty()) {
+            return false;
+        }
+        int type = field.getAggregationType();
+        // 'number' is never null, and unique, so counting it distinctly is the same
+        return (type == AggregatedField.AGGREGATION_TYPE_COUNT || type == AggregatedField.AGGREGATION_TYPE_COUNT_DISTINCT) &&
+            field.getFieldName().equals("number");
+    }
+
+    private Accumulator[] createAccumulators(AggregatedField[] fields) {
+        Accumulator[] result = new Accumulator[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            result[i] = createAccumulator(fields[i]);
+        }
+        return result;
+    }
+
+    private Accumulator createAccumulator(AggregatedField field) {
+        int type = field.getType();
+        switch(field.getAggregationType()) {
+        case AggregatedField.AGGREGATION_TYPE_GROUP_BY:
+            return new GroupByAccumulator();
+        case AggregatedField.AGGREGATION_TYPE_COUNT:
+            return new CountAccumulator();
+        case AggregatedField.AGGREGATION_TYPE_COUNT_DISTINCT:
+            return new CountDistinctAccumulator(field);
+        case AggregatedField.AGGREGATION_TYPE_MIN:
+        case AggregatedField.AGGREGATION_TYPE_MAX: {
+            boolean max = field.getAggregationType() == AggregatedField.AGGREGATION_TYPE_MAX;
+            switch(type) {
+            case Field.TYPE_INTEGER:
+            case Field.TYPE_LONG:
+            case Field.TYPE_NODE:
+            case Field.TYPE_DATETIME:
+                return new LongAccumulator(type, max);
+            case Field.TYPE_FLOAT:
+            case Field.TYPE_DOUBLE:
+            case Field.TYPE_DECIMAL:
+                return new DoubleAccumulator(max);
+            default:
+                // also for fields of unknown type, which is then guessed from the first value
+                return new ComparableAccumulator(field, max);
+            }
+        }
+        default:
+            throw new UnsupportedOperationException("Aggregation " + field.getAggregationType() + " is not supported");
+        }
+    }
+
+    /**
+     * Aggregates the values of one field of the rows in one group.
+     */
+    private static abstract class Accumulator {
+        abstract void add(Object value);
+        abstract Object getResult();
+    }
+
+    private static class GroupByAccumulator extends Accumulator {
+        private Object value;
+        private boolean first = true;
+        @Override
+        void add(Object v) {
+            if (first) {
+                value = v;
+                first = false;
+            }
+        }
+        @Override
+        Object getResult() {
+            return value;
+        }
+    }
+
+    private static class CountAccumulator extends Accumulator {
+        private int count = 0;
+        @Override
+        void add(Object v) {
+            if (v != null) {
+                count++;
+            }
+        }
+        @Override
+        Object getResult() {
+            return count;
+        }
+    }
+
+    private static class CountDistinctAccumulator extends Accumulator {
+        private final Set<Object> values = new HashSet<Object>();
+        private final StepField field;
+        private int type = Field.TYPE_UNKNOWN;
+        CountDistinctAccumulator(StepField f) {
+            field = f;
+        }
+        @Override
+        void add(Object v) {
+            if (v != null) {
+                if (type == Field.TYPE_UNKNOWN) {
+                    type = ConstraintMatcher.getType(field, v);
+                }
+                values.add(ConstraintMatcher.normalize(type, v, true));
+            }
+        }
+        @Override
+        Object getResult() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Minimum or maximum of integral and date fields. The comparison happens on primitive longs,
+     * the original value of the winner is the result.
+     */
+    private static class LongAccumulator extends Accumulator {
+        private final boolean max;
+        private final boolean date;
+        private long best;
+        private Object result = null;
+        LongAccumulator(int type, boolean m) {
+            max = m;
+            date = type == Field.TYPE_DATETIME;
+        }
+        @Override
+        void add(Object v) {
+            if (v != null) {
+                long l = date ? Casting.toDate(v).getTime() : getNumber(v);
+                if (result == null || (max ? l > best : l < best)) {
+                    best = l;
+                    result = v;
+                }
+            }
+        }
+        @Override
+        Object getResult() {
+            return result;
+        }
+    }
+
+    private static class DoubleAccumulator extends Accumulator {
+        private final boolean max;
+        private double best;
+        private Object result = null;
+        DoubleAccumulator(boolean m) {
+            max = m;
+        }
+        @Override
+        void add(Object v) {
+            if (v != null) {
+                double d = Casting.toDouble(v);
+                if (result == null || (max ? d > best : d < best)) {
+                    best = d;
+                    result = v;
+                }
+            }
+        }
+        @Override
+        Object getResult() {
+            return result;
+        }
+    }
+
+    private static class ComparableAccumulator extends Accumulator {
+        private final boolean max;
+        private final StepField field;
+        private int type = Field.TYPE_UNKNOWN;
+        private Comparable<Object> best;
+        private Object result = null;
+        ComparableAccumulator(StepField f, boolean m) {
+            field = f;
+            max = m;
+        }
+        @Override
+        void add(Object v) {
+            if (v != null) {
+                if (type == Field.TYPE_UNKNOWN) {
+                    type = ConstraintMatcher.getType(field, v);
+                }
+                Comparable<Object> c = (Comparable<Object>) ConstraintMatcher.normalize(type, v, true);
+                if (result == null || (max ? c.compareTo(best) > 0 : c.compareTo(best) < 0)) {
+                    best = c;
+                    result = v;
+                }
+            }
+        }
+        @Override
+        Object getResult() {
+            return result;
         }
     }
 
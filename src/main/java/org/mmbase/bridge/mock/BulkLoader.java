@@ -0,0 +1,473 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.io.*;
+import java.util.*;
+import javax.xml.stream.*;
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.NodeManagerDescription;
+import org.mmbase.util.Casting;
+import org.mmbase.util.logging.*;
+
+/**
+ * Loads large numbers of nodes into a {@link MockCloudContext}, from maps, CSV or an MMBase XML
+ * export. The nodes are stored in batches (see {@link MockCloudContext#addNodes}), and the indices
+ * on field values are built once, in {@link #finish}. A batch is stored completely, or, e.g. if
+ * one of its aliases is in use already, not at all.
+ *
+ * A record may have an id in its 'number' field, which is not the number the node gets, but by
+ * which relations can refer to it. Records with an 'snumber' and a 'dnumber' are relations. Those
+ * refer to their source and destination by such an id, or else by alias or by node number, and to
+ * their role by name in 'rtype' (or by number in 'rnumber', the default being 'related'). They are
+ * stored after all other nodes, when {@link #finish} resolves these references. Aliases of a
+ * node are given in 'alias', as a collection or a comma separated string.
+ *
+ * No events are propagated for the loaded nodes.
+ *
+ * While loading, queries do not use the indices on the field values of the loaded types. So a
+ * bulk loader must always be ended, with {@link #finish}, or with {@link #close} if loading
+ * failed:
+ * <pre>
+ *   BulkLoader loader = new BulkLoader(cloudContext);
+ *   try {
+ *       loader.loadCsv("news", reader);
+ *       loader.finish();
+ *   } finally {
+ *       loader.close();
+ *   }
+ * </pre>
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+public class BulkLoader implements Closeable {
+
+    private static final Logger log = Logging.getLoggerInstance(BulkLoader.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    private static final Set<String> REFERENCES = new HashSet<String>(Arrays.asList("number", "alias", "snumber", "dnumber", "rtype"));
+
+    private final MockCloudContext cloudContext;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private final List<MockCloudContext.NodeDescription> batch = new ArrayList<MockCloudContext.NodeDescription>();
+    private final List<String> batchIds = new ArrayList<String>();
+    private final List<PendingRelation> relations = new ArrayList<PendingRelation>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final Set<String> types = new HashSet<String>();
+    private int count = 0;
+    private boolean closed = false;
+
+    public BulkLoader(MockCloudContext cloudContext) {
+        this.cloudContext = cloudContext;
+    }
+
+    /**
+     * The number of nodes stored at once (defaults to {@link #DEFAULT_BATCH_SIZE}).
+     */
+    public void setBatchSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        batchSize = size;
+    }
+
+    /**
+     * Adds one record for a node of the given type.
+     * @throws NotFoundException if there is no such node manager
+     */
+    public void add(String type, Map<String, ?> record) {
+        if (closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+        NodeManagerDescription description = cloudContext.nodeManagers.get(type);
+        if (description == null) {
+            throw new NotFoundException("No such node manager '" + type + "' in " + cloudContext);
+        }
+        Map<String, Object> values = new HashMap<String, Object>(record.size() + 2);
+        Object id = null;
+        Object alias = null;
+        String role = null;
+        for (Map.Entry<String, ?> entry : record.entrySet()) {
+            String key = entry.getKey();
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (key.equals("number")) {
+                id = value;
+            } else if (key.equals("alias")) {
+                alias = value;
+            } else if (key.equals("rtype")) {
+                role = Casting.toString(value);
+            } else {
+                values.put(key, value);
+            }
+        }
+        if (! values.containsKey("otype")) {
+            values.put("otype", description.oType);
+        }
+        MockCloudContext.NodeDescription nd = new MockCloudContext.NodeDescription(type, values);
+        if (alias instanceof Collection) {
+            for (Object a : (Collection<?>) alias) {
+                nd.aliases.add(Casting.toString(a));
+            }
+        } else if (alias != null) {
+            for (String a : Casting.toString(alias).split(",")) {
+                if (a.trim().length() > 0) {
+                    nd.aliases.add(a.trim());
+                }
+            }
+        }
+        String key = id == null ? null : Casting.toString(id);
+        if (values.containsKey("snumber") && values.containsKey("dnumber")) {
+            relations.add(new PendingRelation(key, nd, role));
+        } else {
+            batch.add(nd);
+            batchIds.add(key);
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Adds records for nodes of the given type.
+     * @return The number of records
+     */
+    public int load(String type, Iterator<? extends Map<String, ?>> records) {
+        int n = 0;
+        while (records.hasNext()) {
+            add(type, records.next());
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds records for nodes of the given type from CSV. The first line contains the names of
+     * the fields. Values may be quoted with double quotes. Empty values are left out. Values are
+     * converted to the types of their fields.
+     * @return The number of records
+     */
+    public int loadCsv(String type, Reader reader) throws IOException {
+        NodeManagerDescription description = cloudContext.nodeManagers.get(type);
+        if (description == null) {
+            throw new NotFoundException("No such node manager '" + type + "' in " + cloudContext);
+        }
+        CsvReader csv = new CsvReader(reader);
+        List<String> header = csv.readLine();
+        if (header == null) {
+            return 0;
+        }
+        int n = 0;
+        List<String> line;
+        while ((line = csv.readLine()) != null) {
+            if (line.size() == 1 && line.get(0).length() == 0) {
+                continue;
+            }
+            Map<String, Object> record = new HashMap<String, Object>(header.size() * 2);
+            for (int i = 0; i < line.size() && i < header.size(); i++) {
+                String value = line.get(i);
+                if (value.length() > 0) {
+                    String field = header.get(i);
+                    // ids and references are resolved later, so they are not converted
+                    boolean reference = REFERENCES.contains(field);
+                    record.put(field, reference ? value : convert(description, field, value));
+                }
+            }
+            add(type, record);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds the nodes of an XML export of MMBase applications. Its root element is named after the
+     * node manager, and contains a 'node' element per node, with 'number', 'alias', 'owner' and
+     * for relations 'snumber', 'dnumber' and 'rtype' attributes, and an element per field.
+     * @return The number of records
+     */
+    public int loadXml(InputStream in) throws IOException {
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                return loadXml(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException xse) {
+            throw new IOException(xse.getMessage(), xse);
+        }
+    }
+
+    private int loadXml(XMLStreamReader reader) throws XMLStreamException {
+        int n = 0;
+        int depth = 0;
+        String type = null;
+        NodeManagerDescription description = null;
+        Map<String, Object> record = null;
+        String field = null;
+        StringBuilder text = new StringBuilder();
+        while (reader.hasNext()) {
+            switch(reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                if (depth == 1) {
+                    type = reader.getLocalName();
+                    description = cloudContext.nodeManagers.get(type);
+                    if (description == null) {
+                        throw new NotFoundException("No such node manager '" + type + "' in " + cloudContext);
+                    }
+                } else if (depth == 2) {
+                    record = new HashMap<String, Object>();
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        String name = reader.getAttributeLocalName(i);
+                        if (name.equals("number") || name.equals("alias") || name.equals("owner") ||
+                            name.equals("snumber") || name.equals("dnumber") || name.equals("rtype")) {
+                            record.put(name, reader.getAttributeValue(i));
+                        }
+                    }
+                } else if (depth == 3) {
+                    field = reader.getLocalName();
+                    text.setLength(0);
+                }
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+                if (depth == 3) {
+                    text.append(reader.getText());
+                }
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                if (depth == 3) {
+                    if (description.fields.containsKey(field) && text.length() > 0) {
+                        record.put(field, convert(description, field, text.toString()));
+                    } else {
+                        log.debug("Ignored field '" + field + "' of " + type);
+                    }
+                } else if (depth == 2) {
+                    add(type, record);
+                    n++;
+                }
+                depth--;
+                break;
+            default:
+            }
+        }
+        return n;
+    }
+
+    /**
+     * The number of the node which had the given id in its record, or <code>null</code>.
+     */
+    public Integer getNodeNumber(Object id) {
+        return ids.get(Casting.toString(id));
+    }
+
+    /**
+     * Stores the remaining nodes, resolves the references of the relations and stores them, and
+     * builds the indices on field values. The loader is closed afterwards, also if this fails.
+     * @return The number of loaded nodes
+     * @throws NotFoundException if a relation refers to a node or role which does not exist
+     */
+    public int finish() {
+        if (closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+        try {
+            flush();
+            for (PendingRelation relation : relations) {
+                Map<String, Object> values = relation.node.values;
+                values.put("snumber", resolve(values.get("snumber")));
+                values.put("dnumber", resolve(values.get("dnumber")));
+                if (relation.role != null || ! values.containsKey("rnumber")) {
+                    String name = relation.role == null ? "related" : relation.role;
+                    MockCloudContext.Role role = cloudContext.roles.get(name);
+                    if (role == null) {
+                        throw new NotFoundException("No such role '" + name + "'");
+                    }
+                    values.put("rnumber", role.number);
+                }
+                batch.add(relation.node);
+                batchIds.add(relation.id);
+                if (batch.size() >= batchSize) {
+                    flush();
+                }
+            }
+            relations.clear();
+            flush();
+        } finally {
+            close();
+        }
+        log.service("Loaded " + count + " nodes into " + cloudContext);
+        return count;
+    }
+
+    /**
+     * Ends loading. Records which are not stored yet (the current batch and the relations) are
+     * discarded, and the indices on field values of the types of the stored nodes are built. Does
+     * nothing if the loader is closed already, e.g. by {@link #finish}.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (! batch.isEmpty() || ! relations.isEmpty()) {
+            log.warn("Discarded " + (batch.size() + relations.size()) + " records which were not stored by " + this);
+        }
+        batch.clear();
+        batchIds.clear();
+        relations.clear();
+        cloudContext.endLoad(types);
+    }
+
+    @Override
+    public String toString() {
+        return "bulk loader for " + cloudContext + " (" + count + " nodes loaded" + (closed ? ", closed" : "") + ")";
+    }
+
+    private Integer resolve(Object reference) {
+        String key = Casting.toString(reference);
+        Integer number = ids.get(key);
+        if (number == null) {
+            number = cloudContext.getNodeNumber(key);
+        }
+        if (number == null && key.matches("\\d+") && cloudContext.nodes.containsKey(Integer.valueOf(key))) {
+            number = Integer.valueOf(key);
+        }
+        if (number == null) {
+            throw new NotFoundException("No node found for '" + key + "'");
+        }
+        return number;
+    }
+
+    private void flush() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (MockCloudContext.NodeDescription nd : batch) {
+            types.add(nd.type);
+        }
+        int[] numbers = cloudContext.addNodes(batch);
+        for (int i = 0; i < numbers.length; i++) {
+            String id = batchIds.get(i);
+            if (id != null) {
+                ids.put(id, numbers[i]);
+            }
+        }
+        count += numbers.length;
+        batch.clear();
+        batchIds.clear();
+    }
+
+    /**
+     * Converts a string to the type of the field, if it is a number, boolean or date.
+     */
+    static Object convert(NodeManagerDescription description, String fieldName, String value) {
+        Field field = description.fields.get(fieldName);
+        if (field == null) {
+            return value;
+        }
+        switch(field.getType()) {
+        case Field.TYPE_INTEGER:
+        case Field.TYPE_NODE:    return Casting.toInt(value);
+        case Field.TYPE_LONG:    return Casting.toLong(value);
+        case Field.TYPE_FLOAT:   return Casting.toFloat(value);
+        case Field.TYPE_DOUBLE:  return Casting.toDouble(value);
+        case Field.TYPE_DECIMAL: return Casting.toDecimal(value);
+        case Field.TYPE_BOOLEAN: return Casting.toBoolean(value);
+        case Field.TYPE_DATETIME: return Casting.toDate(value);
+        default:                 return value;
+        }
+    }
+
+    private static class PendingRelation {
+        final String id;
+        final MockCloudContext.NodeDescription node;
+        final String role;
+        PendingRelation(String id, MockCloudContext.NodeDescription node, String role) {
+            this.id = id;
+            this.node = node;
+            this.role = role;
+        }
+    }
+
+    /**
+     * Reads lines of comma separated values. Values in double quotes may contain commas, newlines
+     * and (doubled) double quotes.
+     */
+    static class CsvReader {
+        private final Reader reader;
+        private int next;
+
+        CsvReader(Reader reader) throws IOException {
+            this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+            this.next = this.reader.read();
+        }
+
+        private int read() throws IOException {
+            int c = next;
+            next = reader.read();
+            return c;
+        }
+
+        /**
+         * @return The values of the next line, or <code>null</code> at the end
+         */
+        List<String> readLine() throws IOException {
+            if (next == -1) {
+                return null;
+            }
+            List<String> values = new ArrayList<String>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                int c = read();
+                if (quoted) {
+                    if (c == -1) {
+                        throw new IOException("Unterminated quoted value");
+                    } else if (c == '"') {
+                        if (next == '"') {
+                            value.append('"');
+                            read();
+                        } else {
+                            quoted = false;
+                        }
+                    } else {
+                        value.append((char) c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else if (c == '\r' || c == '\n' || c == -1) {
+                    if (c == '\r' && next == '\n') {
+                        read();
+                    }
+                    values.add(value.toString());
+                    return values;
+                } else {
+                    value.append((char) c);
+                }
+            }
+        }
+    }
+
+}
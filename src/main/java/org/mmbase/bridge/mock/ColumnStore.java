@@ -0,0 +1,469 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.util.*;
+
+/**
+ * Compact storage for the values of the nodes of one type of a {@link MockCloudContext}, used if
+ * it is {@linkplain MockCloudContext#setColumnar columnar}. Every field is stored in a column: an
+ * array of primitives for numeric, boolean and date values, and a dictionary encoded array for
+ * strings, as long as there are not too many distinct ones. Whether a row has a value in a column
+ * is administrated in a bit set.
+ *
+ * The values of one node are presented as a {@link Map} too, which is a view on the columns. The
+ * kind of a column is determined by the first value stored in it. Values that do not fit in their
+ * column (e.g. a Node in a column of Integers) and values of fields without a column are stored in a
+ * normal map per node. Storing <code>null</code> is the same as removing the value.
+ *
+ * Like the {@link MockCloudContext.NodeDescription#values} it replaces, this is not thread safe
+ * itself. The cloud context changes it only while holding its write lock.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+class ColumnStore {
+
+    /**
+     * If a string column gets more distinct values than this, it stops using a dictionary.
+     */
+    static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private final String type;
+    private final Map<String, Column> columns = new HashMap<String, Column>();
+    private final Map<Integer, Map<String, Object>> overflow = new HashMap<Integer, Map<String, Object>>();
+    private final BitSet free = new BitSet();
+    private int rows = 0;
+
+    ColumnStore(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Adds a row with the given values. The index of a {@linkplain #release released} row is
+     * reused if there is one, so that the columns do not keep growing when nodes are changed and
+     * deleted.
+     * @return A map view on the new row
+     */
+    Map<String, Object> newRow(Map<String, Object> values) {
+        int index = free.nextSetBit(0);
+        if (index >= 0) {
+            free.clear(index);
+        } else {
+            index = rows++;
+        }
+        Row row = new Row(index);
+        row.putAll(values);
+        return row;
+    }
+
+    /**
+     * Removes all values of a row, and makes its index available for a new row. The released
+     * view itself only keeps the number, so the values of a removed node can not become those of
+     * another one.
+     */
+    static void release(Map<String, Object> values) {
+        if (values instanceof Row) {
+            ((Row) values).release();
+        }
+    }
+
+    /**
+     * The number of rows in use.
+     */
+    int size() {
+        return rows - free.cardinality();
+    }
+
+    /**
+     * The number of rows for which the columns have room, including the released ones.
+     */
+    int capacity() {
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return "columns of " + type + " (" + size() + " rows, " + free.cardinality() + " free, " + columns + (overflow.isEmpty() ? "" : ", " + overflow.size() + " overflowing rows") + ")";
+    }
+
+    /**
+     * A view on the values of one row.
+     */
+    private class Row extends AbstractMap<String, Object> {
+        private final int row;
+        private boolean released = false;
+        private Object number;
+        Row(int row) {
+            this.row = row;
+        }
+
+        void release() {
+            if (! released) {
+                number = get("number");
+                clear();
+                released = true;
+                free.set(row);
+            }
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (released) {
+                return "number".equals(key) ? number : null;
+            }
+            Column column = columns.get(key);
+            if (column != null && column.has(row)) {
+                return column.read(row);
+            }
+            Map<String, Object> rest = overflow.get(row);
+            return rest == null ? null : rest.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (released) {
+                return "number".equals(key) && number != null;
+            }
+            Column column = columns.get(key);
+            if (column != null && column.has(row)) {
+                return true;
+            }
+            Map<String, Object> rest = overflow.get(row);
+            return rest != null && rest.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            if (released) {
+                throw new IllegalStateException("Row " + row + " of " + type + " was released");
+            }
+            if (value == null) {
+                return remove(key);
+            }
+            Object previous = get(key);
+            Column column = columns.get(key);
+            if (column == null) {
+                column = Column.create(value);
+                if (column != null) {
+                    columns.put(key, column);
+                }
+            }
+            if (column != null && column.set(row, value)) {
+                removeOverflow(key);
+            } else {
+                if (column != null) {
+                    column.clear(row);
+                }
+                Map<String, Object> rest = overflow.get(row);
+                if (rest == null) {
+                    rest = new HashMap<String, Object>(4);
+                    overflow.put(row, rest);
+                }
+                rest.put(key, value);
+            }
+            return previous;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            if (released) {
+                throw new IllegalStateException("Row " + row + " of " + type + " was released");
+            }
+            Object previous = get(key);
+            Column column = columns.get(key);
+            if (column != null) {
+                column.clear(row);
+            }
+            removeOverflow(key);
+            return previous;
+        }
+
+        private void removeOverflow(Object key) {
+            Map<String, Object> rest = overflow.get(row);
+            if (rest != null) {
+                rest.remove(key);
+                if (rest.isEmpty()) {
+                    overflow.remove(row);
+                }
+            }
+        }
+
+        @Override
+        public void clear() {
+            if (released) {
+                return;
+            }
+            for (Column column : columns.values()) {
+                column.clear(row);
+            }
+            overflow.remove(row);
+        }
+
+        /**
+         * A copy of the values of this row, so changes to the set are not reflected in the row.
+         */
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            if (released) {
+                return number == null ? Collections.<String, Object>emptyMap().entrySet() : Collections.singletonMap("number", number).entrySet();
+            }
+            Map<String, Object> copy = new HashMap<String, Object>();
+            for (Map.Entry<String, Column> entry : columns.entrySet()) {
+                if (entry.getValue().has(row)) {
+                    copy.put(entry.getKey(), entry.getValue().read(row));
+                }
+            }
+            Map<String, Object> rest = overflow.get(row);
+            if (rest != null) {
+                copy.putAll(rest);
+            }
+            return Collections.unmodifiableMap(copy).entrySet();
+        }
+    }
+
+    /**
+     * The values of one field of all rows. The bit set {@link #present} serves as null bitmap.
+     */
+    static abstract class Column {
+        protected final BitSet present = new BitSet();
+
+        static Column create(Object value) {
+            Class<?> clazz = value.getClass();
+            if (clazz == Integer.class) {
+                return new IntColumn();
+            } else if (clazz == Long.class) {
+                return new LongColumn();
+            } else if (clazz == Double.class || clazz == Float.class) {
+                return new DoubleColumn(clazz == Float.class);
+            } else if (clazz == Boolean.class) {
+                return new BooleanColumn();
+            } else if (clazz == Date.class) {
+                return new DateColumn();
+            } else if (clazz == String.class) {
+                return new StringColumn();
+            } else {
+                return null;
+            }
+        }
+
+        static int grow(int length, int row) {
+            return Math.max(row + 1, Math.max(16, length + (length >> 1)));
+        }
+
+        final boolean has(int row) {
+            return present.get(row);
+        }
+
+        /**
+         * @return <code>false</code> if the value does not fit in this column.
+         */
+        final boolean set(int row, Object value) {
+            if (value == null) {
+                clear(row);
+                return true;
+            }
+            if (write(row, value)) {
+                present.set(row);
+                return true;
+            }
+            return false;
+        }
+
+        void clear(int row) {
+            present.clear(row);
+        }
+
+        abstract Object read(int row);
+        abstract boolean write(int row, Object value);
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "(" + present.cardinality() + " values)";
+        }
+    }
+
+    static class IntColumn extends Column {
+        private int[] values = new int[0];
+        @Override
+        Object read(int row) {
+            return values[row];
+        }
+        @Override
+        boolean write(int row, Object value) {
+            if (value.getClass() != Integer.class) {
+                return false;
+            }
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = (Integer) value;
+            return true;
+        }
+    }
+
+    static class LongColumn extends Column {
+        private long[] values = new long[0];
+        @Override
+        Object read(int row) {
+            return values[row];
+        }
+        @Override
+        boolean write(int row, Object value) {
+            if (value.getClass() != Long.class) {
+                return false;
+            }
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = (Long) value;
+            return true;
+        }
+    }
+
+    /**
+     * Dates are stored as their milliseconds, and hence are new objects when read.
+     */
+    static class DateColumn extends Column {
+        private long[] values = new long[0];
+        @Override
+        Object read(int row) {
+            return new Date(values[row]);
+        }
+        @Override
+        boolean write(int row, Object value) {
+            if (value.getClass() != Date.class) {
+                return false;
+            }
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = ((Date) value).getTime();
+            return true;
+        }
+    }
+
+    static class DoubleColumn extends Column {
+        private final boolean floats;
+        private double[] values = new double[0];
+        DoubleColumn(boolean floats) {
+            this.floats = floats;
+        }
+        @Override
+        Object read(int row) {
+            if (floats) {
+                return Float.valueOf((float) values[row]);
+            } else {
+                return values[row];
+            }
+        }
+        @Override
+        boolean write(int row, Object value) {
+            if (value.getClass() != (floats ? Float.class : Double.class)) {
+                return false;
+            }
+            if (row >= values.length) {
+                values = Arrays.copyOf(values, grow(values.length, row));
+            }
+            values[row] = ((Number) value).doubleValue();
+            return true;
+        }
+    }
+
+    static class BooleanColumn extends Column {
+        private final BitSet values = new BitSet();
+        @Override
+        Object read(int row) {
+            return values.get(row);
+        }
+        @Override
+        boolean write(int row, Object value) {
+            if (value.getClass() != Boolean.class) {
+                return false;
+            }
+            values.set(row, (Boolean) value);
+            return true;
+        }
+    }
+
+    /**
+     * Strings are stored as codes in a dictionary, until there are more than {@link
+     * #MAX_DICTIONARY_SIZE} distinct values. Then the column stores the strings themselves.
+     */
+    static class StringColumn extends Column {
+        private int[] codes = new int[0];
+        private List<String> dictionary = new ArrayList<String>();
+        private Map<String, Integer> lookup = new HashMap<String, Integer>();
+        private String[] plain = null;
+
+        @Override
+        Object read(int row) {
+            return plain != null ? plain[row] : dictionary.get(codes[row]);
+        }
+
+        @Override
+        boolean write(int row, Object value) {
+            if (value.getClass() != String.class) {
+                return false;
+            }
+            String string = (String) value;
+            if (plain == null) {
+                Integer code = lookup.get(string);
+                if (code == null && dictionary.size() >= MAX_DICTIONARY_SIZE) {
+                    toPlain();
+                } else {
+                    if (code == null) {
+                        code = dictionary.size();
+                        dictionary.add(string);
+                        lookup.put(string, code);
+                    }
+                    if (row >= codes.length) {
+                        codes = Arrays.copyOf(codes, grow(codes.length, row));
+                    }
+                    codes[row] = code;
+                    return true;
+                }
+            }
+            if (row >= plain.length) {
+                plain = Arrays.copyOf(plain, grow(plain.length, row));
+            }
+            plain[row] = string;
+            return true;
+        }
+
+        @Override
+        void clear(int row) {
+            super.clear(row);
+            if (plain != null && row < plain.length) {
+                plain[row] = null;
+            }
+        }
+
+        private void toPlain() {
+            plain = new String[codes.length];
+            for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+                plain[row] = dictionary.get(codes[row]);
+            }
+            codes = null;
+            dictionary = null;
+            lookup = null;
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + (plain == null ? " dictionary of " + dictionary.size() : "");
+        }
+    }
+
+}
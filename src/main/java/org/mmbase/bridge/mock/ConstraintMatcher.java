@@ -0,0 +1,322 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.util.*;
+import org.mmbase.bridge.Field;
+import org.mmbase.bridge.Node;
+import org.mmbase.storage.search.*;
+import org.mmbase.storage.search.implementation.ConstraintPredicate;
+import org.mmbase.util.Casting;
+
+/**
+ * A ConstraintMatcher is a {@link Constraint} 'compiled' into an in-memory predicate on the rows
+ * of a mock query. A row is an array of {@link MockCloudContext.NodeDescription}s, one for every
+ * step of the query. The values of a field are tested with the {@link ConstraintPredicate} of the
+ * constraint, which is compiled once, in {@link #compile}, so that evaluating the matcher for a row
+ * is cheap.
+ *
+ * Like in SQL, a comparison with a <code>null</code> field value is neither true nor false, but
+ * unknown, which is represented by {@link #evaluate} returning <code>null</code>. It stays unknown
+ * if the constraint is inverse, also if it is part of an inverse composite constraint, and a row
+ * only matches if the result is true. So <code>NOT (title = 'x')</code> does not match rows
+ * without title. Only a {@link FieldNullConstraint} matches <code>null</code>s.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+abstract class ConstraintMatcher {
+
+    /**
+     * Matcher for queries without constraint.
+     */
+    static final ConstraintMatcher ALL = new ConstraintMatcher() {
+            @Override
+            Boolean evaluate(MockCloudContext.NodeDescription[] row) {
+                return Boolean.TRUE;
+            }
+            @Override
+            public String toString() {
+                return "ALL";
+            }
+        };
+
+    /**
+     * Evaluates the constraint for a row.
+     * @return <code>null</code> if the result is unknown, because a <code>null</code> value was compared
+     */
+    abstract Boolean evaluate(MockCloudContext.NodeDescription[] row);
+
+    /**
+     * Whether the row matches, i.e. whether the constraint {@link #evaluate evaluates} to true.
+     */
+    final boolean matches(MockCloudContext.NodeDescription[] row) {
+        return Boolean.TRUE.equals(evaluate(row));
+    }
+
+    /**
+     * Compiles a constraint for rows of the given steps.
+     * @param constraint The constraint to compile. If <code>null</code>, {@link #ALL} is returned.
+     * @throws UnsupportedOperationException if the constraint (or one of its childs) is of a type
+     * which cannot be evaluated in memory.
+     */
+    static ConstraintMatcher compile(List<Step> steps, Constraint constraint) {
+        if (constraint == null) {
+            return ALL;
+        }
+        if (constraint instanceof CompositeConstraint) {
+            CompositeConstraint composite = (CompositeConstraint) constraint;
+            List<Constraint> childs = composite.getChilds();
+            ConstraintMatcher[] compiled = new ConstraintMatcher[childs.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = compile(steps, childs.get(i));
+            }
+            return new CompositeMatcher(compiled, composite.getLogicalOperator() == CompositeConstraint.LOGICAL_AND, composite.isInverse());
+        } else if (constraint instanceof FieldNullConstraint) {
+            final FieldNullConstraint c = (FieldNullConstraint) constraint;
+            return new FieldMatcher(steps, c) {
+                @Override
+                Boolean evaluate(MockCloudContext.NodeDescription[] row) {
+                    return Boolean.valueOf((getValue(row) == null) != c.isInverse());
+                }
+            };
+        } else if (constraint instanceof CompareFieldsConstraint) {
+            final CompareFieldsConstraint c = (CompareFieldsConstraint) constraint;
+            final ConstraintPredicate predicate = ConstraintPredicate.compile(c);
+            final int step2 = indexOf(steps, c.getField2().getStep());
+            final String field2 = c.getField2().getFieldName();
+            return new FieldMatcher(steps, c) {
+                @Override
+                Boolean evaluate(MockCloudContext.NodeDescription[] row) {
+                    Object v = getValue(row);
+                    Object v2 = row[step2].values.get(field2);
+                    if (v == null || v2 == null) {
+                        return null;
+                    }
+                    return Boolean.valueOf(predicate.test(v, v2));
+                }
+            };
+        } else if (constraint instanceof FieldConstraint) {
+            return new ValueMatcher(steps, (FieldConstraint) constraint);
+        } else {
+            throw new UnsupportedOperationException("Constraints of type " + constraint.getClass().getName() + " are not supported (" + constraint + ")");
+        }
+    }
+
+    /**
+     * Compiles a list of constraints which must all be matched.
+     */
+    static ConstraintMatcher compile(List<Step> steps, Collection<Constraint> constraints) {
+        if (constraints.isEmpty()) {
+            return ALL;
+        }
+        if (constraints.size() == 1) {
+            return compile(steps, constraints.iterator().next());
+        }
+        ConstraintMatcher[] compiled = new ConstraintMatcher[constraints.size()];
+        int i = 0;
+        for (Constraint c : constraints) {
+            compiled[i++] = compile(steps, c);
+        }
+        return new CompositeMatcher(compiled, true, false);
+    }
+
+    /**
+     * Collects the indices of the steps which are referred to by the given constraint.
+     * @return <code>false</code> if that could not be determined for this kind of constraint
+     */
+    static boolean getSteps(List<Step> steps, Constraint constraint, Set<Integer> result) {
+        if (constraint instanceof CompositeConstraint) {
+            for (Constraint child : ((CompositeConstraint) constraint).getChilds()) {
+                if (! getSteps(steps, child, result)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (constraint instanceof FieldConstraint) {
+            result.add(indexOf(steps, ((FieldConstraint) constraint).getField().getStep()));
+            if (constraint instanceof CompareFieldsConstraint) {
+                result.add(indexOf(steps, ((CompareFieldsConstraint) constraint).getField2().getStep()));
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Determines the type with which values of the given field must be compared. Normally this is
+     * simply {@link StepField#getType}, but if that is unknown, the type is guessed from a value.
+     */
+    static int getType(StepField field, Object sample) {
+        return getType(field.getType(), sample);
+    }
+
+    static int getType(int type, Object sample) {
+        if (type == Field.TYPE_UNKNOWN) {
+            if (sample instanceof Integer || sample instanceof Long || sample instanceof Node) {
+                type = Field.TYPE_LONG;
+            } else if (sample instanceof Number) {
+                type = Field.TYPE_DOUBLE;
+            } else if (sample instanceof Date) {
+                type = Field.TYPE_DATETIME;
+            } else if (sample instanceof Boolean) {
+                type = Field.TYPE_BOOLEAN;
+            } else {
+                type = Field.TYPE_STRING;
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Casts a (non-null) value to an object that can be compared with other values of the same
+     * field type: Longs for integral types, nodes and dates, Doubles for floating point types,
+     * Booleans and otherwise Strings (lowercased if not case sensitive).
+     */
+    static Object normalize(int type, Object value, boolean caseSensitive) {
+        switch(type) {
+        case Field.TYPE_INTEGER:
+        case Field.TYPE_LONG:
+        case Field.TYPE_NODE:
+            if (value instanceof Node) {
+                return Long.valueOf(((Node) value).getNumber());
+            }
+            return Long.valueOf(Casting.toLong(value));
+        case Field.TYPE_FLOAT:
+        case Field.TYPE_DOUBLE:
+        case Field.TYPE_DECIMAL:
+            return Double.valueOf(Casting.toDouble(value));
+        case Field.TYPE_DATETIME:
+            return Long.valueOf(Casting.toDate(value).getTime());
+        case Field.TYPE_BOOLEAN:
+            return Boolean.valueOf(Casting.toBoolean(value));
+        default: {
+            String s = Casting.toString(value);
+            return caseSensitive ? s : s.toLowerCase();
+        }
+        }
+    }
+
+    /**
+     * Extracts a part (as defined in {@link FieldValueDateConstraint}) from a date, like SQL's EXTRACT does.
+     */
+    static int getDatePart(Date date, int part) {
+        return ConstraintPredicate.getDatePart(date, part);
+    }
+
+    /**
+     * Finds the index of a step in the steps of a query.
+     * @throws IllegalArgumentException if the step is not part of the query
+     */
+    static int indexOf(List<Step> steps, Step step) {
+        int i = 0;
+        for (Step s : steps) {
+            if (s == step) return i;
+            i++;
+        }
+        i = steps.indexOf(step);
+        if (i == -1) {
+            throw new IllegalArgumentException("Step " + step + " is not one of " + steps);
+        }
+        return i;
+    }
+
+
+    /**
+     * Base class for matchers on one field.
+     */
+    abstract static class FieldMatcher extends ConstraintMatcher {
+        final int step;
+        final String fieldName;
+        final boolean inverse;
+        final FieldConstraint constraint;
+
+        FieldMatcher(List<Step> steps, FieldConstraint c) {
+            step = indexOf(steps, c.getField().getStep());
+            fieldName = c.getField().getFieldName();
+            inverse = c.isInverse();
+            constraint = c;
+        }
+
+        final Object getValue(MockCloudContext.NodeDescription[] row) {
+            return row[step].values.get(fieldName);
+        }
+
+        @Override
+        public String toString() {
+            return "Matcher(" + constraint + ")";
+        }
+    }
+
+    /**
+     * Matcher which tests the value of one field with the {@link ConstraintPredicate} of the
+     * constraint, so that the mock queries evaluate constraints exactly like {@link
+     * FieldConstraint#matches}, except for <code>null</code> values.
+     */
+    static class ValueMatcher extends FieldMatcher {
+        final ConstraintPredicate predicate;
+
+        ValueMatcher(List<Step> steps, FieldConstraint c) {
+            super(steps, c);
+            predicate = ConstraintPredicate.compile(c);
+        }
+
+        @Override
+        final Boolean evaluate(MockCloudContext.NodeDescription[] row) {
+            Object value = getValue(row);
+            if (value == null) {
+                return null;
+            }
+            return Boolean.valueOf(predicate.test(value));
+        }
+    }
+
+    /**
+     * Matcher for a composite constraint, which combines the results of its childs with SQL's three
+     * valued logic: for AND, false wins over unknown, and for OR, true wins over unknown. The
+     * inverse of unknown is unknown.
+     */
+    static class CompositeMatcher extends ConstraintMatcher {
+        final ConstraintMatcher[] childs;
+        final boolean and;
+        final boolean inverse;
+
+        CompositeMatcher(ConstraintMatcher[] c, boolean a, boolean i) {
+            childs = c;
+            and = a;
+            inverse = i;
+        }
+
+        @Override
+        Boolean evaluate(MockCloudContext.NodeDescription[] row) {
+            boolean unknown = false;
+            for (ConstraintMatcher child : childs) {
+                Boolean result = child.evaluate(row);
+                if (result == null) {
+                    unknown = true;
+                } else if (result.booleanValue() != and) {
+                    return Boolean.valueOf(! and != inverse);
+                }
+            }
+            return unknown ? null : Boolean.valueOf(and != inverse);
+        }
+
+        @Override
+        public String toString() {
+            return (inverse ? "NOT " : "") + (and ? "AND" : "OR") + Arrays.asList(childs);
+        }
+    }
+
+}
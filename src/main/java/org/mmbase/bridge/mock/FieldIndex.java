@@ -0,0 +1,115 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.util.*;
+
+/**
+ * Index on the values of one field of the nodes of one type in a {@link MockCloudContext}. A hash
+ * index can only be used for equality (and IN) lookups, a sorted index also for ranges.
+ *
+ * Values are indexed by their {@linkplain ConstraintMatcher#normalize normalized} form, and strings
+ * are lowercased, so that the index can serve case sensitive and case insensitive constraints
+ * alike. Lookups hence may return too many nodes, and the constraint itself must still be checked
+ * on the result. <code>null</code> values are not indexed.
+ *
+ * Like the other indices of {@link MockCloudContext}, this is guarded by the lock of the cloud context.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+class FieldIndex {
+
+    final String fieldName;
+    final int fieldType;
+    final boolean sorted;
+    private final Map<Object, Set<Integer>> map;
+
+    FieldIndex(String fieldName, int fieldType, boolean sorted) {
+        this.fieldName = fieldName;
+        this.fieldType = fieldType;
+        this.sorted = sorted;
+        this.map = sorted ? new TreeMap<Object, Set<Integer>>() : new HashMap<Object, Set<Integer>>();
+    }
+
+    Object key(Object value) {
+        return value == null ? null : ConstraintMatcher.normalize(fieldType, value, false);
+    }
+
+    void add(Integer number, Map<String, Object> values) {
+        Object key = key(values.get(fieldName));
+        if (key != null) {
+            Set<Integer> numbers = map.get(key);
+            if (numbers == null) {
+                numbers = new LinkedHashSet<Integer>(2);
+                map.put(key, numbers);
+            }
+            numbers.add(number);
+        }
+    }
+
+    void remove(Integer number, Map<String, Object> values) {
+        Object key = key(values.get(fieldName));
+        if (key != null) {
+            Set<Integer> numbers = map.get(key);
+            if (numbers != null) {
+                numbers.remove(number);
+                if (numbers.isEmpty()) {
+                    map.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * The numbers of the nodes with the given value.
+     */
+    Collection<Integer> get(Object value) {
+        Set<Integer> numbers = map.get(key(value));
+        return numbers == null ? Collections.<Integer>emptySet() : numbers;
+    }
+
+    /**
+     * The numbers of the nodes with a value in the given range, in the order of the values.
+     * @param lower Lower limit, or <code>null</code> for no lower limit
+     * @param upper Upper limit, or <code>null</code> for no upper limit
+     */
+    Collection<Integer> getRange(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+        if (! sorted) {
+            throw new UnsupportedOperationException("Not a sorted index " + this);
+        }
+        NavigableMap<Object, Set<Integer>> range = (NavigableMap<Object, Set<Integer>>) map;
+        if (lower != null) {
+            range = range.tailMap(key(lower), lowerInclusive);
+        }
+        if (upper != null) {
+            range = range.headMap(key(upper), upperInclusive);
+        }
+        List<Integer> result = new ArrayList<Integer>();
+        for (Set<Integer> numbers : range.values()) {
+            result.addAll(numbers);
+        }
+        return result;
+    }
+
+    void clear() {
+        map.clear();
+    }
+
+    @Override
+    public String toString() {
+        return (sorted ? "sorted" : "hash") + " index on " + fieldName + " (" + map.size() + " values)";
+    }
+
+}
@@ -0,0 +1,337 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.sql.*;
+import java.util.*;
+import org.mmbase.bridge.*;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.logging.*;
+
+/**
+ * A {@link MockCloudContext} of which the nodes are stored in a database too, and of which the
+ * queries are executed with SQL. It is meant to benchmark the bridge against a real database,
+ * e.g. an embedded H2 (<code>jdbc:h2:mem:test</code> or <code>jdbc:h2:/tmp/test</code>) or Derby
+ * (<code>jdbc:derby:memory:test;create=true</code>), without the MMBase core. The JDBC driver must
+ * be on the class path.
+ *
+ * Every change is written to the database when it is made, in the tables described by {@link
+ * SqlQueryHandler}. Changes of a {@link MockTransaction} and {@linkplain BulkLoader bulk loads}
+ * are written in one database transaction, with batched inserts. The nodes in memory serve as a
+ * cache for {@link Cloud#getNode}. The database is not read at start up: a table of a previous
+ * session is replaced when it is first used.
+ *
+ * Queries which the {@linkplain #getSearchQueryHandler search query handler} cannot translate
+ * are executed in memory.
+ *
+ * If writing a change to the database fails, the change was made in memory already. The cloud
+ * context is then {@linkplain #isBroken broken}: it refuses further changes and queries, until it
+ * is {@linkplain #clear cleared}.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+public class JdbcCloudContext extends MockCloudContext {
+
+    private static final Logger LOG = Logging.getLoggerInstance(JdbcCloudContext.class);
+
+    private final SqlQueryHandler searchQueryHandler;
+    private final JdbcStore store;
+
+    /**
+     * Why the nodes in memory and in the database are different, if they are.
+     */
+    private volatile SQLException broken = null;
+
+    public JdbcCloudContext(String url) throws SQLException {
+        this(DriverManager.getConnection(url));
+    }
+
+    public JdbcCloudContext(Connection connection) {
+        searchQueryHandler = new SqlQueryHandler(this);
+        store = new JdbcStore(connection);
+    }
+
+    /**
+     * The maximal number of prepared statements which are kept open. Defaults to 256.
+     */
+    public void setStatementCacheSize(int size) {
+        store.setCacheSize(size);
+    }
+
+    /**
+     * Closes the connection to the database.
+     */
+    public void close() throws SQLException {
+        store.close();
+    }
+
+    /**
+     * Whether writing a change to the database failed, so that the nodes in memory and in the
+     * database are different.
+     */
+    public boolean isBroken() {
+        return broken != null;
+    }
+
+    private void checkBroken() {
+        SQLException b = broken;
+        if (b != null) {
+            throw new BridgeException(store + " is out of sync with the nodes in memory, because of: " + b.getMessage(), b);
+        }
+    }
+
+    /**
+     * Marks this cloud context as {@linkplain #isBroken broken}, because a change made in memory
+     * could not be written.
+     */
+    private BridgeException wrap(SQLException sqe) {
+        broken = sqe;
+        return new BridgeException("Could not write to " + store + ": " + sqe.getMessage(), sqe);
+    }
+
+    private String getType(int number) {
+        NodeDescription nd = nodes.get(number);
+        return nd == null ? null : nd.type;
+    }
+
+    /**
+     * Lets the store know in which tables nodes of the given types are stored. This needs the node
+     * managers, which are locked while builders are read, and their typedef nodes are added. So
+     * this must be done before the store is locked, or those threads would wait for each other.
+     */
+    private void define(Collection<String> types) {
+        for (String type : types) {
+            if (type == null) {
+                continue;
+            }
+            List<String> chain = searchQueryHandler.getAncestorsAndSelf(type);
+            Map<String, Map<String, Field>> columns = new HashMap<String, Map<String, Field>>();
+            for (String t : chain) {
+                Map<String, Field> c = searchQueryHandler.getColumns(t);
+                if (c != null) {
+                    columns.put(t, c);
+                }
+            }
+            store.define(type, chain, columns);
+        }
+    }
+
+    private void define(String type) {
+        define(Collections.singleton(type));
+    }
+
+    // Changes are made in memory first, which e.g. hands out the numbers and checks the aliases,
+    // and are then written. They are synchronized on the store, so that they are written in the
+    // same order.
+
+    @Override
+    int addNode(NodeDescription nd) {
+        define(nd.type);
+        synchronized(store) {
+            checkBroken();
+            int number = super.addNode(nd);
+            try {
+                store.insert(Collections.singletonMap(number, nodes.get(number)));
+            } catch (SQLException sqe) {
+                throw wrap(sqe);
+            }
+            return number;
+        }
+    }
+
+    @Override
+    int[] addNodes(List<NodeDescription> batch) {
+        Set<String> types = new HashSet<String>();
+        for (NodeDescription nd : batch) {
+            types.add(nd.type);
+        }
+        define(types);
+        synchronized(store) {
+            checkBroken();
+            int[] numbers = super.addNodes(batch);
+            Map<Integer, NodeDescription> written = new LinkedHashMap<Integer, NodeDescription>();
+            for (int number : numbers) {
+                written.put(number, nodes.get(number));
+            }
+            try {
+                store.insert(written);
+            } catch (SQLException sqe) {
+                throw wrap(sqe);
+            }
+            return numbers;
+        }
+    }
+
+    @Override
+    void putNode(int number, NodeDescription nd) {
+        define(Arrays.asList(nd.type, getType(number)));
+        synchronized(store) {
+            checkBroken();
+            String previous = getType(number);
+            super.putNode(number, nd);
+            try {
+                store.write(previous == null ? Collections.<Integer, String>emptyMap() : Collections.singletonMap(number, previous),
+                            Collections.singletonMap(number, nodes.get(number)));
+            } catch (SQLException sqe) {
+                throw wrap(sqe);
+            }
+        }
+    }
+
+    @Override
+    void apply(Map<Integer, NodeDescription> written, Collection<Integer> deleted, Map<Integer, NodeDescription> bases) {
+        Set<String> types = new HashSet<String>();
+        for (NodeDescription nd : written.values()) {
+            types.add(nd.type);
+        }
+        for (Integer number : deleted) {
+            types.add(getType(number));
+        }
+        for (Integer number : written.keySet()) {
+            types.add(getType(number));
+        }
+        define(types);
+        synchronized(store) {
+            checkBroken();
+            Map<Integer, String> previous = new LinkedHashMap<Integer, String>();
+            for (Integer number : deleted) {
+                String type = getType(number);
+                if (type != null) {
+                    previous.put(number, type);
+                }
+            }
+            for (Integer number : written.keySet()) {
+                String type = getType(number);
+                if (type != null) {
+                    previous.put(number, type);
+                }
+            }
+            super.apply(written, deleted, bases);
+            Map<Integer, NodeDescription> stored = new LinkedHashMap<Integer, NodeDescription>();
+            for (Integer number : written.keySet()) {
+                stored.put(number, nodes.get(number));
+            }
+            try {
+                store.write(previous, stored);
+            } catch (SQLException sqe) {
+                throw wrap(sqe);
+            }
+        }
+    }
+
+    @Override
+    void setNodeType(int node, String type) {
+        define(Arrays.asList(type, getType(node)));
+        synchronized(store) {
+            checkBroken();
+            String previous = getType(node);
+            super.setNodeType(node, type);
+            if (previous != null && ! previous.equals(type)) {
+                try {
+                    store.write(Collections.singletonMap(node, previous), Collections.singletonMap(node, nodes.get(node)));
+                } catch (SQLException sqe) {
+                    throw wrap(sqe);
+                }
+            }
+        }
+    }
+
+    @Override
+    void setValues(int node, NodeDescription nd, Map<String, Object> values) {
+        define(getType(node));
+        synchronized(store) {
+            checkBroken();
+            NodeDescription current = nodes.get(node);
+            // only the values which really change are written
+            Map<String, Object> changed = new HashMap<String, Object>();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                Object before = current == null ? null : current.values.get(entry.getKey());
+                if (current == null || (before == null ? entry.getValue() != null : ! before.equals(entry.getValue()))) {
+                    changed.put(entry.getKey(), entry.getValue());
+                }
+            }
+            super.setValues(node, nd, values);
+            if (current != null && ! changed.isEmpty()) {
+                try {
+                    store.updateValues(node, current.type, changed);
+                } catch (SQLException sqe) {
+                    throw wrap(sqe);
+                }
+            }
+        }
+    }
+
+    @Override
+    void removeNode(int node) {
+        define(getType(node));
+        synchronized(store) {
+            checkBroken();
+            String previous = getType(node);
+            super.removeNode(node);
+            if (previous != null) {
+                try {
+                    store.remove(node, previous);
+                } catch (SQLException sqe) {
+                    throw wrap(sqe);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized(store) {
+            super.clear();
+            try {
+                store.clear();
+                broken = null;
+            } catch (SQLException sqe) {
+                throw wrap(sqe);
+            }
+        }
+    }
+
+    /**
+     * Executes the query with SQL if it can be translated, and in memory otherwise.
+     */
+    @Override
+    List<Map<String, Object>> getRecords(MockCloud cloud, QueryHandler handler, Query query) {
+        checkBroken();
+        SqlQueryHandler.SqlQuery sql;
+        try {
+            sql = searchQueryHandler.compile(query);
+        } catch (SearchQueryException sqe) {
+            LOG.debug("Executing in memory: " + sqe.getMessage());
+            return super.getRecords(cloud, handler, query);
+        }
+        define(sql.tables);
+        try {
+            return store.query(sql);
+        } catch (SQLException sqe) {
+            throw new BridgeException("Could not execute " + sql + ": " + sqe.getMessage(), sqe);
+        }
+    }
+
+    @Override
+    public SearchQueryHandler getSearchQueryHandler() {
+        return searchQueryHandler;
+    }
+
+    @Override
+    public String getUri() {
+        return store.toString();
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.sql.*;
+import java.util.*;
+import org.mmbase.bridge.Field;
+import org.mmbase.util.logging.*;
+
+/**
+ * The tables of a {@link JdbcCloudContext} in a database. All access goes via one connection,
+ * and is synchronized on this object. Statements are prepared once, and kept in a cache of which
+ * the least recently used ones are closed.
+ *
+ * The store does not look at the node managers of the cloud context itself, because those are
+ * locked while e.g. builders are read, which stores nodes. The tables of a node type must be
+ * {@linkplain #define defined} before nodes of it are written, or queried.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+class JdbcStore {
+
+    private static final Logger LOG = Logging.getLoggerInstance(JdbcStore.class);
+
+    private final Connection connection;
+
+    /**
+     * For every defined node type, the node types of the tables in which its nodes are stored.
+     */
+    private final Map<String, List<String>> ancestorsAndSelf = new HashMap<String, List<String>>();
+
+    /**
+     * The columns of the tables of the defined node types.
+     */
+    private final Map<String, Map<String, Field>> definitions = new HashMap<String, Map<String, Field>>();
+
+    /**
+     * The node managers of which the table was created, with the columns it was created with.
+     */
+    private final Map<String, Map<String, Field>> tables = new HashMap<String, Map<String, Field>>();
+
+    /**
+     * The statements of a batch which is not yet executed. They are not closed by the cache.
+     */
+    private final Set<PreparedStatement> batch = new LinkedHashSet<PreparedStatement>();
+
+    private int cacheSize = 256;
+    private final LinkedHashMap<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() > cacheSize && ! batch.contains(eldest.getValue())) {
+                close(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+
+    JdbcStore(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Defines the tables of a node type.
+     * @param type The node type
+     * @param chain The node type and its ancestors
+     * @param columns The columns of the tables of the types in the chain
+     */
+    synchronized void define(String type, List<String> chain, Map<String, Map<String, Field>> columns) {
+        ancestorsAndSelf.put(type, chain);
+        definitions.putAll(columns);
+    }
+
+    private List<String> getAncestorsAndSelf(String type) {
+        List<String> chain = ancestorsAndSelf.get(type);
+        return chain == null ? Collections.<String>emptyList() : chain;
+    }
+
+    synchronized void setCacheSize(int size) {
+        cacheSize = size;
+    }
+
+    private static void close(java.sql.Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException sqe) {
+            LOG.warn(sqe.getMessage());
+        }
+    }
+
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the columns of the table of a node manager, creating the table on first use. An
+     * existing table of a previous session is replaced, because the nodes are not read from it.
+     * @return The columns, or <code>null</code> if there is no such node manager
+     */
+    private Map<String, Field> getTable(String type) throws SQLException {
+        Map<String, Field> columns = tables.get(type);
+        if (columns == null) {
+            columns = definitions.get(type);
+            if (columns == null) {
+                return null;
+            }
+            String name = SqlQueryHandler.getTableName(type);
+            java.sql.Statement statement = connection.createStatement();
+            try {
+                ResultSet existing = connection.getMetaData().getTables(null, null, "mm_" + type, null);
+                try {
+                    if (existing.next()) {
+                        statement.executeUpdate("DROP TABLE " + name);
+                    }
+                } finally {
+                    existing.close();
+                }
+                StringBuilder sql = new StringBuilder("CREATE TABLE ").append(name).append(" (");
+                for (Field field : columns.values()) {
+                    if (! field.getName().equals("number")) {
+                        sql.append(SqlQueryHandler.quote(field.getName())).append(" ").append(SqlQueryHandler.getSqlType(field)).append(", ");
+                    }
+                }
+                sql.append(SqlQueryHandler.quote("number")).append(" INTEGER NOT NULL PRIMARY KEY)");
+                statement.executeUpdate(sql.toString());
+            } finally {
+                close(statement);
+            }
+            tables.put(type, columns);
+            LOG.debug("Created table " + name + " for " + columns.keySet());
+        }
+        return columns;
+    }
+
+    private void set(PreparedStatement statement, int index, int type, Object value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, SqlQueryHandler.getJdbcType(type));
+        } else {
+            statement.setObject(index, value);
+        }
+    }
+
+    /**
+     * Adds the inserts of a node, in the tables of its type and its ancestors, to the batch.
+     */
+    private void insert(int number, MockCloudContext.NodeDescription nd) throws SQLException {
+        for (String type : getAncestorsAndSelf(nd.type)) {
+            Map<String, Field> columns = getTable(type);
+            if (columns == null) {
+                continue;
+            }
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(SqlQueryHandler.getTableName(type)).append(" (");
+            StringBuilder values = new StringBuilder();
+            for (String column : columns.keySet()) {
+                if (values.length() > 0) {
+                    sql.append(", ");
+                    values.append(", ");
+                }
+                sql.append(SqlQueryHandler.quote(column));
+                values.append("?");
+            }
+            sql.append(") VALUES (").append(values).append(")");
+            PreparedStatement statement = prepare(sql.toString());
+            int i = 1;
+            for (Field field : columns.values()) {
+                Object value = field.getName().equals("number") ? number : nd.values.get(field.getName());
+                set(statement, i++, field.getType(), SqlQueryHandler.toSql(field.getType(), value));
+            }
+            statement.addBatch();
+            batch.add(statement);
+        }
+    }
+
+    private void delete(int number, String nodeType) throws SQLException {
+        for (String type : getAncestorsAndSelf(nodeType)) {
+            if (getTable(type) == null) {
+                continue;
+            }
+            PreparedStatement statement = prepare("DELETE FROM " + SqlQueryHandler.getTableName(type) + " WHERE " + SqlQueryHandler.quote("number") + " = ?");
+            statement.setInt(1, number);
+            statement.executeUpdate();
+        }
+    }
+
+    private void update(int number, String nodeType, Map<String, Object> values) throws SQLException {
+        for (String type : getAncestorsAndSelf(nodeType)) {
+            Map<String, Field> columns = getTable(type);
+            if (columns == null) {
+                continue;
+            }
+            List<Field> changed = new ArrayList<Field>();
+            for (String key : values.keySet()) {
+                Field field = columns.get(key);
+                if (field != null && ! key.equals("number")) {
+                    changed.add(field);
+                }
+            }
+            if (changed.isEmpty()) {
+                continue;
+            }
+            StringBuilder sql = new StringBuilder("UPDATE ").append(SqlQueryHandler.getTableName(type)).append(" SET ");
+            for (int i = 0; i < changed.size(); i++) {
+                sql.append(i == 0 ? "" : ", ").append(SqlQueryHandler.quote(changed.get(i).getName())).append(" = ?");
+            }
+            sql.append(" WHERE ").append(SqlQueryHandler.quote("number")).append(" = ?");
+            PreparedStatement statement = prepare(sql.toString());
+            int i = 1;
+            for (Field field : changed) {
+                set(statement, i++, field.getType(), SqlQueryHandler.toSql(field.getType(), values.get(field.getName())));
+            }
+            statement.setInt(i, number);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Executes the statements of the batch, and commits the transaction. If that is not
+     * successful, the transaction is rolled back before auto commit is switched on again, because
+     * that would commit the statements executed until then.
+     */
+    private void end(boolean success) throws SQLException {
+        boolean committed = false;
+        try {
+            if (success) {
+                for (PreparedStatement statement : batch) {
+                    statement.executeBatch();
+                }
+                connection.commit();
+                committed = true;
+            }
+        } finally {
+            try {
+                if (! committed) {
+                    rollback();
+                }
+            } finally {
+                batch.clear();
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Rolls back the current transaction. This happens because of another exception, which must
+     * not be hidden, so a failure is only logged.
+     */
+    private void rollback() {
+        try {
+            for (PreparedStatement statement : batch) {
+                statement.clearBatch();
+            }
+            connection.rollback();
+        } catch (SQLException sqe) {
+            LOG.warn("Could not roll back: " + sqe.getMessage());
+        }
+    }
+
+    /**
+     * Writes changes to nodes in one database transaction.
+     *
+     * @param deleted  The numbers and types of the nodes to remove
+     * @param written  The nodes to store. Previous versions of them must be in <code>deleted</code>.
+     */
+    synchronized void write(Map<Integer, String> deleted, Map<Integer, MockCloudContext.NodeDescription> written) throws SQLException {
+        connection.setAutoCommit(false);
+        boolean success = false;
+        try {
+            for (Map.Entry<Integer, String> entry : deleted.entrySet()) {
+                delete(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<Integer, MockCloudContext.NodeDescription> entry : written.entrySet()) {
+                insert(entry.getKey(), entry.getValue());
+            }
+            success = true;
+        } finally {
+            end(success);
+        }
+    }
+
+    synchronized void insert(Map<Integer, MockCloudContext.NodeDescription> written) throws SQLException {
+        write(Collections.<Integer, String>emptyMap(), written);
+    }
+
+    synchronized void updateValues(int number, String type, Map<String, Object> values) throws SQLException {
+        update(number, type, values);
+    }
+
+    synchronized void remove(int number, String type) throws SQLException {
+        delete(number, type);
+    }
+
+    /**
+     * Drops all tables, e.g. because the node managers were removed.
+     */
+    synchronized void clear() throws SQLException {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+        java.sql.Statement statement = connection.createStatement();
+        try {
+            for (String type : tables.keySet()) {
+                statement.executeUpdate("DROP TABLE " + SqlQueryHandler.getTableName(type));
+            }
+        } finally {
+            close(statement);
+            tables.clear();
+            ancestorsAndSelf.clear();
+            definitions.clear();
+        }
+    }
+
+    /**
+     * Executes a compiled query.
+     */
+    synchronized List<Map<String, Object>> query(SqlQueryHandler.SqlQuery query) throws SQLException {
+        for (String type : query.tables) {
+            getTable(type);
+        }
+        PreparedStatement statement = prepare(query.sql);
+        int i = 1;
+        for (Object parameter : query.parameters) {
+            statement.setObject(i++, parameter);
+        }
+        List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+        ResultSet resultSet = statement.executeQuery();
+        try {
+            while (resultSet.next()) {
+                Map<String, Object> record = new HashMap<String, Object>();
+                for (int column = 0; column < query.keys.length; column++) {
+                    if (query.keys[column] != null) {
+                        record.put(query.keys[column], SqlQueryHandler.fromSql(query.types[column], resultSet.getObject(column + 1)));
+                    }
+                }
+                result.add(record);
+            }
+        } finally {
+            resultSet.close();
+        }
+        return result;
+    }
+
+    synchronized void close() throws SQLException {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+        connection.close();
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return connection.getMetaData().getURL();
+        } catch (SQLException sqe) {
+            return connection.toString();
+        }
+    }
+
+}
@@ -0,0 +1,464 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+import org.mmbase.util.logging.*;
+
+/**
+ * Append-only journal of the changes to the nodes of a {@link MockCloudContext}, which makes it
+ * durable. See {@link MockCloudContext#openJournal}.
+ *
+ * Changes are appended to an in-memory buffer while the cloud context is locked, so that they are
+ * in the same order as they were applied. Waiting until a change is written happens afterwards, and
+ * depends on the {@link Sync} policy. All changes which were appended while one thread was waiting
+ * for the disk, are written and forced to disk at once by the next thread (group commit).
+ *
+ * A record consists of its length, a type byte, the payload and a CRC32 of type and payload. A
+ * record which is incomplete or has a wrong checksum ends the journal, because it can only be the
+ * result of a crash while writing it.
+ *
+ * The journal starts with a header with its generation. Every compaction writes a snapshot of the
+ * next generation, and only then empties the journal and starts that generation in it. If the
+ * process crashes in between, the journal is of an older generation than the snapshot, and its
+ * changes, which are in the snapshot already, are not replayed.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+public class Journal {
+
+    private static final Logger log = Logging.getLoggerInstance(Journal.class);
+
+    /**
+     * When changes are forced to disk.
+     */
+    public enum Sync {
+        /**
+         * Changes are written to the file when committed, but never forced to disk. They survive
+         * a crash of the JVM, but not of the operating system.
+         */
+        NONE,
+        /**
+         * A commit waits until its changes are forced to disk.
+         */
+        ALWAYS,
+        /**
+         * Changes are written and forced to disk by a background thread, with a fixed
+         * interval. At most the changes of that interval can be lost.
+         */
+        INTERVAL
+    }
+
+    static final int MAGIC  = 0x4d4d4b4a; // MMKJ
+    static final int HEADER = 12;
+
+    private static final byte NODE    = 1;
+    private static final byte VALUES  = 2;
+    private static final byte TYPE    = 3;
+    private static final byte DELETE  = 4;
+    private static final byte ALIAS   = 5;
+    private static final byte UNALIAS = 6;
+
+    private final File file;
+    private final Sync sync;
+    private final FileChannel channel;
+    private long generation;
+
+    /**
+     * Appended, but not yet written records. Guarded by this.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 12);
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Total length of all appended records. Guarded by this.
+     */
+    private long appended;
+
+    /**
+     * Length of the records which are written (and forced, if needed). Guarded by {@link #writeLock}.
+     */
+    private long written;
+    private final Object writeLock = new Object();
+
+    private long compactSize = 64 * 1024 * 1024;
+    private Thread syncer = null;
+    private volatile boolean closed = false;
+
+    /**
+     * @param interval For {@link Sync#INTERVAL}, the number of milliseconds between syncs
+     * @param generation The generation of the snapshot. If the file is a journal of another
+     * generation, it is emptied.
+     */
+    Journal(File file, Sync sync, long interval, long generation) throws IOException {
+        this.file = file;
+        this.sync = sync;
+        boolean current = getGeneration(file) == generation;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        if (current) {
+            this.generation = generation;
+            appended = written = channel.size();
+            channel.position(written);
+        } else {
+            truncate(generation);
+        }
+        if (sync == Sync.INTERVAL) {
+            startSyncer(interval);
+        }
+    }
+
+    private void startSyncer(final long interval) {
+        syncer = new Thread("Journal " + file) {
+                @Override
+                public void run() {
+                    while (! closed) {
+                        try {
+                            Thread.sleep(interval);
+                            write(Long.MAX_VALUE, true);
+                        } catch (InterruptedException ie) {
+                            return;
+                        } catch (IOException ioe) {
+                            log.error(ioe.getMessage(), ioe);
+                        }
+                    }
+                }
+            };
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Sync getSync() {
+        return sync;
+    }
+
+    /**
+     * The size of the changes in the journal, including changes which are not yet written.
+     */
+    public synchronized long getSize() {
+        return appended - HEADER;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The generation of a journal file.
+     * @return The generation, or -1 if the file is not a journal (e.g. because it is empty)
+     */
+    static long getGeneration(File file) throws IOException {
+        if (file.length() < HEADER) {
+            return -1;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC ? in.readLong() : -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * If the journal becomes larger than this, the cloud context is compacted in a new snapshot
+     * (defaults to 64 MB).
+     */
+    public void setCompactSize(long size) {
+        compactSize = size;
+    }
+
+    boolean needsCompaction() {
+        return getSize() > compactSize;
+    }
+
+    synchronized long logNode(int number, String type, Map<String, Object> values, Set<String> aliases) {
+        DataOutputStream out = start(NODE);
+        try {
+            out.writeInt(number);
+            Snapshot.writeString(out, type);
+            writeValues(out, values);
+            out.writeInt(aliases.size());
+            for (String alias : aliases) {
+                Snapshot.writeString(out, alias);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage(), ioe);
+        }
+        return end();
+    }
+
+    synchronized long logValues(int number, Map<String, Object> values) {
+        DataOutputStream out = start(VALUES);
+        try {
+            out.writeInt(number);
+            writeValues(out, values);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage(), ioe);
+        }
+        return end();
+    }
+
+    long logType(int number, String type) {
+        return log(TYPE, number, type);
+    }
+
+    long logDelete(int number) {
+        return log(DELETE, number, null);
+    }
+
+    long logAlias(int number, String alias, boolean create) {
+        return log(create ? ALIAS : UNALIAS, number, alias);
+    }
+
+    private synchronized long log(byte recordType, int number, String string) {
+        DataOutputStream out = start(recordType);
+        try {
+            out.writeInt(number);
+            if (string != null) {
+                Snapshot.writeString(out, string);
+            }
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage(), ioe);
+        }
+        return end();
+    }
+
+    private static void writeValues(DataOutputStream out, Map<String, Object> values) throws IOException {
+        Map<String, Object> copy = new HashMap<String, Object>(values);
+        out.writeInt(copy.size());
+        for (Map.Entry<String, Object> entry : copy.entrySet()) {
+            Snapshot.writeString(out, entry.getKey());
+            Snapshot.writeValue(out, entry.getValue());
+        }
+    }
+
+    /**
+     * A record is written to a separate buffer first, because its length is needed before it. Guarded by this.
+     */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    /**
+     * Starts a record. Must be called while synchronized on this, until {@link #end}.
+     */
+    private DataOutputStream start(byte recordType) {
+        if (closed) {
+            throw new IllegalStateException("The journal " + file + " is closed");
+        }
+        record.reset();
+        try {
+            recordOut.writeByte(recordType);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage(), ioe);
+        }
+        return recordOut;
+    }
+
+    /**
+     * @return The position in the journal after the record, to be used in {@link #commit}
+     */
+    private long end() {
+        try {
+            byte[] bytes = record.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            pendingOut.writeInt(bytes.length);
+            pendingOut.write(bytes);
+            pendingOut.writeInt((int) crc.getValue());
+            appended += 8 + bytes.length;
+            return appended;
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Makes sure that the records up to the given position are as durable as the sync policy
+     * requires.
+     */
+    void commit(long position) throws IOException {
+        switch(sync) {
+        case ALWAYS:
+            write(position, true);
+            break;
+        case NONE:
+            write(position, false);
+            break;
+        default:
+            // the syncer will take care of it
+        }
+    }
+
+    /**
+     * Writes all pending records, unless the records up to the given position have already been
+     * written by another thread.
+     */
+    private void write(long position, boolean force) throws IOException {
+        synchronized(writeLock) {
+            if (written >= position) {
+                return;
+            }
+            byte[] bytes;
+            long end;
+            synchronized(this) {
+                bytes = pending.toByteArray();
+                pending.reset();
+                end = appended;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (force) {
+                channel.force(false);
+            }
+            written = end;
+        }
+    }
+
+    /**
+     * Empties the journal, after its contents were stored in a snapshot of the given
+     * generation. The caller makes sure that nothing is logged meanwhile.
+     */
+    void truncate(long g) throws IOException {
+        synchronized(writeLock) {
+            synchronized(this) {
+                pending.reset();
+                appended = HEADER;
+            }
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putLong(g).flip();
+            channel.write(header, 0);
+            channel.position(HEADER);
+            channel.force(true);
+            written = HEADER;
+            generation = g;
+        }
+    }
+
+    void close() throws IOException {
+        write(Long.MAX_VALUE, sync != Sync.NONE);
+        closed = true;
+        if (syncer != null) {
+            syncer.interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Applies the changes in a journal file to a cloud context. The generation of the journal is
+     * not checked.
+     * @return The number of applied records
+     */
+    static int replay(MockCloudContext cloudContext, File file) throws IOException {
+        if (getGeneration(file) == -1) {
+            return 0;
+        }
+        ByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.position(HEADER);
+        CRC32 crc = new CRC32();
+        int count = 0;
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || buffer.remaining() < length + 4) {
+                log.warn("Incomplete record at " + start + " in " + file + ", ignoring the rest of the journal");
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            crc.reset();
+            crc.update(bytes, 0, length);
+            if (buffer.getInt() != (int) crc.getValue()) {
+                log.warn("Corrupt record at " + start + " in " + file + ", ignoring the rest of the journal");
+                break;
+            }
+            apply(cloudContext, ByteBuffer.wrap(bytes));
+            count++;
+        }
+        log.service("Replayed " + count + " changes from " + file);
+        return count;
+    }
+
+    private static void apply(MockCloudContext cloudContext, ByteBuffer record) throws IOException {
+        byte recordType = record.get();
+        int number = record.getInt();
+        switch(recordType) {
+        case NODE: {
+            String type = Snapshot.readString(record);
+            Map<String, Object> values = readValues(record);
+            MockCloudContext.NodeDescription nd = new MockCloudContext.NodeDescription(type, values);
+            int aliases = record.getInt();
+            for (int i = 0; i < aliases; i++) {
+                nd.aliases.add(Snapshot.readString(record));
+            }
+            cloudContext.putNode(number, nd);
+            break;
+        }
+        case VALUES: {
+            MockCloudContext.NodeDescription nd = cloudContext.nodes.get(number);
+            if (nd != null) {
+                cloudContext.setValues(number, nd, readValues(record));
+            }
+            break;
+        }
+        case TYPE:
+            cloudContext.setNodeType(number, Snapshot.readString(record));
+            break;
+        case DELETE:
+            cloudContext.removeNode(number);
+            break;
+        case ALIAS:
+            cloudContext.createAlias(number, Snapshot.readString(record));
+            break;
+        case UNALIAS:
+            cloudContext.deleteAlias(number, Snapshot.readString(record));
+            break;
+        default:
+            throw new IOException("Unknown record type " + recordType);
+        }
+    }
+
+    private static Map<String, Object> readValues(ByteBuffer record) throws IOException {
+        int size = record.getInt();
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (int i = 0; i < size; i++) {
+            String key = Snapshot.readString(record);
+            values.put(key, Snapshot.readValue(record));
+        }
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "journal " + file + " (" + sync + ", " + getSize() + " bytes)";
+    }
+
+}
@@ -51,21 +51,23 @@ public class MockCloud extends AbstractCloud {
         if (nd.type.equals("typedef")) {
             return  getNodeManager(org.mmbase.util.Casting.toString(nd.values.get("name")));
         } else {
-            NodeManager nm = getNodeManager(nd.type);
             return getNode(nd, false);
         }
     }
+    /**
+     * Returns the number of the node with the given alias, or <code>null</code>.
+     */
+    Integer getNodeNumber(String alias) {
+        return cloudContext.getNodeNumber(alias);
+    }
+
     @Override
     public Node getNodeByAlias(String alias) throws NotFoundException {
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Finding node with alias '" + alias + "' in " + cloudContext.nodes);
-        }
-        for (Map.Entry<Integer, MockCloudContext.NodeDescription> nd : cloudContext.nodes.entrySet()) {
-            if (nd.getValue().aliases.contains(alias)) {
-                return getNode(nd.getKey());
-            }
+        Integer number = getNodeNumber(alias);
+        if (number == null) {
+            throw new NotFoundException("No node with alias '" + alias + "' found in " + this);
         }
-        throw new NotFoundException("No node with alias '" + alias + "' found in " + this);
+        return getNode(number);
     }
 
     @Override
@@ -82,13 +84,44 @@ public class MockCloud extends AbstractCloud {
         return new BasicNodeManagerList(list, this);
     }
 
+    private volatile int managersVersion = -1;
+
+    /**
+     * Empties the caches of node managers and relation managers if the node managers or roles of
+     * the cloud context changed since they were filled.
+     * @return The current version of the node managers of the cloud context
+     */
+    private int checkManagers() {
+        int version = cloudContext.getManagersVersion();
+        if (version != managersVersion) {
+            invalidateManagers();
+            managersVersion = version;
+        }
+        return version;
+    }
+
+    /**
+     * Caches a new manager, unless the node managers changed while creating it.
+     */
+    private <M> M cache(Map<String, ? super M> cache, String key, M manager, int version) {
+        if (cloudContext.getManagersVersion() == version) {
+            cache.put(key, manager);
+        }
+        return manager;
+    }
+
     @Override
     public NodeManager getNodeManager(String name) throws NotFoundException {
-        NodeManagerDescription d = cloudContext.nodeManagers.get(name);
-        if (d == null) {
-            throw new NotFoundException("No such node manager '" + name + "' in " + cloudContext);
+        int version = checkManagers();
+        NodeManager nm = nodeManagerCache.get(name);
+        if (nm == null) {
+            NodeManagerDescription d = cloudContext.nodeManagers.get(name);
+            if (d == null) {
+                throw new NotFoundException("No such node manager '" + name + "' in " + cloudContext);
+            }
+            nm = cache(nodeManagerCache, name, new MockNodeManager(this, d), version);
         }
-        return new MockNodeManager(this, d);
+        return nm;
     }
 
 
@@ -103,11 +136,11 @@ public class MockCloud extends AbstractCloud {
     @Override
     public NodeList getList(final Query query) {
         if (query.isAggregating()) {
-            List<Map<String, Object>> aggregatedResult = aggregatedQueryHandler.getRecords(query);
-            NodeManager tempNodemanager = new MapNodeManager(this, aggregatedResult.get(0));
+            List<Map<String, Object>> aggregatedResult = cloudContext.getRecords(this, aggregatedQueryHandler, query);
+            NodeManager tempNodemanager = new MapNodeManager(this, aggregatedResult.isEmpty() ? new HashMap<String, Object>() : aggregatedResult.get(0));
             return new SimpleNodeList(aggregatedResult, tempNodemanager);
         }  else if (query instanceof NodeQuery) {
-            List<Map<String, Object>> result = nodeQueryHandler.getRecords(query);
+            List<Map<String, Object>> result = cloudContext.getRecords(this, nodeQueryHandler, query);
             final NodeManager nm =  ((NodeQuery) query).getNodeManager();
             return new SimpleNodeList(result, nm) {
                 @Override
@@ -127,7 +160,7 @@ public class MockCloud extends AbstractCloud {
                 }
             };
         } else {
-            List<Map<String, Object>> result = queryHandler.getRecords(query);
+            List<Map<String, Object>> result = cloudContext.getRecords(this, queryHandler, query);
             NodeManager nm = new AbstractNodeManager(this) {
                     @Override
                     protected Map<String, Field> getFieldTypes() {
@@ -140,6 +173,42 @@ public class MockCloud extends AbstractCloud {
     }
 
 
+    /**
+     * Stores the values of a {@link MockNode}.
+     * @param nd      The description the node was created with
+     * @param values  All values of the node
+     * @param type    The (possibly changed) type of the node
+     * @return The number of the node, which is new if the node was new
+     */
+    int commitNode(MockCloudContext.NodeDescription nd, Map<String, Object> values, String type) {
+        if (! nd.values.containsKey("number")) {
+            // This is a new node, so generate a number first. It is stored with all its values, so
+            // that there is one event for it.
+            nd.values.putAll(values);
+            nd.values.remove("number");
+            int number = cloudContext.addNode(nd);
+            // the values are stored already, only the type may have changed (this logs nothing otherwise)
+            cloudContext.setNodeType(number, type);
+            return number;
+        }
+        int number = Casting.toInt(nd.values.get("number"));
+        cloudContext.setValues(number, nd, values);
+        cloudContext.setNodeType(number, type);
+        return number;
+    }
+
+    void createAlias(int number, String alias) {
+        cloudContext.createAlias(number, alias);
+    }
+
+    void deleteAlias(int number, String alias) {
+        cloudContext.deleteAlias(number, alias);
+    }
+
+    void deleteNode(int number) {
+        cloudContext.removeNode(number);
+    }
+
     @Override
     protected Transaction newTransaction(String name) {
         return new MockTransaction(name, this);
@@ -152,13 +221,23 @@ public class MockCloud extends AbstractCloud {
 
     @Override
     public RelationManager getRelationManager(NodeManager sourceManager, NodeManager destinationManager, String roleName) throws NotFoundException {
-        return new MockRelationManager(this, roleName, sourceManager.getName(), destinationManager.getName());
+        return getRelationManager(roleName, sourceManager.getName(), destinationManager.getName());
     }
 
 
     @Override
     public RelationManager getRelationManager(String roleName) throws NotFoundException {
-        return new MockRelationManager(this, roleName, "object", "object");
+        return getRelationManager(roleName, "object", "object");
+    }
+
+    private RelationManager getRelationManager(String roleName, String source, String destination) {
+        int version = checkManagers();
+        String key = roleName + "," + source + "," + destination;
+        RelationManager rm = relationManagerCache.get(key);
+        if (rm == null) {
+            rm = cache(relationManagerCache, key, new MockRelationManager(this, roleName, source, destination), version);
+        }
+        return rm;
     }
 
 
@@ -11,6 +11,9 @@ See http://www.MMBase.org/license
 package org.mmbase.bridge.mock;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.mmbase.bridge.*;
 import org.mmbase.bridge.util.AbstractCloudContext;
 import org.mmbase.bridge.util.NodeManagerDescription;
@@ -58,15 +61,20 @@ public class MockCloudContext extends  AbstractCloudContext {
 
     /**
      * Simple structure to contain the data of an MMBase node in memory. Basicly a container for
-     * {@link Map} and type information (The name of the associated nodemanager).
+     * {@link Map} and type information (The name of the associated nodemanager). If the cloud
+     * context is {@linkplain #setColumnar columnar}, the map is a view on a row of a {@link ColumnStore}.
      */
     public static class NodeDescription {
         public final String type;
         public final Map<String, Object> values;
-        public final Set<String> aliases = new HashSet<String>();
+        public final Set<String> aliases;
         public NodeDescription(String t, Map<String, Object> v) {
+            this(t, v, new CopyOnWriteArraySet<String>());
+        }
+        NodeDescription(String t, Map<String, Object> v, Set<String> a) {
             type = t;
             values = v;
+            aliases = a;
         }
         @Override
         public String toString() {
@@ -105,27 +113,381 @@ public class MockCloudContext extends  AbstractCloudContext {
     }
 
 
-    private int lastNodeNumber = 0;
+    private final AtomicInteger lastNodeNumber = new AtomicInteger(0);
+    private final AtomicInteger managersVersion = new AtomicInteger(0);
     private final Authentication authentication = new NoAuthentication();
 
 
-    final Map<Integer, NodeDescription>  nodes                      = Collections.synchronizedMap(new LinkedHashMap<Integer, NodeDescription>());
+    /**
+     * The nodes, which can be read without locking. Changes to them, and their indices, are
+     * guarded by the write lock of {@link #lock}. Queries use its read lock, so that they see a
+     * consistent version of the nodes and the indices, and can run simultaneously.
+     */
+    final ConcurrentNavigableMap<Integer, NodeDescription> nodes    = new ConcurrentSkipListMap<Integer, NodeDescription>();
+    final ReentrantReadWriteLock lock                               = new ReentrantReadWriteLock();
     public final Map<String,  NodeManagerDescription> nodeManagers  = Collections.synchronizedMap(new LinkedHashMap<String, NodeManagerDescription>());
     final Map<String, Role> roles                                   = Collections.synchronizedMap(new LinkedHashMap<String, Role>());
     final Map<String, AllowedRelation> allowed                      = Collections.synchronizedMap(new LinkedHashMap<String, AllowedRelation>());
 
+    /**
+     * Index of the node numbers per type. It is guarded by {@link #lock}.
+     */
+    private final Map<String, Set<Integer>> nodesByType             = new HashMap<String, Set<Integer>>();
+
+    /**
+     * Indices on field values, per type and field. They are guarded by {@link #lock}.
+     */
+    private final Map<String, Map<String, FieldIndex>> fieldIndices = new HashMap<String, Map<String, FieldIndex>>();
+
+    /**
+     * The types of which nodes are being {@linkplain #addNodes loaded}. The indices on their field
+     * values are not maintained meanwhile. It is guarded by {@link #lock}.
+     */
+    private final Set<String> loading                               = new HashSet<String>();
+
+    /**
+     * The types of which the indices on unique fields are not built yet, because they were read
+     * from a {@link Snapshot}. See {@link #ensureUniqueIndices}.
+     */
+    private final Set<String> deferredIndices                       = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Index of the node numbers per alias.
+     */
+    private final ConcurrentMap<String, Integer> nodesByAlias       = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * The column stores per type, if this cloud context is {@linkplain #setColumnar columnar}. They
+     * are guarded by {@link #lock}.
+     */
+    private final Map<String, ColumnStore> columnStores             = new HashMap<String, ColumnStore>();
+    private volatile boolean columnar = false;
+
+    /**
+     * The journal to which changes are logged, if this cloud context is durable. Changes are
+     * logged while holding the write lock of {@link #lock}, and {@linkplain #commit committed} afterwards.
+     */
+    private volatile Journal journal = null;
+
+    /**
+     * Whether changes to nodes are propagated as {@link NodeEvent}s and {@link RelationEvent}s. They
+     * are not while the nodes are restored from a journal.
+     */
+    private volatile boolean propagating = true;
+    private static final String MACHINE_NAME = "local";
+    private java.io.File journalDirectory = null;
+
+    /**
+     * The nodes of this cloud context. Nodes should be added with {@link #addNode(String, Map)}
+     * only, because other structures (like the index on node type) are maintained too then.
+     */
     public Map<Integer, NodeDescription>  getNodes() {
         return nodes;
     }
 
+    /**
+     * Returns the numbers of the nodes with the given type (descendants not included). This is
+     * the index itself, so it must only be used while holding (one of) the locks of {@link #lock}.
+     */
+    Set<Integer> getNodeNumbers(String type) {
+        Set<Integer> numbers = nodesByType.get(type);
+        return numbers == null ? Collections.<Integer>emptySet() : numbers;
+    }
+
+    /**
+     * Counts the nodes of the given types, using the index on type.
+     */
+    int countNodes(Collection<String> types) {
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            for (String type : types) {
+                count += getNodeNumbers(type).size();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of the node with the given alias, or <code>null</code> if there is no such node.
+     */
+    Integer getNodeNumber(String alias) {
+        return nodesByAlias.get(alias);
+    }
+
+    /**
+     * @throws BridgeException if the alias is already in use by another node
+     */
+    void checkAlias(String alias, int number) {
+        Integer existing = nodesByAlias.get(alias);
+        if (existing != null && existing.intValue() != number) {
+            throw new BridgeException("Alias '" + alias + "' could not be created. It is an alias for node " + existing);
+        }
+    }
+
+    /**
+     * Adds an alias to an existing node.
+     * @throws BridgeException if the alias is already in use by another node
+     */
+    void createAlias(int number, String alias) {
+        long position;
+        lock.writeLock().lock();
+        try {
+            NodeDescription nd = nodes.get(number);
+            if (nd == null) {
+                throw new NotFoundException("No node with number " + number);
+            }
+            Integer existing = nodesByAlias.putIfAbsent(alias, number);
+            if (existing != null && existing.intValue() != number) {
+                throw new BridgeException("Alias '" + alias + "' could not be created. It is an alias for node " + existing);
+            }
+            nd.aliases.add(alias);
+            position = journal == null ? -1 : journal.logAlias(number, alias, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+    }
+
+    void deleteAlias(int number, String alias) {
+        long position;
+        lock.writeLock().lock();
+        try {
+            NodeDescription nd = nodes.get(number);
+            if (nd != null) {
+                nd.aliases.remove(alias);
+            }
+            nodesByAlias.remove(alias, number);
+            position = journal == null ? -1 : journal.logAlias(number, alias, false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+    }
+
+    private void index(NodeDescription nd, Integer number) {
+        Set<Integer> numbers = nodesByType.get(nd.type);
+        if (numbers == null) {
+            numbers = new LinkedHashSet<Integer>();
+            nodesByType.put(nd.type, numbers);
+        }
+        numbers.add(number);
+        if (! loading.contains(nd.type)) {
+            for (FieldIndex fieldIndex : getFieldIndices(nd.type)) {
+                fieldIndex.add(number, nd.values);
+            }
+        }
+    }
+
+    private void unindex(NodeDescription nd, Integer number) {
+        Set<Integer> numbers = nodesByType.get(nd.type);
+        if (numbers != null) {
+            numbers.remove(number);
+        }
+        if (! loading.contains(nd.type)) {
+            for (FieldIndex fieldIndex : getFieldIndices(nd.type)) {
+                fieldIndex.remove(number, nd.values);
+            }
+        }
+    }
+
+    private Collection<FieldIndex> getFieldIndices(String type) {
+        Map<String, FieldIndex> indices = fieldIndices.get(type);
+        return indices == null ? Collections.<FieldIndex>emptyList() : indices.values();
+    }
+
+    /**
+     * Returns the index on the given field of the nodes of the given type, or <code>null</code>
+     * if there is none, or if nodes of the type are being {@linkplain #addNodes loaded}. The index must
+     * only be used while holding (one of) the locks of {@link #lock}.
+     */
+    FieldIndex getFieldIndex(String type, String field) {
+        if (loading.contains(type)) {
+            return null;
+        }
+        Map<String, FieldIndex> indices = fieldIndices.get(type);
+        return indices == null ? null : indices.get(field);
+    }
+
+    /**
+     * Creates an index on the values of a field of a node manager (descendants are not included,
+     * they need indices of their own). It is used by the mock query handlers to find the nodes
+     * for constraints on this field, without scanning all nodes of the type. An existing hash
+     * index is replaced by a sorted index if one is requested, but not vice versa.
+     *
+     * Hash indices are created automatically for unique fields. Other indices must be created
+     * explicitly; queries do not create indices.
+     *
+     * @param sorted Whether the index must be a sorted one, which can also be used for range constraints
+     * @throws NotFoundException if there is no such node manager or field
+     */
+    public void createIndex(String nodeManager, String field, boolean sorted) {
+        if (! ensureIndex(nodeManager, field, sorted)) {
+            throw new NotFoundException("No field '" + field + "' in node manager '" + nodeManager + "'");
+        }
+    }
+
+    /**
+     * Like {@link #createIndex}, but returns <code>false</code> in stead of throwing an exception
+     * if the field does not exist.
+     */
+    boolean ensureIndex(String nodeManager, String field, boolean sorted) {
+        NodeManagerDescription description = nodeManagers.get(nodeManager);
+        if (description == null) {
+            return false;
+        }
+        Field f = description.fields.get(field);
+        if (f == null) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            Map<String, FieldIndex> indices = fieldIndices.get(nodeManager);
+            if (indices == null) {
+                indices = new HashMap<String, FieldIndex>();
+                fieldIndices.put(nodeManager, indices);
+            }
+            FieldIndex existing = indices.get(field);
+            if (existing == null || (sorted && ! existing.sorted)) {
+                FieldIndex fieldIndex = new FieldIndex(field, f.getType(), sorted);
+                for (Integer number : getNodeNumbers(nodeManager)) {
+                    fieldIndex.add(number, nodes.get(number).values);
+                }
+                indices.put(field, fieldIndex);
+                LOG.debug("Created " + fieldIndex + " for " + nodeManager);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    void createUniqueIndices(String nodeManager) {
+        NodeManagerDescription description = nodeManagers.get(nodeManager);
+        for (Field f : description.fields.values()) {
+            // 'number' needs no index, that is what the node map itself is
+            if (! f.getName().equals("number") && f.getDataType() != null && f.getDataType().isUnique()) {
+                ensureIndex(nodeManager, f.getName(), false);
+            }
+        }
+    }
+
+    /**
+     * Postpones {@link #createUniqueIndices} until the indices are needed by a query.
+     */
+    void deferUniqueIndices(String nodeManager) {
+        deferredIndices.add(nodeManager);
+    }
+
+    /**
+     * Builds the indices on the unique fields of a type, if that was {@linkplain
+     * #deferUniqueIndices postponed}. Must not be called while holding the read lock of {@link
+     * #lock}.
+     */
+    void ensureUniqueIndices(String nodeManager) {
+        if (deferredIndices.remove(nodeManager)) {
+            createUniqueIndices(nodeManager);
+        }
+    }
+
     public MockCloudContext() {
         clouds.add("mmbase");
     }
 
+    /**
+     * Whether the values of the nodes are stored in {@linkplain ColumnStore columns} per type, in stead
+     * of in a map per node. This takes much less memory for large numbers of nodes, but reading a
+     * value is somewhat slower. The values of existing nodes are converted.
+     */
+    public void setColumnar(boolean c) {
+        lock.writeLock().lock();
+        try {
+            if (c == columnar) {
+                return;
+            }
+            columnar = c;
+            for (Map.Entry<Integer, NodeDescription> entry : nodes.entrySet()) {
+                NodeDescription nd = entry.getValue();
+                Map<String, Object> values = columnar ? store(nd.type, nd.values) : nd.values instanceof Snapshot.LazyValues ? nd.values : new HashMap<String, Object>(nd.values);
+                nodes.put(entry.getKey(), new NodeDescription(nd.type, values, nd.aliases));
+            }
+            if (! columnar) {
+                columnStores.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean isColumnar() {
+        return columnar;
+    }
+
+    /**
+     * Returns a copy of the values of a node. Values in {@linkplain ColumnStore columns} are
+     * changed in place, so they are copied while holding the read lock.
+     */
+    Map<String, Object> copyValues(NodeDescription nd) {
+        if (! columnar) {
+            return new HashMap<String, Object>(nd.values);
+        }
+        lock.readLock().lock();
+        try {
+            return new HashMap<String, Object>(nd.values);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the values of a node of the given type, in a new row of the column store for that
+     * type if this cloud context is columnar. Values of a {@link Snapshot} which are not decoded
+     * yet are kept as they are, so that reading a snapshot does not decode all nodes. They get a
+     * row when the node is changed. Must be called while holding the write lock of {@link #lock}.
+     * @return the values to use in the node description
+     */
+    private Map<String, Object> store(String type, Map<String, Object> values) {
+        if (! columnar) {
+            return values;
+        }
+        if (values instanceof Snapshot.LazyValues && ! ((Snapshot.LazyValues) values).isDecoded()) {
+            return values;
+        }
+        ColumnStore columnStore = columnStores.get(type);
+        if (columnStore == null) {
+            columnStore = new ColumnStore(type);
+            columnStores.put(type, columnStore);
+        }
+        return columnStore.newRow(values);
+    }
+
+    /**
+     * Removes all nodes and node managers. An open {@linkplain #openJournal journal} is closed
+     * first, so this does not change the durable contents.
+     */
     public void clear() {
-        nodes.clear();
+        try {
+            closeJournal();
+        } catch (java.io.IOException ioe) {
+            LOG.warn(ioe.getMessage(), ioe);
+        }
+        lock.writeLock().lock();
+        try {
+            nodes.clear();
+            nodesByType.clear();
+            fieldIndices.clear();
+            nodesByAlias.clear();
+            columnStores.clear();
+            loading.clear();
+            deferredIndices.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
         nodeManagers.clear();
-        lastNodeNumber = 0;
+        lastNodeNumber.set(0);
+        managersVersion.incrementAndGet();
 
     }
 
@@ -147,7 +509,7 @@ public class MockCloudContext extends  AbstractCloudContext {
                 LOG.service("Builder with name '" + buil + "' already exists");
             }
         }
-        EventManager.getInstance().propagateEvent(new BuildersRead(this));
+        buildersRead();
     }
 
     protected int getTypeDefNode(String name) {
@@ -202,6 +564,7 @@ public class MockCloudContext extends  AbstractCloudContext {
             }
             Role role = new Role(r, builder, getRelDefNode(r, builder));
             roles.put(r, role);
+            managersVersion.incrementAndGet();
         }
     }
 
@@ -229,6 +592,23 @@ public class MockCloudContext extends  AbstractCloudContext {
     }
 
 
+    /**
+     * A number which changes every time the node managers or roles change, so that clouds know
+     * when their cached node managers and relation managers are invalid.
+     */
+    int getManagersVersion() {
+        return managersVersion.get();
+    }
+
+    /**
+     * Invalidates the cached managers of the clouds, and lets everybody know that the node
+     * managers changed.
+     */
+    void buildersRead() {
+        managersVersion.incrementAndGet();
+        EventManager.getInstance().propagateEvent(new BuildersRead(this));
+    }
+
     public void addNodeManager(String name, Map<String, DataType> map) {
         Map<String, Field> m = new HashMap<String, Field>();
         for (Map.Entry<String, DataType> e : map.entrySet()) {
@@ -236,7 +616,8 @@ public class MockCloudContext extends  AbstractCloudContext {
         }
 
         nodeManagers.put(name, new NodeManagerDescription(name, m, getTypeDefNode(name)));
-        EventManager.getInstance().propagateEvent(new BuildersRead(this));
+        createUniqueIndices(name);
+        buildersRead();
     }
 
     public void addNodeManager(InputSource source) {
@@ -244,12 +625,14 @@ public class MockCloudContext extends  AbstractCloudContext {
             MockBuilderReader reader = new MockBuilderReader(source, this);
             addNodeManager(reader);
         }
-        EventManager.getInstance().propagateEvent(new BuildersRead(this));
+        buildersRead();
     }
 
     protected void addNodeManager(MockBuilderReader reader) {
         if (! nodeManagers.containsKey(reader.getName())) {
             nodeManagers.put(reader.getName(), new NodeManagerDescription(reader, getTypeDefNode(reader.getName())));
+            managersVersion.incrementAndGet();
+            createUniqueIndices(reader.getName());
         } else {
             LOG.service("Builder with name '" + reader.getName() + "' already exists");
         }
@@ -268,28 +651,548 @@ public class MockCloudContext extends  AbstractCloudContext {
                 }
             }
         }
-        EventManager.getInstance().propagateEvent(new BuildersRead(this));
+        buildersRead();
     }
 
-    public synchronized int addNode(String type, Map<String, Object> map) {
+    public int addNode(String type, Map<String, Object> map) {
         return addNode(new NodeDescription(type, map));
     }
 
-    synchronized int addNode(NodeDescription nd) {
-        int number = ++lastNodeNumber;
-        nodes.put(number, nd);
-        nd.values.put("number", number);
+    int addNode(NodeDescription nd) {
+        int number;
+        long position;
+        List<Event> events = new ArrayList<Event>(2);
+        lock.writeLock().lock();
+        try {
+            for (String alias : nd.aliases) {
+                checkAlias(alias, -1);
+            }
+            number = lastNodeNumber.incrementAndGet();
+            nd.values.put("number", number);
+            // if columnar, the caller's description is not the stored one, but they share their aliases
+            NodeDescription stored = columnar ? new NodeDescription(nd.type, store(nd.type, nd.values), nd.aliases) : nd;
+            nodes.put(number, stored);
+            index(stored, number);
+            for (String alias : nd.aliases) {
+                nodesByAlias.put(alias, number);
+            }
+            position = journal == null ? -1 : journal.logNode(number, nd.type, nd.values, nd.aliases);
+            event(events, number, nd.type, nd.values, null, nd.values, Event.TYPE_NEW);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // waiting for the journal happens without locks, so that other commits can be grouped with this one
+        commit(position);
+        propagate(events);
         //System.out.println("produced " + number + " " + map);
         return number;
     }
 
-    synchronized void setNodeType(int node, String type) {
-        NodeDescription nd = nodes.get(node);
-        if (!nd.type.equals(type)) {
-            NodeDescription newDesc = new NodeDescription(type, nd.values);
-            newDesc.aliases.addAll(nd.aliases);
-            nodes.put(node, newDesc);
+    /**
+     * Adds a node with a given number, e.g. from a {@link Snapshot}, or replaces it.
+     */
+    void putNode(int number, NodeDescription nd) {
+        lock.writeLock().lock();
+        try {
+            put(number, nd);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        int last = lastNodeNumber.get();
+        while (number > last && ! lastNodeNumber.compareAndSet(last, number)) {
+            last = lastNodeNumber.get();
+        }
+    }
+
+    /**
+     * Stores a node with its indices, replacing the previous version if there is one. Must be
+     * called while holding the write lock of {@link #lock}.
+     */
+    private void put(Integer number, NodeDescription nd) {
+        NodeDescription stored = columnar ? new NodeDescription(nd.type, store(nd.type, nd.values), nd.aliases) : nd;
+        NodeDescription previous = nodes.put(number, stored);
+        if (previous != null) {
+            unindex(previous, number);
+            for (String alias : previous.aliases) {
+                if (! stored.aliases.contains(alias)) {
+                    nodesByAlias.remove(alias, number);
+                }
+            }
+            if (previous.values != stored.values) {
+                ColumnStore.release(previous.values);
+            }
+        }
+        index(stored, number);
+        for (String alias : stored.aliases) {
+            nodesByAlias.put(alias, number);
+        }
+    }
+
+    /**
+     * Removes a node and its indices. Must be called while holding the write lock of {@link #lock}.
+     * @return The removed node, or <code>null</code> if there was no such node
+     */
+    private NodeDescription remove(Integer number) {
+        NodeDescription nd = nodes.remove(number);
+        if (nd != null) {
+            unindex(nd, number);
+            for (String alias : nd.aliases) {
+                nodesByAlias.remove(alias, number);
+            }
+            ColumnStore.release(nd.values);
+        }
+        return nd;
+    }
+
+    /**
+     * Stores a batch of new nodes, e.g. for a {@link BulkLoader}. The write lock is taken once,
+     * and no events are propagated. The index on type is maintained, but the indices on field
+     * values of the types of the nodes are not, until {@link #endLoad}. Queries do not use them
+     * meanwhile.
+     *
+     * @return The numbers of the new nodes
+     * @throws BridgeException if one of the aliases is in use, or is used twice in the batch. None
+     * of the nodes is stored then.
+     */
+    int[] addNodes(List<NodeDescription> batch) {
+        int[] numbers = new int[batch.size()];
+        long position = -1;
+        lock.writeLock().lock();
+        try {
+            // all aliases are checked first, so that either all nodes are stored, or none
+            Set<String> aliases = new HashSet<String>();
+            for (NodeDescription nd : batch) {
+                for (String alias : nd.aliases) {
+                    checkAlias(alias, -1);
+                    if (! aliases.add(alias)) {
+                        throw new BridgeException("Alias '" + alias + "' could not be created. It is used twice in the batch");
+                    }
+                }
+            }
+            int i = 0;
+            for (NodeDescription nd : batch) {
+                loading.add(nd.type);
+                int number = lastNodeNumber.incrementAndGet();
+                nd.values.put("number", number);
+                put(number, nd);
+                if (journal != null) {
+                    position = journal.logNode(number, nd.type, nd.values, nd.aliases);
+                }
+                numbers[i++] = number;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+        return numbers;
+    }
+
+    /**
+     * Builds the indices on the field values of the given types, after their nodes were {@linkplain
+     * #addNodes loaded}.
+     */
+    void endLoad(Collection<String> types) {
+        lock.writeLock().lock();
+        try {
+            for (String type : types) {
+                if (loading.remove(type)) {
+                    Collection<FieldIndex> indices = getFieldIndices(type);
+                    for (FieldIndex fieldIndex : indices) {
+                        fieldIndex.clear();
+                    }
+                    if (! indices.isEmpty()) {
+                        for (Integer number : getNodeNumbers(type)) {
+                            Map<String, Object> values = nodes.get(number).values;
+                            for (FieldIndex fieldIndex : indices) {
+                                fieldIndex.add(number, values);
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hands out the number for a new node, which is stored later, e.g. when its {@link
+     * MockTransaction} is committed.
+     */
+    int newNodeNumber() {
+        return lastNodeNumber.incrementAndGet();
+    }
+
+    /**
+     * Applies the changes of a {@link MockTransaction} at once. The write lock is taken once, and
+     * the journal is waited for once. Either all changes are applied, or none.
+     *
+     * @param written  The new versions of the changed and created nodes, with all their values and aliases
+     * @param deleted  The numbers of the nodes to remove
+     * @param bases    The versions of the existing nodes on which the changes are based. Because
+     *                 a stored node description is replaced on every change of the node, a node
+     *                 is changed since if it is not the same object any more.
+     * @throws BridgeException if one of the aliases is in use by another node, or if one of the
+     *                 nodes was changed or deleted since its base version
+     */
+    void apply(Map<Integer, NodeDescription> written, Collection<Integer> deleted, Map<Integer, NodeDescription> bases) {
+        long position = -1;
+        List<Event> events = new ArrayList<Event>();
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<Integer, NodeDescription> entry : bases.entrySet()) {
+                if (nodes.get(entry.getKey()) != entry.getValue()) {
+                    throw new BridgeException("Node " + entry.getKey() + " was changed or deleted by someone else");
+                }
+            }
+            Map<String, Integer> claimed = new HashMap<String, Integer>();
+            for (Map.Entry<Integer, NodeDescription> entry : written.entrySet()) {
+                Integer number = entry.getKey();
+                for (String alias : entry.getValue().aliases) {
+                    Integer other = claimed.put(alias, number);
+                    if (other == null) {
+                        other = nodesByAlias.get(alias);
+                        // aliases of nodes which are deleted or lose them in the same batch can be reused
+                        if (other != null && (deleted.contains(other) || (written.containsKey(other) && ! written.get(other).aliases.contains(alias)))) {
+                            other = null;
+                        }
+                    }
+                    if (other != null && ! other.equals(number)) {
+                        throw new BridgeException("Alias '" + alias + "' could not be created. It is an alias for node " + other);
+                    }
+                }
+            }
+            for (Integer number : deleted) {
+                NodeDescription removed = remove(number);
+                if (removed != null) {
+                    if (journal != null) {
+                        position = journal.logDelete(number);
+                    }
+                    event(events, number, removed.type, removed.values, removed.values, null, Event.TYPE_DELETE);
+                }
+            }
+            for (Map.Entry<Integer, NodeDescription> entry : written.entrySet()) {
+                Integer number = entry.getKey();
+                NodeDescription nd = entry.getValue();
+                nd.values.put("number", number);
+                NodeDescription previous = nodes.get(number);
+                if (previous == null) {
+                    event(events, number, nd.type, nd.values, null, nd.values, Event.TYPE_NEW);
+                } else {
+                    changeEvent(events, number, nd.type, previous.values, nd.values);
+                }
+                put(number, nd);
+                if (journal != null) {
+                    position = journal.logNode(number, nd.type, nd.values, nd.aliases);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+        // all events of the transaction are delivered together, after all of its changes are visible
+        propagate(events);
+    }
+
+    int getLastNodeNumber() {
+        return lastNodeNumber.get();
+    }
+
+    void setLastNodeNumber(int number) {
+        lastNodeNumber.set(number);
+    }
+
+    /**
+     * Writes the complete contents of this cloud context to a binary {@linkplain Snapshot snapshot} file.
+     * @since MMBase-2.0
+     */
+    public void writeSnapshot(java.io.File file) throws java.io.IOException {
+        Snapshot.write(this, file, 0);
+    }
+
+    /**
+     * Replaces the contents of this cloud context by those of a snapshot file, which was written
+     * with {@link #writeSnapshot}. The file is mapped in memory, and the values of the nodes are
+     * only decoded when needed, so it must not be changed while this cloud context is in use.
+     * @since MMBase-2.0
+     */
+    public void readSnapshot(java.io.File file) throws java.io.IOException {
+        if (journal != null) {
+            throw new IllegalStateException("Cannot read a snapshot while " + journal + " is open");
+        }
+        Snapshot.read(this, file);
+    }
+
+    /**
+     * Makes this cloud context durable. The directory contains a snapshot (see {@link
+     * #writeSnapshot}) and a {@link Journal} of the changes after that. If the directory contains
+     * a snapshot already, this cloud context is replaced by it, and the changes in the journal are
+     * replayed, after which the cloud context is compacted if the journal was not empty. Otherwise a
+     * snapshot of the current contents is written.
+     *
+     * From then on, all changes to the nodes and aliases are logged to the journal. Changes to the
+     * object model are not, they are only stored by the next {@linkplain #compact compaction}.
+     *
+     * @param sync When the changes are forced to disk
+     * @param interval For {@link Journal.Sync#INTERVAL}, the number of milliseconds between syncs
+     * @return The journal, e.g. to {@linkplain Journal#setCompactSize configure} it
+     * @since MMBase-2.0
+     */
+    public Journal openJournal(java.io.File directory, Journal.Sync sync, long interval) throws java.io.IOException {
+        synchronized(nodeManagers) {
+            synchronized(this) {
+                if (journal != null) {
+                    throw new IllegalStateException(journal + " is open already");
+                }
+                directory.mkdirs();
+                java.io.File snapshot = new java.io.File(directory, "snapshot");
+                java.io.File journalFile = new java.io.File(directory, "journal");
+                Snapshot.recover(snapshot);
+                boolean restored = snapshot.exists();
+                long generation = 0;
+                boolean replayed = false;
+                if (restored) {
+                    // the nodes are only restored, they do not change
+                    propagating = false;
+                    try {
+                        generation = Snapshot.read(this, snapshot);
+                        if (Journal.getGeneration(journalFile) == generation) {
+                            // a journal with records (possibly a partial one at the end) must be emptied before new records are appended
+                            replayed = journalFile.length() > Journal.HEADER;
+                            Journal.replay(this, journalFile);
+                        } else if (journalFile.exists()) {
+                            // compaction stopped after the snapshot was written
+                            LOG.service("Not replaying " + journalFile + ", because its changes are in " + snapshot + " already");
+                        }
+                    } finally {
+                        propagating = true;
+                    }
+                }
+                journalDirectory = directory;
+                journal = new Journal(journalFile, sync, interval, generation);
+                if (! restored || replayed) {
+                    // the replayed changes are stored in the snapshot, so a partial record at the end of the journal does not stay behind
+                    compact();
+                }
+                return journal;
+            }
+        }
+    }
+
+    /**
+     * Stores the current contents in a new snapshot, and empties the journal.
+     * @throws IllegalStateException if there is no journal
+     * @since MMBase-2.0
+     */
+    public void compact() throws java.io.IOException {
+        synchronized(nodeManagers) {
+            synchronized(this) {
+                lock.writeLock().lock();
+                try {
+                    if (journal == null) {
+                        throw new IllegalStateException("No journal");
+                    }
+                    // written to a temporary file first, so the old snapshot stays intact if this fails
+                    long generation = journal.getGeneration() + 1;
+                    Snapshot.write(this, new java.io.File(journalDirectory, "snapshot"), generation);
+                    // if this does not happen, the journal is recognized as older than the snapshot
+                    journal.truncate(generation);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the outstanding changes of the journal, and detaches it.
+     * @since MMBase-2.0
+     */
+    public synchronized void closeJournal() throws java.io.IOException {
+        if (journal != null) {
+            lock.writeLock().lock();
+            try {
+                journal.close();
+                journal = null;
+                journalDirectory = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Waits until the change logged at the given position in the journal is written, and compacts
+     * the journal if it becomes too large. Must not be called while holding the write lock of {@link #lock}.
+     */
+    private void commit(long position) {
+        Journal j = journal;
+        if (position < 0 || j == null) {
+            return;
+        }
+        try {
+            j.commit(position);
+            if (j.needsCompaction()) {
+                compact();
+            }
+        } catch (java.io.IOException ioe) {
+            throw new BridgeException("Could not write " + j + ": " + ioe.getMessage(), ioe);
+        }
+    }
+
+    void setNodeType(int node, String type) {
+        long position = -1;
+        lock.writeLock().lock();
+        try {
+            NodeDescription nd = nodes.get(node);
+            if (!nd.type.equals(type)) {
+                NodeDescription newDesc = new NodeDescription(type, columnar ? store(type, nd.values) : nd.values, nd.aliases);
+                nodes.put(node, newDesc);
+                unindex(nd, node);
+                index(newDesc, node);
+                if (newDesc.values != nd.values) {
+                    // moved to the columns of the new type
+                    ColumnStore.release(nd.values);
+                }
+                position = journal == null ? -1 : journal.logType(node, type);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+    }
 
+    /**
+     * Stores new values for a node, and updates the indices on its field values.
+     *
+     * Unless this cloud context is columnar, the values of a stored node are never changed, but
+     * replaced by a new version. So a reader which obtained a node description without locking,
+     * always sees a consistent version of the node. The node description itself is always
+     * replaced, also if the values in the columns are changed in place, so that {@link #apply}
+     * can recognize changed nodes.
+     *
+     * @param nd  The description of the node, which may also be a previous version of the one
+     *            that is currently stored. The values are stored in the current one.
+     */
+    void setValues(int node, NodeDescription nd, Map<String, Object> values) {
+        long position;
+        List<Event> events = new ArrayList<Event>(2);
+        lock.writeLock().lock();
+        try {
+            NodeDescription current = nodes.get(node);
+            if (current != null) {
+                changeEvent(events, node, current.type, current.values, values);
+            }
+            Collection<FieldIndex> indices = current == null ? Collections.<FieldIndex>emptyList() : getFieldIndices(current.type);
+            Map<String, Object> stored = current == null ? nd.values : current.values;
+            for (FieldIndex fieldIndex : indices) {
+                fieldIndex.remove(node, stored);
+            }
+            if (current != null && ! columnar) {
+                stored = new HashMap<String, Object>(stored);
+                stored.putAll(values);
+                nodes.put(node, new NodeDescription(current.type, stored, current.aliases));
+            } else if (current != null && stored instanceof Snapshot.LazyValues) {
+                // values of a snapshot get a row in the column store once they are changed
+                Map<String, Object> changed = new HashMap<String, Object>(stored);
+                changed.putAll(values);
+                stored = store(current.type, changed);
+                nodes.put(node, new NodeDescription(current.type, stored, current.aliases));
+            } else {
+                stored.putAll(values);
+                if (current != null) {
+                    nodes.put(node, new NodeDescription(current.type, stored, current.aliases));
+                }
+            }
+            for (FieldIndex fieldIndex : indices) {
+                fieldIndex.add(node, stored);
+            }
+            position = journal == null || current == null ? -1 : journal.logValues(node, values);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+        propagate(events);
+    }
+
+    void removeNode(int node) {
+        long position = -1;
+        List<Event> events = new ArrayList<Event>(2);
+        lock.writeLock().lock();
+        try {
+            NodeDescription removed = remove(node);
+            if (removed != null) {
+                position = journal == null ? -1 : journal.logDelete(node);
+                event(events, node, removed.type, removed.values, removed.values, null, Event.TYPE_DELETE);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        commit(position);
+        propagate(events);
+    }
+
+    /**
+     * Adds the events for a change of a node: a {@link NodeEvent}, and if the node is a relation,
+     * also a {@link RelationEvent}. Must be called while holding the write lock of {@link #lock},
+     * and before the node is removed, because the types of related nodes are looked up.
+     * @param values  All values of the node, to recognize and describe relations
+     */
+    private void event(List<Event> events, int number, String type, Map<String, Object> values,
+                       Map<String, Object> oldValues, Map<String, Object> newValues, int eventType) {
+        if (! propagating) {
+            return;
+        }
+        NodeEvent event = new NodeEvent(MACHINE_NAME, type, number, oldValues, newValues, eventType);
+        events.add(event);
+        if (values.containsKey("snumber") && values.containsKey("dnumber") && values.containsKey("rnumber")) {
+            int source      = Casting.toInt(values.get("snumber"));
+            int destination = Casting.toInt(values.get("dnumber"));
+            NodeDescription sourceNode      = nodes.get(source);
+            NodeDescription destinationNode = nodes.get(destination);
+            events.add(new RelationEvent(event, source, destination,
+                                         sourceNode == null ? null : sourceNode.type,
+                                         destinationNode == null ? null : destinationNode.type,
+                                         Casting.toInt(values.get("rnumber"))));
+        }
+    }
+
+    /**
+     * Adds the events for changed values, if any value really changed. Only the changed fields
+     * are in the old and new values of the event.
+     */
+    private void changeEvent(List<Event> events, int number, String type, Map<String, Object> before, Map<String, Object> after) {
+        if (! propagating) {
+            return;
+        }
+        Map<String, Object> oldValues = new HashMap<String, Object>();
+        Map<String, Object> newValues = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            Object previous = before.get(entry.getKey());
+            Object value = entry.getValue();
+            if (previous == null ? value != null : ! previous.equals(value)) {
+                oldValues.put(entry.getKey(), previous);
+                newValues.put(entry.getKey(), value);
+            }
+        }
+        if (! newValues.isEmpty()) {
+            Map<String, Object> values = new HashMap<String, Object>(before);
+            values.putAll(after);
+            event(events, number, type, values, oldValues, newValues, Event.TYPE_CHANGE);
+        }
+    }
+
+    /**
+     * Delivers events to the {@link EventManager}. Must not be called while holding the write
+     * lock of {@link #lock}, because listeners will want to read nodes.
+     */
+    private void propagate(List<Event> events) {
+        for (Event event : events) {
+            EventManager.getInstance().propagateEvent(event);
         }
     }
 
@@ -312,6 +1215,15 @@ public class MockCloudContext extends  AbstractCloudContext {
         return getUri() + "#" + hashCode() + "(" + nodes.size() + " nodes, nodemanagers: " + nodeManagers.keySet() + ", roles: " + roles.keySet() + ")";
     }
 
+    /**
+     * Executes a query of one of the clouds of this cloud context. This implementation uses the
+     * given in-memory query handler.
+     * @since MMBase-2.0
+     */
+    List<Map<String, Object>> getRecords(MockCloud cloud, QueryHandler handler, Query query) {
+        return handler.getRecords(query);
+    }
+
     @Override
     public SearchQueryHandler getSearchQueryHandler() {
         throw new UnsupportedOperationException();
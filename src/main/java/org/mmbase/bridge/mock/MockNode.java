@@ -34,8 +34,13 @@ public class MockNode extends MapNode<Object> implements Node  {
     private String context = "default";
     private boolean isNew;
 
+    // alias changes of a committed node, which are applied on commit
+    private final Set<String> createdAliases = new LinkedHashSet<String>();
+    private final Set<String> deletedAliases = new LinkedHashSet<String>();
+
     MockNode(MockCloudContext.NodeDescription nodeDescription, MockCloud cloud, boolean isNew) {
-        super(new HashMap<String, Object>(nodeDescription.values), cloud.getNodeManager(nodeDescription.type));
+        super(new Values(cloud.cloudContext.isColumnar() ? cloud.cloudContext.copyValues(nodeDescription) : nodeDescription.values),
+              cloud.getNodeManager(nodeDescription.type));
         this.nodeDescription = nodeDescription;
         this.cloud = cloud;
         this.isNew = isNew;
@@ -53,14 +58,23 @@ public class MockNode extends MapNode<Object> implements Node  {
         } finally {
             getCloud().setProperty(CLOUD_COMMITNODE_KEY, prev);
         }
-        if (! nodeDescription.values.containsKey("number")) {
-            // This is a new node, so generate a number first
-            int number = cloud.getCloudContext().addNode(nodeDescription);
-            values.put("number", number);
-        }
-        nodeDescription.values.putAll(values);
-        cloud.getCloudContext().setNodeType(getNumber(), getNodeManager().getName());
+        values.put("number", cloud.commitNode(nodeDescription, values, getNodeManager().getName()));
         isNew = false;
+        for (String alias : deletedAliases) {
+            cloud.deleteAlias(getNumber(), alias);
+        }
+        deletedAliases.clear();
+        for (String alias : createdAliases) {
+            cloud.createAlias(getNumber(), alias);
+        }
+        createdAliases.clear();
+    }
+
+    @Override
+    public void cancel() {
+        createdAliases.clear();
+        deletedAliases.clear();
+        super.cancel();
     }
     @Override
     public Object getValueWithoutProcess(String fieldName) {
@@ -103,22 +117,123 @@ public class MockNode extends MapNode<Object> implements Node  {
 
     @Override
     public StringList getAliases() {
-        return new BasicStringList(nodeDescription.aliases);
+        StringList aliases = new BasicStringList(nodeDescription.aliases);
+        aliases.removeAll(deletedAliases);
+        aliases.addAll(createdAliases);
+        return aliases;
     }
 
+    /**
+     * Aliases of new nodes are indexed when the node is added. Alias changes of other nodes are
+     * applied on {@link #commit}, and discarded by {@link #cancel}.
+     */
     @Override
     public void createAlias(String aliasName) {
-        nodeDescription.aliases.add(aliasName);
+        if (nodeDescription.values.containsKey("number")) {
+            cloud.getCloudContext().checkAlias(aliasName, getNumber());
+            if (! deletedAliases.remove(aliasName) && ! nodeDescription.aliases.contains(aliasName)) {
+                createdAliases.add(aliasName);
+            }
+        } else {
+            // not yet committed, the alias is indexed as soon as it is
+            cloud.getCloudContext().checkAlias(aliasName, -1);
+            nodeDescription.aliases.add(aliasName);
+        }
     }
 
     @Override
     public void deleteAlias(String aliasName) {
-        nodeDescription.aliases.remove(aliasName);
+        if (nodeDescription.values.containsKey("number")) {
+            if (! createdAliases.remove(aliasName) && nodeDescription.aliases.contains(aliasName)) {
+                deletedAliases.add(aliasName);
+            }
+        } else {
+            nodeDescription.aliases.remove(aliasName);
+        }
     }
 
     @Override
     public void delete(boolean deleteRelations) {
-        cloud.cloudContext.nodes.remove(getNumber());
+        cloud.deleteNode(getNumber());
+    }
+
+    /**
+     * The values of a MockNode. They are read from the values of the node description, which are
+     * never changed once stored (unless they are columnar, in which case they are copied
+     * first). A private map with the changes is only created when a value is set, and removed
+     * values are administrated separately, so that they are not present any more.
+     */
+    static class Values extends AbstractMap<String, Object> {
+        private final Map<String, Object> shared;
+        private Map<String, Object> changes = null;
+        // keys of shared values which are removed
+        private Set<String> removed = null;
+
+        Values(Map<String, Object> shared) {
+            this.shared = shared;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (changes != null && changes.containsKey(key)) {
+                return changes.get(key);
+            }
+            if (removed != null && removed.contains(key)) {
+                return null;
+            }
+            return shared.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            if (changes != null && changes.containsKey(key)) {
+                return true;
+            }
+            return (removed == null || ! removed.contains(key)) && shared.containsKey(key);
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            Object previous = get(key);
+            if (changes == null) {
+                changes = new HashMap<String, Object>();
+            }
+            changes.put(key, value);
+            if (removed != null) {
+                removed.remove(key);
+            }
+            return previous;
+        }
+
+        @Override
+        public Object remove(Object key) {
+            Object previous = get(key);
+            if (changes != null) {
+                changes.remove(key);
+            }
+            if (shared.containsKey(key)) {
+                if (removed == null) {
+                    removed = new HashSet<String>();
+                }
+                removed.add((String) key);
+            }
+            return previous;
+        }
+
+        /**
+         * A copy of the shared values with the changes applied.
+         */
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            Map<String, Object> copy = new HashMap<String, Object>(shared);
+            if (removed != null) {
+                copy.keySet().removeAll(removed);
+            }
+            if (changes != null) {
+                copy.putAll(changes);
+            }
+            return Collections.unmodifiableMap(copy).entrySet();
+        }
     }
 
 }
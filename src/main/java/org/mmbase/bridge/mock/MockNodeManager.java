@@ -36,6 +36,7 @@ public class MockNodeManager extends AbstractNodeManager  {
     protected final int oType;
     protected final List<Function<?>> functions = new ArrayList<Function<?>>();
     protected String context = "default";
+    private Set<String> descendantNames = null;
 
     public MockNodeManager(MockCloud cloud, NodeManagerDescription desc) {
         super(cloud);
@@ -154,6 +155,80 @@ public class MockNodeManager extends AbstractNodeManager  {
         }
     }
 
+    /**
+     * The names of all node managers extending this one, directly or indirectly. They are
+     * determined once, because a node manager is not reused by its cloud after the node managers
+     * changed.
+     */
+    Set<String> getDescendantNames() {
+        if (descendantNames == null) {
+            Map<String, List<String>> children = new HashMap<String, List<String>>();
+            synchronized(vcloud.cloudContext.nodeManagers) {
+                for (NodeManagerDescription desc : vcloud.cloudContext.nodeManagers.values()) {
+                    String e = desc.reader != null ? desc.reader.getExtends() : null;
+                    if (e != null && e.length() > 0) {
+                        List<String> list = children.get(e);
+                        if (list == null) {
+                            list = new ArrayList<String>();
+                            children.put(e, list);
+                        }
+                        list.add(desc.name);
+                    }
+                }
+            }
+            Set<String> result = new LinkedHashSet<String>();
+            Deque<String> todo = new ArrayDeque<String>();
+            todo.add(name);
+            while (! todo.isEmpty()) {
+                List<String> list = children.get(todo.removeFirst());
+                if (list != null) {
+                    for (String child : list) {
+                        if (result.add(child)) {
+                            todo.add(child);
+                        }
+                    }
+                }
+            }
+            descendantNames = Collections.unmodifiableSet(result);
+        }
+        return descendantNames;
+    }
+
+    /**
+     * The descendants are converted to node managers only when they are used. As long as the
+     * list is not changed, {@link List#contains} does not need to look at them at all.
+     */
+    @Override
+    public NodeManagerList getDescendants() {
+        final Set<String> names = getDescendantNames();
+        return new BasicNodeManagerList(names, vcloud) {
+            private boolean changed = false;
+            @Override
+            public boolean contains(Object o) {
+                if (! changed && o instanceof NodeManager) {
+                    NodeManager nm = (NodeManager) o;
+                    return names.contains(nm.getName()) && nm.getCloud().equals(vcloud);
+                }
+                return super.contains(o);
+            }
+            @Override
+            public NodeManager set(int i, NodeManager nm) {
+                changed = true;
+                return super.set(i, nm);
+            }
+            @Override
+            public void add(int i, NodeManager nm) {
+                changed = true;
+                super.add(i, nm);
+            }
+            @Override
+            public NodeManager remove(int i) {
+                changed = true;
+                return super.remove(i);
+            }
+        };
+    }
+
     @Override
     public Collection<Function<?>>  getFunctions() {
         return Collections.unmodifiableList(functions);
@@ -32,6 +32,8 @@ public class MockRelationManager extends MockNodeManager implements RelationMana
         this.role = r;
         this.source = source;
         this.destination = destination;
+        // like in MMBase, the number of a relation manager is the number of its role (the 'reldef' node)
+        values.put("number", cloud.getCloudContext().roles.get(r).number);
     }
     @Override
     public String getForwardRole() {
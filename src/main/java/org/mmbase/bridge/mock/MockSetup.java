@@ -21,6 +21,9 @@ import javax.servlet.*;
   </pre>
  * This arranges the MockCloudContext to be (minimalisticly) set up, so that a mock bridge is available. E.g. to test taglib or so.
  *
+ * If the context parameter {@value #SNAPSHOT} refers to an existing file, the MockCloudContext is
+ * {@linkplain MockCloudContext#readSnapshot read} from that snapshot in stead.
+ *
  * @author  Michiel Meeuwissen
  * @version $Id$
  * @since   MMBase-1.9.2
@@ -28,6 +31,8 @@ import javax.servlet.*;
 
 public class MockSetup implements ServletContextListener {
 
+    public static final String SNAPSHOT = "mmbase.mock.snapshot";
+
     @Override
     public void	contextDestroyed(ServletContextEvent sce) {
         MockCloudContext.getInstance().clear();
@@ -36,7 +41,12 @@ public class MockSetup implements ServletContextListener {
     @Override
     public void contextInitialized(ServletContextEvent sce) {
         try {
-            MockCloudContext.getInstance().addCore();
+            String snapshot = sce.getServletContext().getInitParameter(SNAPSHOT);
+            if (snapshot != null && new java.io.File(snapshot).isFile()) {
+                MockCloudContext.getInstance().readSnapshot(new java.io.File(snapshot));
+            } else {
+                MockCloudContext.getInstance().addCore();
+            }
         } catch (java.io.IOException ioe) {
             sce.getServletContext().log(ioe.getMessage(), ioe);
         }
@@ -9,10 +9,23 @@ See http://www.MMBase.org/license
 */
 
 package org.mmbase.bridge.mock;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
 import org.mmbase.bridge.*;
+import org.mmbase.core.event.*;
 
 /**
- * MockTransaction for the moment only does't give too much exceptions. It doesn't actually work, so {@link #cancel} still throws UnsupportedOperationException.
+ * A transaction on a {@link MockCloudContext}. Created, changed and deleted nodes, and changed
+ * aliases, are kept in a private write set, which is {@linkplain MockCloudContext#apply applied} at
+ * once on {@link #commit}, and discarded on {@link #cancel}. The node events of a commit are
+ * delivered together afterwards, followed by a {@link TransactionEvent.Commit}.
+ *
+ * Nodes and aliases are read from the write set first. Queries are still executed on the shared
+ * nodes only, though the nodes in their results are the versions of this transaction.
+ *
+ * Transactions are optimistic: the version of every shared node which is changed or deleted is
+ * remembered, and the commit fails, without applying anything, if one of those nodes was changed
+ * or deleted by someone else in the meantime.
  *
  * @author  Michiel Meeuwissen
  * @version $Id$
@@ -24,29 +37,66 @@ public class MockTransaction extends MockCloud implements Transaction {
 
     private final NodeList nodes;
     private final MockCloud cloud;
+
+    /**
+     * The versions of the nodes as changed or created in this transaction.
+     */
+    private final Map<Integer, MockCloudContext.NodeDescription> written = new LinkedHashMap<Integer, MockCloudContext.NodeDescription>();
+    private final Set<Integer> deleted = new LinkedHashSet<Integer>();
+
+    /**
+     * The versions of the shared nodes on which the changes of this transaction are based.
+     */
+    private final Map<Integer, MockCloudContext.NodeDescription> bases = new HashMap<Integer, MockCloudContext.NodeDescription>();
+
+    private boolean committed = false;
+    private boolean canceled = false;
+
     MockTransaction(String n, MockCloud cloud) {
         super(n, cloud.getCloudContext(), cloud.getUser());
         this.cloud = cloud;
         nodes = cloud.createNodeList();
     }
 
+    private void checkOpen() {
+        if (committed || canceled) {
+            throw new BridgeException("Transaction " + getName() + " is already " + (committed ? "committed" : "canceled"));
+        }
+    }
+
+    /**
+     * @throws BridgeException If a node changed in this transaction was changed outside it since
+     * it was read. Nothing is committed then, and the transaction stays open.
+     */
     @Override
     public boolean commit() {
+        checkOpen();
+        cloudContext.apply(written, deleted, bases);
+        written.clear();
+        deleted.clear();
+        bases.clear();
+        committed = true;
+        EventManager.getInstance().propagateEvent(new TransactionEvent.Commit(getName()));
         return true;
     }
 
     @Override
     public void cancel() {
-        throw new UnsupportedOperationException();
+        checkOpen();
+        written.clear();
+        deleted.clear();
+        bases.clear();
+        canceled = true;
+        EventManager.getInstance().propagateEvent(new TransactionEvent.Cancel(getName()));
     }
     @Override
     public boolean isCommitted() {
-        return true;
+        return committed;
     }
 
     @Override
     public boolean isCanceled() {
-        return false;
+        return canceled;
     }
 
     @Override
@@ -66,6 +116,119 @@ public class MockTransaction extends MockCloud implements Transaction {
         return node;
     }
 
+    @Override
+    public Node getNode(int number) throws NotFoundException {
+        if (deleted.contains(number)) {
+            throw new NotFoundException("Node " + number + " was deleted in " + this);
+        }
+        MockCloudContext.NodeDescription nd = written.get(number);
+        if (nd != null && ! nd.type.equals("typedef")) {
+            return getNode(nd, false);
+        }
+        return super.getNode(number);
+    }
+
+    @Override
+    public boolean hasNode(int number) {
+        return written.containsKey(number) || (! deleted.contains(number) && super.hasNode(number));
+    }
+
+    @Override
+    Integer getNodeNumber(String alias) {
+        for (Map.Entry<Integer, MockCloudContext.NodeDescription> entry : written.entrySet()) {
+            if (entry.getValue().aliases.contains(alias)) {
+                return entry.getKey();
+            }
+        }
+        Integer number = super.getNodeNumber(alias);
+        if (number != null && (deleted.contains(number) || written.containsKey(number))) {
+            // deleted, or the alias was removed in this transaction
+            return null;
+        }
+        return number;
+    }
+
+    /**
+     * Remembers the version of a shared node on which the changes of this transaction are based,
+     * if there is none yet.
+     */
+    private void setBase(int number, MockCloudContext.NodeDescription shared) {
+        if (! bases.containsKey(number)) {
+            bases.put(number, shared);
+        }
+    }
+
+    /**
+     * Returns the version of the node in this transaction, creating it from the shared one if
+     * it was not yet changed.
+     */
+    private MockCloudContext.NodeDescription getWritten(int number) {
+        MockCloudContext.NodeDescription nd = written.get(number);
+        if (nd == null) {
+            if (deleted.contains(number)) {
+                throw new NotFoundException("Node " + number + " was deleted in " + this);
+            }
+            MockCloudContext.NodeDescription shared = cloudContext.nodes.get(number);
+            if (shared == null) {
+                throw new NotFoundException("No node with number " + number);
+            }
+            setBase(number, shared);
+            nd = new MockCloudContext.NodeDescription(shared.type, cloudContext.copyValues(shared), new CopyOnWriteArraySet<String>(shared.aliases));
+            written.put(number, nd);
+        }
+        return nd;
+    }
+
+    @Override
+    int commitNode(MockCloudContext.NodeDescription nd, Map<String, Object> values, String type) {
+        checkOpen();
+        int number;
+        Set<String> aliases;
+        if (! nd.values.containsKey("number")) {
+            number = cloudContext.newNodeNumber();
+            nd.values.put("number", number);
+            aliases = new CopyOnWriteArraySet<String>(nd.aliases);
+        } else {
+            number = org.mmbase.util.Casting.toInt(nd.values.get("number"));
+            if (! written.containsKey(number)) {
+                // the node was read from the shared nodes
+                setBase(number, nd);
+            }
+            aliases = getWritten(number).aliases;
+        }
+        Map<String, Object> copy = new HashMap<String, Object>(values);
+        copy.put("number", number);
+        written.put(number, new MockCloudContext.NodeDescription(type, copy, aliases));
+        return number;
+    }
+
+    @Override
+    void createAlias(int number, String alias) {
+        checkOpen();
+        Integer existing = getNodeNumber(alias);
+        if (existing != null && existing.intValue() != number) {
+            throw new BridgeException("Alias '" + alias + "' could not be created. It is an alias for node " + existing);
+        }
+        getWritten(number).aliases.add(alias);
+    }
+
+    @Override
+    void deleteAlias(int number, String alias) {
+        checkOpen();
+        getWritten(number).aliases.remove(alias);
+    }
+
+    @Override
+    void deleteNode(int number) {
+        checkOpen();
+        written.remove(number);
+        MockCloudContext.NodeDescription shared = cloudContext.nodes.get(number);
+        if (shared != null) {
+            setBase(number, shared);
+            deleted.add(number);
+        }
+    }
+
     @Override
     public Cloud getNonTransactionalCloud() {
         Cloud result = cloud;
@@ -75,6 +238,9 @@ public class MockTransaction extends MockCloud implements Transaction {
         return result;
     }
 
+    @Override
+    public String toString() {
+        return "MockTransaction:" + getName() + "#" + hashCode() + "@" + cloudContext;
+    }
 
 }
-
@@ -30,37 +30,39 @@ class MultilevelQueryHandler extends AbstractQueryHandler  {
 
     @Override
     public List<Map<String, Object>> getRecords(Query query) {
-        if (query.getSteps().size() == 1) {
-            if (query.getConstraint() != null) {
-                throw new UnsupportedOperationException("No support for queries with constraints yet");
-            } else {
-                List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
-
-                NodeManager nm = query.getCloud().getNodeManager(query.getSteps().get(0).getTableName());
-                Set<String> wantedNodeManagers = getNodeManagerAndDescendants(nm);
-                for (MockCloudContext.NodeDescription nd : cloud.cloudContext.nodes.values()) {
-                    if (wantedNodeManagers.contains(nd.type)) {
-                        Map<String, Object> result = new HashMap<String, Object>();
-                        for (StepField sf : query.getFields()) {
-                            String key = sf.getAlias();
-                            if (key == null) {
-
-                                String prefix = sf.getStep().getAlias();
-                                if (prefix == null) {
-                                    prefix = sf.getStep().getTableName();
-                                }
-                                key = prefix + "." + sf.getFieldName();
-                            }
-                            result.put(key, nd.values.get(sf.getFieldName()));
-                        }
-                        list.add(result);
-                    }
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+        List<StepField> fields = query.getFields();
+        int[] steps = new int[fields.size()];
+        String[] keys = new String[fields.size()];
+        for (int i = 0; i < steps.length; i++) {
+            StepField sf = fields.get(i);
+            steps[i] = ConstraintMatcher.indexOf(query.getSteps(), sf.getStep());
+            keys[i] = getKey(sf);
+        }
+        List<MockCloudContext.NodeDescription[]> rows = getRows(query);
+        if (query.isDistinct()) {
+            Set<List<Object>> seen = new HashSet<List<Object>>();
+            List<MockCloudContext.NodeDescription[]> distinct = new ArrayList<MockCloudContext.NodeDescription[]>();
+            for (MockCloudContext.NodeDescription[] row : rows) {
+                Object[] values = new Object[steps.length];
+                for (int i = 0; i < steps.length; i++) {
+                    values[i] = row[steps[i]].values.get(fields.get(i).getFieldName());
                 }
-                return list;
+                if (seen.add(Arrays.asList(values))) {
+                    distinct.add(row);
+                }
+            }
+            rows = distinct;
+        }
+        // only the records of the requested page are created
+        for (MockCloudContext.NodeDescription[] row : order(rows, query)) {
+            Map<String, Object> result = new HashMap<String, Object>();
+            for (int i = 0; i < steps.length; i++) {
+                result.put(keys[i], row[steps[i]].values.get(fields.get(i).getFieldName()));
             }
-        } else {
-            throw new UnsupportedOperationException("No support for queries with more than one step yet");
+            list.add(result);
         }
+        return list;
     }
 
 
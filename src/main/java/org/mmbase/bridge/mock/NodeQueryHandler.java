@@ -32,23 +32,24 @@ class NodeQueryHandler extends AbstractQueryHandler  {
     public List<Map<String, Object>> getRecords(Query query) {
         assert query instanceof NodeQuery;
         NodeQuery nq = (NodeQuery) query;
-        if (query.getSteps().size() == 1) {
-            if (query.getConstraint() != null) {
-                throw new UnsupportedOperationException();
-            } else {
-                List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
-                Set<String> wantedNodeManagers = getNodeManagerAndDescendants(nq.getNodeManager());
-                for (MockCloudContext.NodeDescription nd : cloud.cloudContext.nodes.values()) {
-                    //System.out.println("Checking " + nd);
-                    if (wantedNodeManagers.contains(nd.type)) {
-                        list.add(nd.values);
-                    }
+        int nodeStep = ConstraintMatcher.indexOf(query.getSteps(), nq.getNodeStep());
+        List<MockCloudContext.NodeDescription[]> rows = getRows(query);
+        if (query.isDistinct()) {
+            Set<MockCloudContext.NodeDescription> seen = new HashSet<MockCloudContext.NodeDescription>();
+            List<MockCloudContext.NodeDescription[]> distinct = new ArrayList<MockCloudContext.NodeDescription[]>();
+            for (MockCloudContext.NodeDescription[] row : rows) {
+                if (seen.add(row[nodeStep])) {
+                    distinct.add(row);
                 }
-                return list;
             }
-        } else {
-            throw new UnsupportedOperationException();
+            rows = distinct;
         }
+        rows = order(rows, query);
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(rows.size());
+        for (MockCloudContext.NodeDescription[] row : rows) {
+            list.add(row[nodeStep].values);
+        }
+        return list;
     }
 
 
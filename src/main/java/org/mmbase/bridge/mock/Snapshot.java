@@ -0,0 +1,558 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.NodeManagerDescription;
+import org.mmbase.datatypes.DataType;
+import org.mmbase.util.logging.*;
+import org.w3c.dom.Document;
+
+/**
+ * Reads and writes the complete contents of a {@link MockCloudContext} (node managers, roles,
+ * allowed relations, nodes and aliases) from and to a binary snapshot file. A snapshot is read
+ * with {@link FileChannel#map}, and the values of a node are only decoded when they are first
+ * needed, so that even a large snapshot is loaded quickly.
+ *
+ * The format of a snapshot is:
+ * <ul>
+ *   <li>header: magic number, version, generation of the {@link Journal}, last node number</li>
+ *   <li>node managers: name, otype, properties, and the builder XML (or the serialized data types of the fields)</li>
+ *   <li>roles and allowed relations</li>
+ *   <li>rows: for every node the number of values, and then per value the index of the field
+ *       name in the string table, a tag for its type and the value itself</li>
+ *   <li>string table: type and field names</li>
+ *   <li>node index: for every node its number, the index of its type and the position of its row</li>
+ *   <li>aliases</li>
+ *   <li>trailer: position of the string table, magic number</li>
+ * </ul>
+ * Because the positions are ints, and a file can be mapped in one buffer only if it is smaller
+ * than 2 GB, that is the maximum size of a snapshot. The file must not be changed as long as the
+ * cloud context read from it is in use (it may be replaced by a new snapshot). Indices are not
+ * stored; the ones on unique fields are only built when a query needs them.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+class Snapshot {
+
+    private static final Logger log = Logging.getLoggerInstance(Snapshot.class);
+
+    static final int MAGIC   = 0x4d4d4b53; // MMKS
+    static final int VERSION = 2;
+
+    private static final byte NULL    = 0;
+    private static final byte INTEGER = 1;
+    private static final byte LONG    = 2;
+    private static final byte DOUBLE  = 3;
+    private static final byte FLOAT   = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte STRING  = 6;
+    private static final byte DATE    = 7;
+    private static final byte BYTES   = 8;
+    private static final byte OBJECT  = 9;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the cloud context. The cloud context is locked while doing so. The
+     * snapshot is written to a temporary file first, which replaces the given file only if it was
+     * written completely. So an existing snapshot is not damaged if writing fails, and it can even
+     * be the one the cloud context was read from. If the file cannot be replaced in one step, and
+     * the process stops right after it was removed, the temporary file is {@linkplain #recover
+     * recovered}.
+     *
+     * @param generation The generation of the journal of which the changes are in the snapshot
+     */
+    static void write(MockCloudContext cloudContext, File file, long generation) throws IOException {
+        File temp = getTemporaryFile(file);
+        FileOutputStream fileOut = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 1 << 16));
+        boolean written = false;
+        try {
+            synchronized(cloudContext.nodeManagers) {
+                synchronized(cloudContext) {
+                    cloudContext.lock.readLock().lock();
+                    try {
+                        write(cloudContext, out, generation);
+                    } finally {
+                        cloudContext.lock.readLock().unlock();
+                    }
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+            out.close();
+            written = true;
+        } finally {
+            if (! written) {
+                out.close();
+                temp.delete();
+            }
+        }
+        if (! temp.renameTo(file)) {
+            // e.g. on windows, where an existing file cannot be replaced
+            file.delete();
+            if (! temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * The current size of the snapshot being written, to be used as a position in it.
+     * @throws IOException If the snapshot became too large for int positions. {@link
+     * DataOutputStream#size} does not overflow, but stays at <code>Integer.MAX_VALUE</code> then.
+     */
+    private static int position(DataOutputStream out) throws IOException {
+        int size = out.size();
+        if (size == Integer.MAX_VALUE) {
+            throw new IOException("The snapshot is larger than 2GB");
+        }
+        return size;
+    }
+
+    private static File getTemporaryFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * If a snapshot was being replaced when the process stopped, there may only be the temporary
+     * file with the new snapshot. That is then renamed to the snapshot. An incomplete temporary
+     * file is removed.
+     */
+    static void recover(File file) throws IOException {
+        File temp = getTemporaryFile(file);
+        if (temp.exists()) {
+            if (! file.exists() && isComplete(temp)) {
+                log.service("Recovering " + file + " from " + temp);
+                if (! temp.renameTo(file)) {
+                    throw new IOException("Could not rename " + temp + " to " + file);
+                }
+            } else {
+                temp.delete();
+            }
+        }
+    }
+
+    private static boolean isComplete(File file) throws IOException {
+        if (file.length() < 16) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.readInt() != MAGIC) {
+                return false;
+            }
+            raf.seek(raf.length() - 4);
+            return raf.readInt() == MAGIC;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void write(MockCloudContext cloudContext, DataOutputStream out, long generation) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+        out.writeInt(cloudContext.getLastNodeNumber());
+
+        out.writeInt(cloudContext.nodeManagers.size());
+        for (NodeManagerDescription description : cloudContext.nodeManagers.values()) {
+            writeString(out, description.name);
+            out.writeInt(description.oType);
+            out.writeInt(description.properties.size());
+            for (Map.Entry<String, String> property : description.properties.entrySet()) {
+                writeString(out, property.getKey());
+                writeString(out, property.getValue());
+            }
+            if (description.reader != null) {
+                out.writeBoolean(true);
+                writeBytes(out, toXml(description.reader.getDocument()));
+            } else {
+                out.writeBoolean(false);
+                out.writeInt(description.fields.size());
+                for (Field field : description.fields.values()) {
+                    writeString(out, field.getName());
+                    writeBytes(out, serialize(field.getDataType()));
+                }
+            }
+        }
+
+        out.writeInt(cloudContext.roles.size());
+        for (MockCloudContext.Role role : cloudContext.roles.values()) {
+            writeString(out, role.name);
+            writeString(out, role.nodeManager);
+            out.writeInt(role.number);
+        }
+        out.writeInt(cloudContext.allowed.size());
+        for (MockCloudContext.AllowedRelation allowed : cloudContext.allowed.values()) {
+            writeString(out, allowed.role);
+            writeString(out, allowed.sourceType);
+            writeString(out, allowed.destType);
+        }
+
+        Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        int size = cloudContext.nodes.size();
+        int[] numbers   = new int[size];
+        int[] types     = new int[size];
+        int[] positions = new int[size];
+        int i = 0;
+        int rowsStart = position(out);
+        for (Map.Entry<Integer, MockCloudContext.NodeDescription> entry : cloudContext.nodes.entrySet()) {
+            MockCloudContext.NodeDescription nd = entry.getValue();
+            numbers[i]   = entry.getKey();
+            types[i]     = getIndex(strings, nd.type);
+            positions[i] = position(out) - rowsStart;
+            Map<String, Object> values = new HashMap<String, Object>(nd.values);
+            out.writeInt(values.size());
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                out.writeInt(getIndex(strings, value.getKey()));
+                writeValue(out, value.getValue());
+            }
+            i++;
+        }
+
+        int stringsPosition = position(out);
+        out.writeInt(strings.size());
+        for (String string : strings.keySet()) {
+            writeString(out, string);
+        }
+        out.writeInt(rowsStart);
+        out.writeInt(size);
+        for (i = 0; i < size; i++) {
+            out.writeInt(numbers[i]);
+            out.writeInt(types[i]);
+            out.writeInt(positions[i]);
+        }
+        int aliases = 0;
+        for (MockCloudContext.NodeDescription nd : cloudContext.nodes.values()) {
+            aliases += nd.aliases.size();
+        }
+        out.writeInt(aliases);
+        for (Map.Entry<Integer, MockCloudContext.NodeDescription> entry : cloudContext.nodes.entrySet()) {
+            for (String alias : entry.getValue().aliases) {
+                writeString(out, alias);
+                out.writeInt(entry.getKey());
+            }
+        }
+        out.writeInt(stringsPosition);
+        out.writeInt(MAGIC);
+        // the whole file must fit in one mapped buffer
+        position(out);
+    }
+
+    /**
+     * Replaces the contents of the cloud context by those of a snapshot.
+     */
+    /**
+     * Replaces the contents of the cloud context by those of a snapshot.
+     * @return The generation of the journal of which the changes are in the snapshot
+     */
+    static long read(MockCloudContext cloudContext, File file) throws IOException {
+        MappedByteBuffer buffer;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // the mapping stays valid after the channel is closed
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        if (buffer.limit() < 24 || buffer.getInt(buffer.limit() - 4) != MAGIC || buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a snapshot of a mock cloud context");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(file + " is a snapshot of version " + version + ", which is not supported");
+        }
+
+        cloudContext.clear();
+        cloudContext.roles.clear();
+        cloudContext.allowed.clear();
+
+        buffer.position(8);
+        long generation = buffer.getLong();
+        int lastNodeNumber = buffer.getInt();
+
+        List<String> nodeManagers = new ArrayList<String>();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String name = readString(buffer);
+            int oType = buffer.getInt();
+            Map<String, String> properties = new HashMap<String, String>();
+            int propertyCount = buffer.getInt();
+            for (int j = 0; j < propertyCount; j++) {
+                properties.put(readString(buffer), readString(buffer));
+            }
+            NodeManagerDescription description;
+            if (buffer.get() != 0) {
+                // the parent is already available, because node managers are written in the order they were added
+                MockBuilderReader reader = new MockBuilderReader(toDocument(readBytes(buffer)), cloudContext);
+                description = new NodeManagerDescription(reader, oType);
+            } else {
+                Map<String, Field> fields = new HashMap<String, Field>();
+                int fieldCount = buffer.getInt();
+                for (int j = 0; j < fieldCount; j++) {
+                    String fieldName = readString(buffer);
+                    fields.put(fieldName, new MockField(fieldName, null, (DataType) deserialize(readBytes(buffer))));
+                }
+                description = new NodeManagerDescription(name, fields, oType);
+            }
+            description.properties.putAll(properties);
+            cloudContext.nodeManagers.put(name, description);
+            nodeManagers.add(name);
+        }
+
+        count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            MockCloudContext.Role role = new MockCloudContext.Role(readString(buffer), readString(buffer), buffer.getInt());
+            cloudContext.roles.put(role.name, role);
+        }
+        count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            MockCloudContext.AllowedRelation allowed = new MockCloudContext.AllowedRelation(readString(buffer), readString(buffer), readString(buffer));
+            cloudContext.allowed.put(allowed.role, allowed);
+        }
+
+        buffer.position(buffer.getInt(buffer.limit() - 8));
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(buffer);
+        }
+        int rowsStart = buffer.getInt();
+        int nodes = buffer.getInt();
+        for (int i = 0; i < nodes; i++) {
+            int number   = buffer.getInt();
+            String type  = strings[buffer.getInt()];
+            int position = buffer.getInt();
+            cloudContext.putNode(number, new MockCloudContext.NodeDescription(type, new LazyValues(buffer, rowsStart + position, strings)));
+        }
+        count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String alias = readString(buffer);
+            cloudContext.createAlias(buffer.getInt(), alias);
+        }
+        cloudContext.setLastNodeNumber(lastNodeNumber);
+        for (String name : nodeManagers) {
+            // building them would decode the values of all nodes
+            cloudContext.deferUniqueIndices(name);
+        }
+        log.service("Read " + nodes + " nodes from " + file);
+        cloudContext.buildersRead();
+        return generation;
+    }
+
+    private static int getIndex(Map<String, Integer> strings, String string) {
+        Integer index = strings.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+        }
+        return index;
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, string.getBytes("UTF-8"));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) throws IOException {
+        return new String(readBytes(buffer), "UTF-8");
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Node) {
+            // stored as node number
+            out.writeByte(INTEGER);
+            out.writeInt(((Node) value).getNumber());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (value.getClass() == Date.class) {
+            out.writeByte(DATE);
+            out.writeLong(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) value);
+        } else {
+            out.writeByte(OBJECT);
+            writeBytes(out, serialize(value));
+        }
+    }
+
+    static Object readValue(ByteBuffer buffer) throws IOException {
+        byte tag = buffer.get();
+        switch(tag) {
+        case NULL:    return null;
+        case INTEGER: return buffer.getInt();
+        case LONG:    return buffer.getLong();
+        case DOUBLE:  return buffer.getDouble();
+        case FLOAT:   return buffer.getFloat();
+        case BOOLEAN: return buffer.get() != 0;
+        case STRING:  return readString(buffer);
+        case DATE:    return new Date(buffer.getLong());
+        case BYTES:   return readBytes(buffer);
+        case OBJECT:  return deserialize(readBytes(buffer));
+        default:
+            throw new IOException("Unknown tag " + tag + " at " + (buffer.position() - 1));
+        }
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException cnfe) {
+            throw new IOException(cnfe.getMessage(), cnfe);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] toXml(Document document) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(bytes));
+            return bytes.toByteArray();
+        } catch (javax.xml.transform.TransformerException te) {
+            throw new IOException(te.getMessage(), te);
+        }
+    }
+
+    private static Document toDocument(byte[] xml) throws IOException {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+        } catch (javax.xml.parsers.ParserConfigurationException pce) {
+            throw new IOException(pce.getMessage(), pce);
+        } catch (org.xml.sax.SAXException se) {
+            throw new IOException(se.getMessage(), se);
+        }
+    }
+
+    /**
+     * The values of a node in a snapshot, which are decoded on first use.
+     */
+    static class LazyValues extends AbstractMap<String, Object> {
+        private ByteBuffer buffer;
+        private final int position;
+        private final String[] strings;
+        private Map<String, Object> values = null;
+
+        LazyValues(ByteBuffer buffer, int position, String[] strings) {
+            this.buffer = buffer;
+            this.position = position;
+            this.strings = strings;
+        }
+
+        private synchronized Map<String, Object> getValues() {
+            if (values == null) {
+                ByteBuffer row = buffer.duplicate();
+                row.position(position);
+                int size = row.getInt();
+                Map<String, Object> decoded = new HashMap<String, Object>(size * 4 / 3 + 1);
+                try {
+                    for (int i = 0; i < size; i++) {
+                        String key = strings[row.getInt()];
+                        decoded.put(key, readValue(row));
+                    }
+                } catch (IOException ioe) {
+                    throw new IllegalStateException(ioe.getMessage(), ioe);
+                }
+                values = decoded;
+                buffer = null;
+            }
+            return values;
+        }
+
+        /**
+         * Whether the values were decoded already.
+         */
+        synchronized boolean isDecoded() {
+            return values != null;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return getValues().get(key);
+        }
+        @Override
+        public boolean containsKey(Object key) {
+            return getValues().containsKey(key);
+        }
+        @Override
+        public Object put(String key, Object value) {
+            return getValues().put(key, value);
+        }
+        @Override
+        public Object remove(Object key) {
+            return getValues().remove(key);
+        }
+        @Override
+        public int size() {
+            return getValues().size();
+        }
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return getValues().entrySet();
+        }
+    }
+
+}
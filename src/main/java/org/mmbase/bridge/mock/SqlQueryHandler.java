@@ -0,0 +1,671 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import java.util.*;
+import org.mmbase.bridge.Field;
+import org.mmbase.bridge.Node;
+import org.mmbase.bridge.NodeQuery;
+import org.mmbase.bridge.util.NodeManagerDescription;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.Casting;
+
+/**
+ * Translates {@link SearchQuery}s to SQL for the tables of a {@link JdbcCloudContext}. Every node
+ * manager has a table <code>mm_&lt;name&gt;</code>, with a column per stored field. Like in MMBase
+ * itself, a node is stored in the table of its type and in those of all its ancestors, so that a
+ * step never needs a union.
+ *
+ * The SQL is standard (SQL:2008 paging with <code>OFFSET</code> and <code>FETCH FIRST</code>), and
+ * runs on H2 and Derby. Values are passed as parameters, so that the statements can be prepared
+ * once. Queries with features which cannot be translated (regular expressions, date parts, legacy
+ * constraints) are refused with a {@link SearchQueryException}, and their support level is {@link
+ * #SUPPORT_NONE}.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @todo    EXPERIMENTAL
+ */
+
+public class SqlQueryHandler implements SearchQueryHandler {
+
+    /**
+     * The maximal length of a <code>VARCHAR</code> column (in Derby).
+     */
+    static final int MAX_VARCHAR = 32672;
+
+    /**
+     * A compiled query: SQL with '?' for the parameters, and how to read the result.
+     */
+    static class SqlQuery {
+        final String sql;
+        final List<Object> parameters;
+        /**
+         * The keys of the selected columns in the records, or <code>null</code> for columns which are
+         * only selected to sort on
+         */
+        final String[] keys;
+        final int[] types;
+        /**
+         * The node managers of which the tables are used
+         */
+        final Set<String> tables;
+        SqlQuery(String sql, List<Object> parameters, List<String> keys, List<Integer> types, Set<String> tables) {
+            this.sql = sql;
+            this.parameters = parameters;
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.types = new int[types.size()];
+            for (int i = 0; i < this.types.length; i++) {
+                this.types[i] = types.get(i);
+            }
+            this.tables = tables;
+        }
+        @Override
+        public String toString() {
+            return sql + " " + parameters;
+        }
+    }
+
+    private final MockCloudContext cloudContext;
+
+    /**
+     * The columns per node manager, for {@link #columnsVersion} of the node managers.
+     */
+    private final Map<String, Map<String, Field>> columns = new java.util.concurrent.ConcurrentHashMap<String, Map<String, Field>>();
+    private volatile int columnsVersion = -1;
+
+    public SqlQueryHandler(MockCloudContext cloudContext) {
+        this.cloudContext = cloudContext;
+    }
+
+    static String quote(String identifier) {
+        return "\"" + identifier + "\"";
+    }
+
+    static String getTableName(String type) {
+        return quote("mm_" + type);
+    }
+
+    /**
+     * The SQL type of the column for a field, or <code>null</code> if the field is not stored.
+     */
+    static String getSqlType(Field field) {
+        if (field.isVirtual()) {
+            return null;
+        }
+        switch(field.getType()) {
+        case Field.TYPE_STRING:
+        case Field.TYPE_XML:
+            int length = field.getMaxLength();
+            return "VARCHAR(" + (length > 0 && length < MAX_VARCHAR ? length : MAX_VARCHAR) + ")";
+        case Field.TYPE_NODE:
+        case Field.TYPE_INTEGER:  return "INTEGER";
+        case Field.TYPE_LONG:     return "BIGINT";
+        case Field.TYPE_FLOAT:    return "REAL";
+        case Field.TYPE_DOUBLE:   return "DOUBLE";
+        case Field.TYPE_DECIMAL:  return "DECIMAL(31, 10)";
+        case Field.TYPE_BOOLEAN:  return "BOOLEAN";
+        case Field.TYPE_DATETIME: return "TIMESTAMP";
+        case Field.TYPE_BINARY:   return "BLOB";
+        default:                  return null;
+        }
+    }
+
+    /**
+     * The {@link java.sql.Types} constant for the column of a field type, e.g. to set <code>NULL</code>.
+     */
+    static int getJdbcType(int type) {
+        switch(type) {
+        case Field.TYPE_STRING:
+        case Field.TYPE_XML:      return java.sql.Types.VARCHAR;
+        case Field.TYPE_LONG:     return java.sql.Types.BIGINT;
+        case Field.TYPE_FLOAT:    return java.sql.Types.REAL;
+        case Field.TYPE_DOUBLE:   return java.sql.Types.DOUBLE;
+        case Field.TYPE_DECIMAL:  return java.sql.Types.DECIMAL;
+        case Field.TYPE_BOOLEAN:  return java.sql.Types.BOOLEAN;
+        case Field.TYPE_DATETIME: return java.sql.Types.TIMESTAMP;
+        case Field.TYPE_BINARY:   return java.sql.Types.BLOB;
+        default:                  return java.sql.Types.INTEGER;
+        }
+    }
+
+    /**
+     * Converts a value of a field to the object which is stored in its column.
+     */
+    static Object toSql(int type, Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch(type) {
+        case Field.TYPE_STRING:
+        case Field.TYPE_XML:      return Casting.toString(value);
+        case Field.TYPE_NODE:     return value instanceof Node ? ((Node) value).getNumber() : Casting.toInteger(value);
+        case Field.TYPE_INTEGER:  return Casting.toInteger(value);
+        case Field.TYPE_LONG:     return Casting.toLong(value);
+        case Field.TYPE_FLOAT:    return Casting.toFloat(value);
+        case Field.TYPE_DOUBLE:   return Casting.toDouble(value);
+        case Field.TYPE_DECIMAL:  return Casting.toDecimal(value);
+        case Field.TYPE_BOOLEAN:  return Casting.toBoolean(value);
+        case Field.TYPE_DATETIME: return new java.sql.Timestamp(Casting.toDate(value).getTime());
+        case Field.TYPE_BINARY:   return Casting.toByte(value);
+        default:                  return value;
+        }
+    }
+
+    /**
+     * Converts a value read from a column to the value of the field.
+     */
+    static Object fromSql(int type, Object value) throws java.sql.SQLException {
+        if (value == null) {
+            return null;
+        }
+        switch(type) {
+        case Field.TYPE_NODE:
+        case Field.TYPE_INTEGER:  return Casting.toInteger(value);
+        case Field.TYPE_LONG:     return Casting.toLong(value);
+        case Field.TYPE_FLOAT:    return Casting.toFloat(value);
+        case Field.TYPE_DOUBLE:   return Casting.toDouble(value);
+        case Field.TYPE_BOOLEAN:  return Casting.toBoolean(value);
+        case Field.TYPE_DATETIME: return new Date(((java.util.Date) value).getTime());
+        case Field.TYPE_BINARY:
+            if (value instanceof java.sql.Blob) {
+                java.sql.Blob blob = (java.sql.Blob) value;
+                return blob.getBytes(1, (int) blob.length());
+            }
+            return value;
+        default:                  return value;
+        }
+    }
+
+    /**
+     * The stored fields of a node manager, which are the columns of its table. The first one is
+     * always 'number', which is the primary key.
+     * @return The columns, or <code>null</code> if there is no such node manager
+     */
+    Map<String, Field> getColumns(String type) {
+        int version = cloudContext.getManagersVersion();
+        if (version != columnsVersion) {
+            columns.clear();
+            columnsVersion = version;
+        }
+        Map<String, Field> result = columns.get(type);
+        if (result == null) {
+            result = createColumns(type);
+            if (result != null && version == cloudContext.getManagersVersion()) {
+                columns.put(type, result);
+            }
+        }
+        return result;
+    }
+
+    private Map<String, Field> createColumns(String type) {
+        NodeManagerDescription description = cloudContext.nodeManagers.get(type);
+        if (description == null) {
+            return null;
+        }
+        Map<String, Field> result = new LinkedHashMap<String, Field>();
+        Field number = description.fields.get("number");
+        result.put("number", number == null ? new MockField("number", null, org.mmbase.datatypes.Constants.DATATYPE_INTEGER) : number);
+        for (Field field : description.fields.values()) {
+            if (getSqlType(field) != null) {
+                result.put(field.getName(), field);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * The node manager and its ancestors, which are the tables in which a node of it is stored.
+     */
+    List<String> getAncestorsAndSelf(String type) {
+        List<String> result = new ArrayList<String>();
+        String t = type;
+        while (t != null && t.length() > 0 && ! result.contains(t)) {
+            NodeManagerDescription description = cloudContext.nodeManagers.get(t);
+            if (description == null) {
+                break;
+            }
+            result.add(t);
+            t = description.reader == null ? null : description.reader.getExtends();
+        }
+        return result;
+    }
+
+
+    @Override
+    public int getSupportLevel(int feature, SearchQuery query) throws SearchQueryException {
+        switch(feature) {
+        case FEATURE_MAX_NUMBER: return SUPPORT_NORMAL;
+            // the skipped rows are still read by the database
+        case FEATURE_OFFSET:     return SUPPORT_WEAK;
+        default:                 return SUPPORT_NONE;
+        }
+    }
+
+    @Override
+    public int getSupportLevel(Constraint constraint, SearchQuery query) throws SearchQueryException {
+        try {
+            new Compiler(query, "s", new ArrayList<Object>(), new HashSet<String>()).appendConstraint(new StringBuilder(), constraint);
+        } catch (SearchQueryException sqe) {
+            return SUPPORT_NONE;
+        }
+        return getSupportLevel(constraint);
+    }
+
+    private int getSupportLevel(Constraint constraint) {
+        if (constraint instanceof CompositeConstraint) {
+            int level = SUPPORT_OPTIMAL;
+            for (Constraint child : ((CompositeConstraint) constraint).getChilds()) {
+                level = Math.min(level, getSupportLevel(child));
+            }
+            return level;
+        } else if (constraint instanceof FieldValueInQueryConstraint) {
+            return SUPPORT_WEAK;
+        } else if (constraint instanceof FieldConstraint) {
+            FieldConstraint c = (FieldConstraint) constraint;
+            if (c.getField().getFieldName().equals("number")) {
+                // primary key
+                return SUPPORT_OPTIMAL;
+            }
+            int type = getType(c.getField());
+            if (! c.isCaseSensitive() && (type == Field.TYPE_STRING || type == Field.TYPE_XML)) {
+                // LOWER() makes that no index can be used
+                return SUPPORT_WEAK;
+            }
+        }
+        return SUPPORT_NORMAL;
+    }
+
+    @Override
+    public String createSqlString(SearchQuery query) throws SearchQueryException {
+        SqlQuery compiled = compile(query);
+        StringBuilder result = new StringBuilder();
+        Iterator<Object> parameters = compiled.parameters.iterator();
+        // the compiled SQL contains no literals, so every '?' is a parameter
+        for (char c : compiled.sql.toCharArray()) {
+            if (c == '?') {
+                result.append(toLiteral(parameters.next()));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String toLiteral(Object value) {
+        if (value == null) {
+            return "NULL";
+        } else if (value instanceof String) {
+            return "'" + ((String) value).replace("'", "''") + "'";
+        } else if (value instanceof java.sql.Timestamp) {
+            return "TIMESTAMP '" + value + "'";
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? "TRUE" : "FALSE";
+        } else if (value instanceof byte[]) {
+            StringBuilder hex = new StringBuilder("X'");
+            for (byte b : (byte[]) value) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.append("'").toString();
+        } else {
+            return value.toString();
+        }
+    }
+
+    /**
+     * Translates a query to SQL. The result has the same records as the one of the in-memory query
+     * handler which {@link MockCloud} would use for the query.
+     * @throws SearchQueryException if the query cannot be translated
+     */
+    SqlQuery compile(SearchQuery query) throws SearchQueryException {
+        List<Object> parameters = new ArrayList<Object>();
+        Set<String> tables = new HashSet<String>();
+        List<String> keys = new ArrayList<String>();
+        List<Integer> types = new ArrayList<Integer>();
+        String sql = new Compiler(query, "s", parameters, tables).compile(keys, types);
+        return new SqlQuery(sql, parameters, keys, types, tables);
+    }
+
+    private int getType(StepField field) {
+        Map<String, Field> columns = getColumns(field.getStep().getTableName());
+        Field f = columns == null ? null : columns.get(field.getFieldName());
+        return f == null ? field.getType() : f.getType();
+    }
+
+    /**
+     * Translates a LIKE pattern of a constraint to SQL, for use with <code>ESCAPE '\'</code>. In
+     * the constraint '?' matches any character too, like '_' (see {@link
+     * org.mmbase.storage.search.implementation.ConstraintPredicate}), and there is no escape
+     * character.
+     */
+    static String getLikePattern(String like) {
+        StringBuilder result = new StringBuilder(like.length());
+        for (int i = 0; i < like.length(); i++) {
+            char ch = like.charAt(i);
+            if (ch == '?') {
+                result.append('_');
+            } else {
+                if (ch == '\\') {
+                    result.append('\\');
+                }
+                result.append(ch);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String getOperator(int operator) throws SearchQueryException {
+        switch(operator) {
+        case FieldCompareConstraint.LESS:          return " < ";
+        case FieldCompareConstraint.LESS_EQUAL:    return " <= ";
+        case FieldCompareConstraint.EQUAL:         return " = ";
+        case FieldCompareConstraint.NOT_EQUAL:     return " <> ";
+        case FieldCompareConstraint.GREATER:       return " > ";
+        case FieldCompareConstraint.GREATER_EQUAL: return " >= ";
+        case FieldCompareConstraint.LIKE:          return " LIKE ";
+        default: throw new SearchQueryException("Operator " + operator + " is not supported");
+        }
+    }
+
+    /**
+     * Compiles one query, which may be a sub query of another one. The steps of the query get the
+     * table aliases <code>&lt;prefix&gt;0</code>, <code>&lt;prefix&gt;1</code> etc.
+     */
+    private class Compiler {
+        private final SearchQuery query;
+        private final List<Step> steps;
+        private final String prefix;
+        private final List<Object> parameters;
+        private final Set<String> tables;
+
+        Compiler(SearchQuery query, String prefix, List<Object> parameters, Set<String> tables) {
+            this.query = query;
+            this.steps = query.getSteps();
+            this.prefix = prefix;
+            this.parameters = parameters;
+            this.tables = tables;
+        }
+
+        String compile(List<String> keys, List<Integer> types) throws SearchQueryException {
+            StringBuilder sql = new StringBuilder("SELECT ");
+            boolean aggregating = query.isAggregating();
+            boolean nodeQuery = ! aggregating && query instanceof NodeQuery;
+            if (query.isDistinct() && ! aggregating) {
+                sql.append("DISTINCT ");
+            }
+            List<String> columns = new ArrayList<String>();
+            List<String> groupBy = new ArrayList<String>();
+            for (StepField field : query.getFields()) {
+                if (nodeQuery && ! isStored(field)) {
+                    // the node is read from the cloud anyway
+                    continue;
+                }
+                String column = getColumn(field);
+                if (aggregating) {
+                    AggregatedField af = (AggregatedField) field;
+                    int type = getType(field);
+                    switch(af.getAggregationType()) {
+                    case AggregatedField.AGGREGATION_TYPE_GROUP_BY:       groupBy.add(column); break;
+                    case AggregatedField.AGGREGATION_TYPE_COUNT:          column = "COUNT(" + column + ")"; type = Field.TYPE_INTEGER; break;
+                    case AggregatedField.AGGREGATION_TYPE_COUNT_DISTINCT: column = "COUNT(DISTINCT " + column + ")"; type = Field.TYPE_INTEGER; break;
+                    case AggregatedField.AGGREGATION_TYPE_MIN:            column = "MIN(" + column + ")"; break;
+                    case AggregatedField.AGGREGATION_TYPE_MAX:            column = "MAX(" + column + ")"; break;
+                    default: throw new SearchQueryException("Aggregation type " + af.getAggregationType() + " is not supported");
+                    }
+                    keys.add(field.getAlias() == null ? field.getFieldName() : field.getAlias());
+                    types.add(type);
+                } else {
+                    keys.add(nodeQuery ? field.getFieldName() : AbstractQueryHandler.getKey(field));
+                    types.add(getType(field));
+                }
+                columns.add(column);
+            }
+            if (nodeQuery && ! keys.contains("number")) {
+                columns.add(prefix + ConstraintMatcher.indexOf(steps, ((NodeQuery) query).getNodeStep()) + "." + quote("number"));
+                keys.add("number");
+                types.add(Field.TYPE_INTEGER);
+            }
+            if (columns.isEmpty()) {
+                throw new SearchQueryException("No fields in " + query);
+            }
+
+            StringBuilder orderBy = new StringBuilder();
+            for (SortOrder sortOrder : query.getSortOrders()) {
+                if (sortOrder instanceof DateSortOrder) {
+                    throw new SearchQueryException("Sorting on date parts is not supported (" + sortOrder + ")");
+                }
+                String expression = getExpression(sortOrder.getField(), sortOrder.isCaseSensitive());
+                if (query.isDistinct() && ! aggregating && ! columns.contains(expression)) {
+                    // with distinct, the sorted columns must be selected too
+                    columns.add(expression);
+                    keys.add(null);
+                    types.add(getType(sortOrder.getField()));
+                }
+                orderBy.append(orderBy.length() == 0 ? " ORDER BY " : ", ").append(expression);
+                // null values come last when ascending, like in memory (see Queries#compare), which Queries#createKeysetConstraint relies on
+                if (sortOrder.getDirection() == SortOrder.ORDER_DESCENDING) {
+                    orderBy.append(" DESC NULLS FIRST");
+                } else {
+                    orderBy.append(" NULLS LAST");
+                }
+            }
+
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(columns.get(i)).append(" AS c").append(i);
+            }
+            appendFromAndWhere(sql);
+            for (int i = 0; i < groupBy.size(); i++) {
+                sql.append(i == 0 ? " GROUP BY " : ", ").append(groupBy.get(i));
+            }
+            sql.append(orderBy);
+            if (query.getOffset() > 0) {
+                sql.append(" OFFSET ").append(query.getOffset()).append(" ROWS");
+            }
+            if (query.getMaxNumber() != SearchQuery.DEFAULT_MAX_NUMBER) {
+                sql.append(" FETCH FIRST ").append(query.getMaxNumber()).append(" ROWS ONLY");
+            }
+            return sql.toString();
+        }
+
+        void appendFromAndWhere(StringBuilder sql) throws SearchQueryException {
+            sql.append(" FROM ");
+            for (int i = 0; i < steps.size(); i++) {
+                String type = steps.get(i).getTableName();
+                if (getColumns(type) == null) {
+                    throw new SearchQueryException("No node manager '" + type + "'");
+                }
+                tables.add(type);
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(getTableName(type)).append(" ").append(prefix).append(i);
+            }
+            StringBuilder where = new StringBuilder();
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                String number = prefix + i + "." + quote("number");
+                SortedSet<Integer> nodes = step.getNodes();
+                if (nodes != null && ! nodes.isEmpty()) {
+                    and(where).append(number).append(" IN (");
+                    appendParameters(where, nodes, Field.TYPE_INTEGER, true);
+                    where.append(")");
+                }
+                if (step instanceof RelationStep) {
+                    RelationStep relationStep = (RelationStep) step;
+                    if (i == 0 || i == steps.size() - 1) {
+                        throw new SearchQueryException("Relation step " + step + " is not between two steps");
+                    }
+                    if (relationStep.getRole() != null) {
+                        and(where).append(prefix).append(i).append(".").append(quote("rnumber")).append(" = ?");
+                        parameters.add(relationStep.getRole());
+                    }
+                    String previous = prefix + (i - 1) + "." + quote("number");
+                    String next     = prefix + (i + 1) + "." + quote("number");
+                    String source      = prefix + i + "." + quote("snumber");
+                    String destination = prefix + i + "." + quote("dnumber");
+                    int directionality = relationStep.getDirectionality();
+                    // 'previous is source' is allowed unless only the source direction is requested, and vice versa
+                    boolean previousIsSource      = directionality != RelationStep.DIRECTIONS_SOURCE;
+                    boolean previousIsDestination = directionality != RelationStep.DIRECTIONS_DESTINATION;
+                    and(where).append("(");
+                    if (previousIsSource) {
+                        where.append("(").append(source).append(" = ").append(previous).append(" AND ").append(destination).append(" = ").append(next).append(")");
+                    }
+                    if (previousIsDestination) {
+                        if (previousIsSource) {
+                            // relations to the node itself are found via the source already
+                            where.append(" OR (").append(source).append(" <> ").append(destination).append(" AND ");
+                        } else {
+                            where.append("(");
+                        }
+                        where.append(destination).append(" = ").append(previous).append(" AND ").append(source).append(" = ").append(next).append(")");
+                    }
+                    where.append(")");
+                }
+            }
+            Constraint constraint = query.getConstraint();
+            if (constraint != null) {
+                appendConstraint(and(where), constraint);
+            }
+            if (where.length() > 0) {
+                sql.append(" WHERE ").append(where);
+            }
+        }
+
+        private StringBuilder and(StringBuilder where) {
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            return where;
+        }
+
+        private void appendParameters(StringBuilder sql, Collection<?> values, int type, boolean caseSensitive) {
+            boolean first = true;
+            for (Object value : values) {
+                if (! first) {
+                    sql.append(", ");
+                }
+                sql.append("?");
+                parameters.add(getParameter(type, value, caseSensitive));
+                first = false;
+            }
+        }
+
+        private Object getParameter(int type, Object value, boolean caseSensitive) {
+            Object result = toSql(type, value);
+            if (! caseSensitive && result instanceof String) {
+                result = ((String) result).toLowerCase();
+            }
+            return result;
+        }
+
+        private boolean isStored(StepField field) {
+            Map<String, Field> columns = getColumns(field.getStep().getTableName());
+            return columns != null && columns.containsKey(field.getFieldName());
+        }
+
+        private String getColumn(StepField field) throws SearchQueryException {
+            if (! isStored(field)) {
+                throw new SearchQueryException("Field '" + field.getFieldName() + "' of " + field.getStep() + " is not stored");
+            }
+            return prefix + ConstraintMatcher.indexOf(steps, field.getStep()) + "." + quote(field.getFieldName());
+        }
+
+        private String getExpression(StepField field, boolean caseSensitive) throws SearchQueryException {
+            String column = getColumn(field);
+            int type = getType(field);
+            if (! caseSensitive && (type == Field.TYPE_STRING || type == Field.TYPE_XML)) {
+                return "LOWER(" + column + ")";
+            }
+            return column;
+        }
+
+        void appendConstraint(StringBuilder sql, Constraint constraint) throws SearchQueryException {
+            if (constraint.isInverse()) {
+                sql.append("NOT ");
+            }
+            sql.append("(");
+            if (constraint instanceof CompositeConstraint) {
+                CompositeConstraint c = (CompositeConstraint) constraint;
+                String operator = c.getLogicalOperator() == CompositeConstraint.LOGICAL_AND ? " AND " : " OR ";
+                boolean first = true;
+                for (Constraint child : c.getChilds()) {
+                    if (! first) {
+                        sql.append(operator);
+                    }
+                    appendConstraint(sql, child);
+                    first = false;
+                }
+                if (first) {
+                    // no childs
+                    sql.append(c.getLogicalOperator() == CompositeConstraint.LOGICAL_AND ? "1 = 1" : "1 = 0");
+                }
+            } else if (constraint instanceof FieldNullConstraint) {
+                sql.append(getColumn(((FieldNullConstraint) constraint).getField())).append(" IS NULL");
+            } else if (constraint instanceof FieldValueDateConstraint) {
+                throw new SearchQueryException("Constraints on date parts are not supported (" + constraint + ")");
+            } else if (constraint instanceof FieldValueConstraint) {
+                FieldValueConstraint c = (FieldValueConstraint) constraint;
+                int type = getType(c.getField());
+                if (c.getOperator() == FieldCompareConstraint.LIKE && type != Field.TYPE_STRING && type != Field.TYPE_XML) {
+                    throw new SearchQueryException("LIKE is only supported on strings (" + constraint + ")");
+                }
+                sql.append(getExpression(c.getField(), c.isCaseSensitive())).append(getOperator(c.getOperator())).append("?");
+                Object parameter = getParameter(type, c.getValue(), c.isCaseSensitive());
+                if (c.getOperator() == FieldCompareConstraint.LIKE) {
+                    sql.append(" ESCAPE '\\'");
+                    parameter = getLikePattern(Casting.toString(parameter));
+                }
+                parameters.add(parameter);
+            } else if (constraint instanceof FieldValueBetweenConstraint) {
+                FieldValueBetweenConstraint c = (FieldValueBetweenConstraint) constraint;
+                int type = getType(c.getField());
+                sql.append(getExpression(c.getField(), c.isCaseSensitive())).append(" BETWEEN ? AND ?");
+                parameters.add(getParameter(type, c.getLowerLimit(), c.isCaseSensitive()));
+                parameters.add(getParameter(type, c.getUpperLimit(), c.isCaseSensitive()));
+            } else if (constraint instanceof FieldValueInConstraint) {
+                FieldValueInConstraint c = (FieldValueInConstraint) constraint;
+                if (c.getValues().isEmpty()) {
+                    sql.append("1 = 0");
+                } else {
+                    sql.append(getExpression(c.getField(), c.isCaseSensitive())).append(" IN (");
+                    appendParameters(sql, c.getValues(), getType(c.getField()), c.isCaseSensitive());
+                    sql.append(")");
+                }
+            } else if (constraint instanceof CompareFieldsConstraint) {
+                CompareFieldsConstraint c = (CompareFieldsConstraint) constraint;
+                if (c.getOperator() == FieldCompareConstraint.LIKE) {
+                    throw new SearchQueryException("Operator " + c.getOperator() + " is not supported for " + c);
+                }
+                sql.append(getExpression(c.getField(), c.isCaseSensitive())).append(getOperator(c.getOperator()));
+                sql.append(getExpression(c.getField2(), c.isCaseSensitive()));
+            } else if (constraint instanceof FieldValueInQueryConstraint) {
+                FieldValueInQueryConstraint c = (FieldValueInQueryConstraint) constraint;
+                SearchQuery inQuery = c.getInQuery();
+                if (inQuery.getOffset() > 0 || inQuery.getMaxNumber() != SearchQuery.DEFAULT_MAX_NUMBER || inQuery.isAggregating()) {
+                    throw new SearchQueryException("Sub query " + inQuery + " is not supported");
+                }
+                Compiler sub = new Compiler(inQuery, prefix + "s", parameters, tables);
+                sql.append(getColumn(c.getField())).append(" IN (SELECT ").append(sub.getColumn(inQuery.getFields().get(0)));
+                sub.appendFromAndWhere(sql);
+                sql.append(")");
+            } else {
+                throw new SearchQueryException("Constraints of type " + constraint.getClass().getName() + " are not supported (" + constraint + ")");
+            }
+            sql.append(")");
+        }
+    }
+
+}
@@ -36,6 +36,14 @@ public abstract class AbstractCloud implements Cloud {
     private final String name;
     private final UserContext userContext;
 
+    /**
+     * Node managers and relation managers, for implementations which create them on request and
+     * want to reuse them. See {@link #invalidateManagers}.
+     * @since MMBase-2.0
+     */
+    protected final Map<String, NodeManager> nodeManagerCache = new ConcurrentHashMap<String, NodeManager>();
+    protected final Map<String, RelationManager> relationManagerCache = new ConcurrentHashMap<String, RelationManager>();
+
     public AbstractCloud(String n,  UserContext uc) {
         name = n;
         userContext = uc;
@@ -114,6 +122,16 @@ public abstract class AbstractCloud implements Cloud {
         return true;
     }
 
+    /**
+     * Empties the caches of node managers and relation managers, e.g. because node managers were
+     * added.
+     * @since MMBase-2.0
+     */
+    public void invalidateManagers() {
+        nodeManagerCache.clear();
+        relationManagerCache.clear();
+    }
+
     @Override
     public abstract NodeManagerList getNodeManagers();
 
@@ -15,20 +15,29 @@ import org.mmbase.storage.search.*;
 import org.mmbase.cache.CachePolicy;
 import org.mmbase.util.logging.*;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Iterates the big result of a query. It avoids using a lot of memory (which you would need if you
  * get the complete NodeList first), and pollution of the (node) cache. In this current
  * implementation the Query is 'batched' to avoid reading in all nodes in memory, and the queries
- * are marked with {@link CachePolicy#NEVER}.
+ * are marked with {@link CachePolicy#NEVER}. The query is {@linkplain Queries#sortUniquely sorted
+ * uniquely}, and every batch is constrained to the nodes after the last node of the previous one
+ * (see {@link Queries#createKeysetConstraint}), so insertions and deletions during the iteration
+ * do not make it skip or repeat nodes.
+ *
+ * Optionally, the next batches can be {@linkplain #setPrefetch prefetched} in another thread while
+ * the current batch is consumed.
  *
  * @author  Michiel Meeuwissen
  * @version $Id$
  * @since   MMBase-1.8
  */
 
-public class HugeNodeListIterator implements NodeIterator {
+public class HugeNodeListIterator implements NodeIterator, java.io.Closeable {
 
     public static final int DEFAULT_BATCH_SIZE = 10000;
 
@@ -44,6 +53,9 @@ public class HugeNodeListIterator implements NodeIterator {
 
     protected int nextIndex = 0;
 
+    private NodeList batch;
+    private Prefetcher prefetcher = null;
+
     /**
      * Constructor for this Iterator.
      *
@@ -84,9 +96,10 @@ public class HugeNodeListIterator implements NodeIterator {
 
     /**
      * Executes the given query, taking into account the fact wether it is NodeQuery or not, and
-     * applying the 'batchSize'. The result is available in the 'nodeIterator' member.
+     * applying the 'batchSize'.
+     * @since MMBase-2.0
      */
-    protected void executeQuery(Query currentQuery) {
+    protected NodeList getList(Query currentQuery) {
         currentQuery.setMaxNumber(batchSize);
         if (log.isDebugEnabled()) {
             log.trace("Running query: " + currentQuery);
@@ -102,7 +115,40 @@ public class HugeNodeListIterator implements NodeIterator {
         if (log.isDebugEnabled()) {
             log.trace("Query result: " + list.size() + " nodes");
         }
-        nodeIterator = list.nodeIterator();
+        return list;
+    }
+
+    /**
+     * Executes the given query, taking into account the fact wether it is NodeQuery or not, and
+     * applying the 'batchSize'. The result is available in the 'nodeIterator' member.
+     */
+    protected void executeQuery(Query currentQuery) {
+        batch = getList(currentQuery);
+        nodeIterator = batch.nodeIterator();
+    }
+
+    /**
+     * Creates the query for the batch which follows the given node.
+     * @since MMBase-2.0
+     */
+    protected Query createNextQuery(Node last) {
+        Query currentQuery = originalQuery.clone();
+
+        // We don't use offset to determin the 'next' batch of query results
+        // because there could have been deletions/insertions.
+        // We use the (unique) sort-order to apply a constraint.
+        Queries.addConstraint(currentQuery, Queries.createKeysetConstraint(currentQuery, last, true));
+        return currentQuery;
+    }
+
+    /**
+     * Creates the query for the batch which precedes the given node.
+     * @since MMBase-2.0
+     */
+    protected Query createPreviousQuery(Node first) {
+        Query currentQuery = originalQuery.clone();
+        Queries.addConstraint(currentQuery, Queries.createKeysetConstraint(currentQuery, first, false));
+        return currentQuery;
     }
 
     /**
@@ -110,6 +156,10 @@ public class HugeNodeListIterator implements NodeIterator {
      */
     protected void executeNextQuery(Query q) {
         executeQuery(q);
+        startBatch();
+    }
+
+    private void startBatch() {
         previousNode = nextNode;
         if (nodeIterator.hasNext()) {
             nextNode = nodeIterator.nextNode();
@@ -202,30 +252,36 @@ public class HugeNodeListIterator implements NodeIterator {
     @Override
     public  Node nextNode() {
         if (nextNode != null) {
+            Node previous = previousNode;
             nextIndex++;
             previousNode = nextNode;
             if (nodeIterator.hasNext()) {
                 nextNode = nodeIterator.nextNode();
             } else {
-                Query currentQuery = originalQuery.clone();
-
-                // We don't use offset to determin the 'next' batch of query results
-                // because there could have been deletions/insertions.
-                // We use the sort-order to apply a constraint.
-                SortOrder order = originalQuery.getSortOrders().get(0);
-                Object value = Queries.getSortOrderFieldValue(previousNode, order);
-                Constraint cons;
-                if (order.getDirection() == SortOrder.ORDER_ASCENDING) {
-                    cons = currentQuery.createConstraint(order.getField(), FieldCompareConstraint.GREATER_EQUAL, value);
+                if (prefetcher != null) {
+                    try {
+                        batch = prefetcher.take();
+                    } catch (RuntimeException e) {
+                        // The prefetcher has stopped. Continue without it, so that a next call
+                        // queries the batch itself, instead of waiting forever.
+                        close();
+                        nextIndex--;
+                        previousNode = previous;
+                        throw e;
+                    }
+                    if (batch == null) {
+                        // no more batches
+                        batch = originalQuery.getCloud().createNodeList();
+                        prefetcher = null;
+                    }
+                    nodeIterator = batch.nodeIterator();
+                    startBatch();
                 } else {
-                    cons = currentQuery.createConstraint(order.getField(), FieldCompareConstraint.LESS_EQUAL, value);
+                    executeNextQuery(createNextQuery(previousNode));
                 }
-                Queries.addConstraint(currentQuery, cons);
-
-                executeNextQuery(currentQuery);
 
-                // perhaps the sort-order did not find a unique result, skip some nodes in that case.
-                // XXX This goes wrong if (which is unlikely) there follow more nodes than 'batchSize'.
+                // The batch starts after the previous node. Only if the database orders differently
+                // (e.g. because of collation), it may contain nodes which were had already.
                 while(nextNode != null && compares(nextNode, previousNode) <= 0) {
                     if (nodeIterator.hasNext()) {
                         nextNode = nodeIterator.nextNode();
@@ -254,17 +310,9 @@ public class HugeNodeListIterator implements NodeIterator {
             if (nodeIterator.hasPrevious()) {
                 previousNode = nodeIterator.previousNode();
             } else {
-                Query currentQuery = originalQuery.clone();
-                SortOrder order = originalQuery.getSortOrders().get(0);
-                Object value = Queries.getSortOrderFieldValue(nextNode, order);
-                Constraint cons;
-                if (order.getDirection() == SortOrder.ORDER_ASCENDING) {
-                    cons = currentQuery.createConstraint(order.getField(), FieldCompareConstraint.LESS_EQUAL, value);
-                } else {
-                    cons = currentQuery.createConstraint(order.getField(), FieldCompareConstraint.GREATER_EQUAL, value);
-                }
-                Queries.addConstraint(currentQuery, cons);
-                executePreviousQuery(currentQuery);
+                // the prefetched batches follow the last batch, which is not the current one any more
+                close();
+                executePreviousQuery(createPreviousQuery(nextNode));
                 while(previousNode != null && compares(nextNode, previousNode) >= 0) {
                     if (nodeIterator.hasPrevious()) {
                         previousNode = nodeIterator.previousNode();
@@ -280,6 +328,160 @@ public class HugeNodeListIterator implements NodeIterator {
         }
     }
 
+    /**
+     * Switches on prefetching. The following batches are then queried by a task on the given
+     * executor, while the current batch is consumed. The task queries the next batch as soon as
+     * the previous one is known, until the given number of batches is waiting to be consumed.
+     *
+     * The task stops when it has fetched the last batch, when the iterator is {@linkplain #close
+     * closed}, or when the iterator is not referenced any more. Iterating backwards with {@link
+     * #previousNode} over the start of a batch also stops it, and the iterator then continues
+     * without prefetching.
+     *
+     * While the queue of fetched batches is full, the task keeps occupying its thread, and checks
+     * every second whether there is room again or whether the iterator is abandoned. So the
+     * executor should not be a small, shared pool.
+     *
+     * If fetching a batch fails, the exception is thrown by {@link #nextNode}, and prefetching is
+     * switched off.
+     *
+     * @param batches The maximal number of batches which are fetched ahead. At least 1.
+     * @param executor Executes the task which fetches the batches.
+     * @return This iterator
+     * @since MMBase-2.0
+     */
+    public HugeNodeListIterator setPrefetch(int batches, Executor executor) {
+        if (batches < 1) {
+            throw new IllegalArgumentException("Must prefetch at least one batch (" + batches + ")");
+        }
+        close();
+        if (batch.size() > 0) {
+            prefetcher = new Prefetcher(this, batches, batch.getNode(batch.size() - 1));
+            executor.execute(prefetcher);
+        }
+        return this;
+    }
+
+    /**
+     * Threads for the prefetch tasks, which are mostly waiting, so they are not run on one of the
+     * {@link org.mmbase.util.ThreadPools}. Idle threads end after a minute.
+     */
+    private static final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "HugeNodeListIterator prefetcher-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Switches on prefetching, using a dedicated thread for every prefetching iterator.
+     * @see #setPrefetch(int, Executor)
+     * @since MMBase-2.0
+     */
+    public HugeNodeListIterator setPrefetch(int batches) {
+        return setPrefetch(batches, prefetchExecutor);
+    }
+
+    /**
+     * Stops {@linkplain #setPrefetch prefetching}, if it was on. The iterator itself can still be
+     * used; it then queries the next batches itself.
+     * @since MMBase-2.0
+     */
+    @Override
+    public void close() {
+        if (prefetcher != null) {
+            prefetcher.cancel();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Fetches the batches following a node, and offers them to a queue. It only references its
+     * iterator weakly, so that it notices that it is abandoned.
+     */
+    private static class Prefetcher implements Runnable {
+        private static final Object END = new Object();
+
+        private final WeakReference<HugeNodeListIterator> iterator;
+        private final BlockingQueue<Object> queue;
+        private volatile boolean cancelled = false;
+        private Node last;
+
+        Prefetcher(HugeNodeListIterator i, int batches, Node l) {
+            iterator = new WeakReference<HugeNodeListIterator>(i);
+            queue = new ArrayBlockingQueue<Object>(batches);
+            last = l;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (! cancelled) {
+                    HugeNodeListIterator i = iterator.get();
+                    if (i == null) {
+                        break;
+                    }
+                    NodeList list = i.getList(i.createNextQuery(last));
+                    Node newLast = list.isEmpty() ? null : list.getNode(list.size() - 1);
+                    boolean more = newLast != null && i.compares(newLast, last) > 0;
+                    i = null;
+                    // a batch which does not get any further only contains nodes which were had already
+                    if (! put(more ? list : END) || ! more) {
+                        break;
+                    }
+                    last = newLast;
+                }
+            } catch (RuntimeException e) {
+                log.warn(e.getMessage(), e);
+                put(e);
+            }
+        }
+
+        /**
+         * Waits until there is room in the queue, as long as the iterator is in use.
+         */
+        private boolean put(Object o) {
+            try {
+                while (! cancelled && iterator.get() != null) {
+                    if (queue.offer(o, 1, TimeUnit.SECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        /**
+         * @return The next batch, or <code>null</code> if there are no more.
+         */
+        NodeList take() {
+            Object o;
+            try {
+                o = queue.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new BridgeException("Interrupted while waiting for the next batch", ie);
+            }
+            if (o == END) {
+                return null;
+            }
+            if (o instanceof RuntimeException) {
+                throw (RuntimeException) o;
+            }
+            return (NodeList) o;
+        }
+
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+    }
+
    /**
      * @throws UnsupportedOperationException
      */
@@ -0,0 +1,283 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.util;
+
+import org.mmbase.bridge.*;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.Casting;
+import org.mmbase.util.logging.*;
+
+import java.util.*;
+
+/**
+ * Iterates the result of a query like {@link HugeNodeListIterator}, but can be split into disjoint
+ * parts, which can then be iterated independently, e.g. in different threads. The query is split
+ * on ranges of the 'number' field of its node step (or of its first step, if it is not a {@link
+ * NodeQuery}), so every part is again a query which is batched using keyset pagination.
+ *
+ * This is modelled after java.util.Spliterator: {@link #trySplit} splits off the first half of the
+ * remaining range, and {@link #characteristics} reports {@link #ORDERED}, {@link #DISTINCT} and
+ * {@link #NONNULL} with the same values. Unlike a Spliterator, it is also an Iterator, and it must be
+ * {@linkplain #close closed} if it is not iterated to the end, because it may have a task
+ * {@linkplain #setPrefetch prefetching} batches.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ */
+
+public class NodeSpliterator implements Iterator<Node>, java.io.Closeable {
+
+    private static final Logger log = Logging.getLoggerInstance(NodeSpliterator.class);
+
+    /**
+     * The parts are in the order of the query, and every part is iterated in that order.
+     */
+    public static final int ORDERED  = 0x00000010;
+    /**
+     * No node is returned twice.
+     */
+    public static final int DISTINCT = 0x00000001;
+    /**
+     * No <code>null</code>s are returned.
+     */
+    public static final int NONNULL  = 0x00000100;
+
+    private final Query query;
+    private final int batchSize;
+    private int prefetch = 0;
+
+    private Integer from;
+    private Integer to;
+    private boolean rangeDetermined = false;
+    private long estimatedSize = -1;
+
+    private HugeNodeListIterator iterator = null;
+
+    /**
+     * @param q The query to iterate. It is not changed.
+     * @param batchSize The size of the batches in which every part is queried.
+     */
+    public NodeSpliterator(Query q, int batchSize) {
+        if (q.getOffset() > 0) {
+            throw new UnsupportedOperationException("Not implemented for queries with offset");
+        }
+        query = Queries.sortUniquely(q.clone());
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param q The query to iterate. It is not changed.
+     * @see HugeNodeListIterator#DEFAULT_BATCH_SIZE
+     */
+    public NodeSpliterator(Query q) {
+        this(q, HugeNodeListIterator.DEFAULT_BATCH_SIZE);
+    }
+
+    private NodeSpliterator(NodeSpliterator parent, Integer from, Integer to) {
+        query     = parent.query;
+        batchSize = parent.batchSize;
+        prefetch  = parent.prefetch;
+        this.from = from;
+        this.to   = to;
+        rangeDetermined = true;
+    }
+
+    /**
+     * The 'number' field on which the query is split.
+     */
+    protected StepField getSplitField(Query q) {
+        Step step = q instanceof NodeQuery ? ((NodeQuery) q).getNodeStep() : q.getSteps().get(0);
+        return q.createStepField(step, "number");
+    }
+
+    /**
+     * The query for the range of this part.
+     */
+    protected Query getRangeQuery() {
+        Query q = query.clone();
+        StepField number = getSplitField(q);
+        if (from != null) {
+            Queries.addConstraint(q, q.createConstraint(number, FieldCompareConstraint.GREATER_EQUAL, from));
+        }
+        if (to != null) {
+            Queries.addConstraint(q, q.createConstraint(number, FieldCompareConstraint.LESS, to));
+        }
+        return q;
+    }
+
+    /**
+     * Replaces an open range by the actual minimal and maximal number.
+     * @return <code>false</code> if the range is empty
+     */
+    private boolean determineRange() {
+        if (! rangeDetermined) {
+            Query q = getRangeQuery();
+            StepField number = getSplitField(q);
+            Object min = Queries.min(q, number);
+            if (min != null) {
+                if (from == null) {
+                    from = Casting.toInt(min);
+                }
+                if (to == null) {
+                    to = Casting.toInt(Queries.max(q, number)) + 1;
+                }
+            } else {
+                from = 0;
+                to = 0;
+            }
+            rangeDetermined = true;
+            log.debug("Range of " + q + ": [" + from + ", " + to + ")");
+        }
+        return to - from > 0;
+    }
+
+    /**
+     * Splits off the first half of the number range which is not yet iterated. This is only
+     * possible as long as iteration has not started, and as long as the range contains at least
+     * two numbers. Nodes may be distributed unevenly over the numbers, so the halves do not
+     * necessarily contain the same number of nodes.
+     *
+     * @return The part with the lower numbers, or <code>null</code> if this cannot be split
+     */
+    public NodeSpliterator trySplit() {
+        if (iterator != null || ! determineRange()) {
+            return null;
+        }
+        if (to - from < 2) {
+            return null;
+        }
+        int middle = from + (to - from) / 2;
+        NodeSpliterator prefix = new NodeSpliterator(this, from, middle);
+        from = middle;
+        estimatedSize = -1;
+        return prefix;
+    }
+
+    /**
+     * Splits the number range which is not yet iterated into (at most) the given number of parts of
+     * equal width. This is only possible as long as iteration has not started.
+     *
+     * @return The parts, in order of their numbers. This is the last one. If this cannot be split,
+     * only this.
+     */
+    public List<NodeSpliterator> split(int parts) {
+        if (parts < 1) {
+            throw new IllegalArgumentException("Cannot split in " + parts + " parts");
+        }
+        List<NodeSpliterator> result = new ArrayList<NodeSpliterator>();
+        if (iterator == null && determineRange()) {
+            long width = (long) to - from;
+            parts = (int) Math.min(parts, width);
+            for (int i = 1; i < parts; i++) {
+                int end = (int) (from + width * i / parts);
+                int start = result.isEmpty() ? from : result.get(result.size() - 1).to;
+                result.add(new NodeSpliterator(this, start, end));
+            }
+            if (! result.isEmpty()) {
+                from = result.get(result.size() - 1).to;
+                estimatedSize = -1;
+            }
+        }
+        result.add(this);
+        return result;
+    }
+
+    /**
+     * The number of nodes of this part, as counted by a query. The actual number may differ if
+     * nodes are created or deleted during the iteration.
+     */
+    public long estimateSize() {
+        if (estimatedSize == -1) {
+            estimatedSize = Queries.count(getRangeQuery());
+        }
+        return estimatedSize;
+    }
+
+    /**
+     * {@link #NONNULL}, {@link #DISTINCT} if the query can only return a node once, and {@link
+     * #ORDERED} if the query is sorted on the number of the split field first, because then the
+     * parts are in the order of the query.
+     */
+    public int characteristics() {
+        int result = NONNULL;
+        if (query.isDistinct() || query.getSteps().size() == 1) {
+            result |= DISTINCT;
+        }
+        SortOrder first = query.getSortOrders().get(0);
+        if (first.getDirection() == SortOrder.ORDER_ASCENDING && first.getField().equals(getSplitField(query))) {
+            result |= ORDERED;
+        }
+        return result;
+    }
+
+    public boolean hasCharacteristics(int characteristics) {
+        return (characteristics() & characteristics) == characteristics;
+    }
+
+    /**
+     * Makes every part {@linkplain HugeNodeListIterator#setPrefetch(int) prefetch} the given number
+     * of batches. This applies to parts which are split off later too.
+     * @return This
+     */
+    public NodeSpliterator setPrefetch(int batches) {
+        prefetch = batches;
+        return this;
+    }
+
+    protected HugeNodeListIterator getIterator() {
+        if (iterator == null) {
+            iterator = new HugeNodeListIterator(getRangeQuery(), batchSize);
+            if (prefetch > 0) {
+                iterator.setPrefetch(prefetch);
+            }
+        }
+        return iterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return getIterator().hasNext();
+    }
+
+    @Override
+    public Node next() {
+        return getIterator().nextNode();
+    }
+
+    public Node nextNode() {
+        return next();
+    }
+
+    /**
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Optional operation 'remove' not implemented");
+    }
+
+    /**
+     * Stops prefetching of the current part, if it is iterated.
+     */
+    @Override
+    public void close() {
+        if (iterator != null) {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[" + (from == null ? "" : from) + ", " + (to == null ? "" : to) + ") " + query;
+    }
+
+}
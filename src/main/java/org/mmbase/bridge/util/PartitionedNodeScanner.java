@@ -0,0 +1,285 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.util;
+
+import org.mmbase.bridge.*;
+import org.mmbase.util.logging.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Processes all nodes of a (huge) query in parallel. The query is split into a number of
+ * partitions, disjoint ranges of node numbers (see {@link NodeSpliterator#split}), and every
+ * partition is counted and iterated with its own {@link HugeNodeListIterator} in a task on an
+ * executor. The progress of the scan, and the throughput of every partition, can be followed while
+ * it is running.
+ *
+ * Because the nodes are processed concurrently, and not in the order of the query, the {@link
+ * NodeProcessor} must be thread-safe.
+ *
+ * <pre>
+ *   PartitionedNodeScanner scanner = new PartitionedNodeScanner(nodeManager.createQuery(), 16);
+ *   scanner.scan(new PartitionedNodeScanner.NodeProcessor() {
+ *       public void process(Node node) {
+ *           ...
+ *       }
+ *   });
+ * </pre>
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ */
+
+public class PartitionedNodeScanner {
+
+    private static final Logger log = Logging.getLoggerInstance(PartitionedNodeScanner.class);
+
+    /**
+     * Does something with every node of the scanned query. Called concurrently from different
+     * threads.
+     */
+    public interface NodeProcessor {
+        void process(Node node);
+    }
+
+    /**
+     * A range of node numbers, which is scanned by one task.
+     */
+    public static class Partition implements Runnable {
+        private final NodeSpliterator nodes;
+        private final NodeProcessor processor;
+        private volatile long estimatedSize = -1;
+        private volatile long count = 0;
+        private volatile long start = -1;
+        private volatile long end = -1;
+
+        Partition(NodeSpliterator n, NodeProcessor p) {
+            nodes = n;
+            processor = p;
+        }
+
+        @Override
+        public void run() {
+            start = System.currentTimeMillis();
+            try {
+                estimatedSize = nodes.estimateSize();
+                while (nodes.hasNext()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        log.service("Interrupted " + this);
+                        break;
+                    }
+                    processor.process(nodes.nextNode());
+                    count++;
+                }
+            } finally {
+                nodes.close();
+                end = System.currentTimeMillis();
+            }
+            log.service("Ready " + this);
+        }
+
+        /**
+         * The number of nodes which are processed until now.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The number of nodes in this partition, as counted by a query when its scan started, or
+         * -1 if it is not counted yet.
+         */
+        public long getEstimatedSize() {
+            return estimatedSize;
+        }
+
+        public boolean isStarted() {
+            return start != -1;
+        }
+
+        public boolean isDone() {
+            return end != -1;
+        }
+
+        /**
+         * The time in ms this partition is (or was) scanned.
+         */
+        public long getDuration() {
+            if (start == -1) {
+                return 0;
+            }
+            return (end == -1 ? System.currentTimeMillis() : end) - start;
+        }
+
+        /**
+         * Processed nodes per second.
+         */
+        public double getThroughput() {
+            long duration = getDuration();
+            return duration == 0 ? 0.0 : count * 1000.0 / duration;
+        }
+
+        @Override
+        public String toString() {
+            return "partition " + nodes + " " + count + "/" + getEstimatedSize() + " nodes in " + getDuration() + " ms (" + Math.round(getThroughput()) + " nodes/s)";
+        }
+    }
+
+    private final Query query;
+    private final int partitions;
+    private int batchSize = HugeNodeListIterator.DEFAULT_BATCH_SIZE;
+    private Executor executor = null;
+
+    private volatile List<Partition> scanning = Collections.emptyList();
+
+    /**
+     * @param query The query to scan. It is not changed.
+     * @param partitions The number of partitions in which the query is split. This is the maximal
+     * number of threads which are used. There may be less partitions, if there are less node numbers.
+     */
+    public PartitionedNodeScanner(Query query, int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Need at least one partition (" + partitions + ")");
+        }
+        this.query = query;
+        this.partitions = partitions;
+    }
+
+    /**
+     * @param b The size of the batches in which every partition is queried. Defaults to {@link HugeNodeListIterator#DEFAULT_BATCH_SIZE}
+     * @return This
+     */
+    public PartitionedNodeScanner setBatchSize(int b) {
+        batchSize = b;
+        return this;
+    }
+
+    /**
+     * @param e The executor which runs the partitions. The partitions occupy their threads until
+     * they are ready, so this should have a thread for every partition, and should not be used by
+     * the {@link NodeProcessor} itself, or the scan may never finish. Defaults to
+     * <code>null</code>, which means that every scan starts and stops its own threads.
+     * @return This
+     */
+    public PartitionedNodeScanner setExecutor(Executor e) {
+        executor = e;
+        return this;
+    }
+
+    /**
+     * Processes all nodes of the query, and waits until that is ready. If processing fails for
+     * one partition, the other partitions are cancelled too.
+     *
+     * @return The number of processed nodes
+     * @throws BridgeException If processing of a node failed
+     * @throws InterruptedException If the current thread was interrupted while waiting. The partitions are then cancelled.
+     */
+    public long scan(NodeProcessor processor) throws InterruptedException {
+        List<Partition> parts = new ArrayList<Partition>();
+        for (NodeSpliterator nodes : new NodeSpliterator(query, batchSize).split(partitions)) {
+            parts.add(new Partition(nodes, processor));
+        }
+        scanning = Collections.unmodifiableList(parts);
+        log.service("Scanning " + query + " in " + parts.size() + " partitions");
+
+        ExecutorService own = null;
+        Executor e = executor;
+        if (e == null) {
+            own = Executors.newFixedThreadPool(parts.size(), new ThreadFactory() {
+                    private int count = 0;
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "PartitionedNodeScanner-" + (++count));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            e = own;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        try {
+            for (Partition part : parts) {
+                FutureTask<Object> future = new FutureTask<Object>(part, null);
+                futures.add(future);
+                e.execute(future);
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ee) {
+                    Throwable cause = ee.getCause();
+                    if (cause instanceof BridgeException) {
+                        throw (BridgeException) cause;
+                    }
+                    throw new BridgeException(cause.getMessage(), cause);
+                }
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+            if (own != null) {
+                own.shutdownNow();
+            }
+        }
+        long count = getCount();
+        log.service("Scanned " + count + " nodes of " + query);
+        return count;
+    }
+
+    /**
+     * The partitions of the current (or last) scan, with their progress.
+     */
+    public List<Partition> getPartitions() {
+        return scanning;
+    }
+
+    /**
+     * The number of nodes which are processed until now by the current (or last) scan.
+     */
+    public long getCount() {
+        long count = 0;
+        for (Partition part : scanning) {
+            count += part.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * The fraction of the nodes which is processed until now by the current (or last) scan.
+     * Estimated with the sizes of the partitions, so this may not be exactly 1 when the scan is
+     * ready. Partitions which are not counted yet are supposed to be as big as the average counted one.
+     */
+    public double getProgress() {
+        long size = 0;
+        int counted = 0;
+        for (Partition part : scanning) {
+            long partSize = part.getEstimatedSize();
+            if (partSize != -1) {
+                size += partSize;
+                counted++;
+            }
+        }
+        if (counted == 0) {
+            return scanning.isEmpty() ? 1.0 : 0.0;
+        }
+        size += (scanning.size() - counted) * size / counted;
+        return size == 0 ? 1.0 : (double) getCount() / size;
+    }
+
+    @Override
+    public String toString() {
+        return "Scan of " + query + " " + scanning;
+    }
+
+}
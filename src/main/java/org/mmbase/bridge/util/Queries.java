@@ -1238,6 +1238,73 @@ abstract public class Queries {
         return q;
     }
 
+    /**
+     * Creates a constraint which only matches the results of the query which follow (or precede)
+     * a given result, in the order defined by all sort orders of the query: <code>(a &gt; ?) OR (a
+     * = ? AND b &gt; ?) OR (a = ? AND b = ? AND c &gt; ?)</code>... If the query is {@linkplain
+     * #sortUniquely sorted uniquely}, the results matching the constraint start exactly after the
+     * given one, so it can be used to fetch a query result in batches ('keyset pagination').
+     *
+     * <code>null</code> values are ordered like in {@link #compare(Object, Object, SortOrder)}:
+     * after all other values if the order is ascending.
+     *
+     * @param q The query, which must be sorted
+     * @param node A result of the query. A node of the node manager of a NodeQuery, or a cluster node.
+     * @param after Whether the results after, or before, the given node must match
+     * @since MMBase-2.0
+     */
+    public static Constraint createKeysetConstraint(Query q, Node node, boolean after) {
+        List<SortOrder> sortOrders = q.getSortOrders();
+        if (sortOrders.isEmpty()) {
+            throw new IllegalArgumentException("The query " + q + " is not sorted");
+        }
+        Object[] values = new Object[sortOrders.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getSortOrderFieldValue(node, sortOrders.get(i));
+        }
+        // Composite constraints are extended by Query#createConstraint, so every term is created from new constraints.
+        Constraint result = null;
+        for (int i = 0; i < values.length; i++) {
+            SortOrder order = sortOrders.get(i);
+            StepField field = order.getField();
+            boolean ascending = (order.getDirection() == SortOrder.ORDER_ASCENDING) == after;
+
+            // this field follows the value
+            Constraint term;
+            if (values[i] == null) {
+                if (ascending) {
+                    // nothing follows null
+                    continue;
+                }
+                term = q.setInverse(q.createConstraint(field), true);
+            } else {
+                term = q.setCaseSensitive(q.createConstraint(field, ascending ? FieldCompareConstraint.GREATER : FieldCompareConstraint.LESS, values[i]), order.isCaseSensitive());
+                if (ascending) {
+                    term = q.createConstraint(term, CompositeConstraint.LOGICAL_OR, q.createConstraint(field));
+                }
+            }
+
+            // and the preceding fields are equal to their values
+            if (i > 0) {
+                Constraint equal = null;
+                for (int j = 0; j < i; j++) {
+                    StepField f = sortOrders.get(j).getField();
+                    Constraint isEqual = values[j] == null ? q.createConstraint(f) :
+                        q.setCaseSensitive(q.createConstraint(f, FieldCompareConstraint.EQUAL, values[j]), sortOrders.get(j).isCaseSensitive());
+                    equal = q.createConstraint(equal, CompositeConstraint.LOGICAL_AND, isEqual);
+                }
+                term = q.createConstraint(equal, CompositeConstraint.LOGICAL_AND, term);
+            }
+            result = result == null ? term : q.createConstraint(result, CompositeConstraint.LOGICAL_OR, term);
+        }
+        if (result == null) {
+            // nothing follows, all values are null
+            StepField field = sortOrders.get(0).getField();
+            result = q.createConstraint(q.createConstraint(field), CompositeConstraint.LOGICAL_AND, q.setInverse(q.createConstraint(field), true));
+        }
+        return result;
+    }
+
     /**
      * Make sure all sorted fields are queried
      * @since MMBase-1.8
@@ -1547,7 +1614,8 @@ abstract public class Queries {
                 FieldValueConstraint fvc = (FieldValueConstraint) constraint;
                 boolean needsSet = true;
                 try {
-                    needsSet = ! fvc.matches(fvc.getValue());
+                    Object value = n.getValue(fvc.getField().getFieldName());
+                    needsSet = value == null || ! fvc.matches(value);
                 } catch (UnsupportedOperationException ue) {
                     log.warn(ue);
                 }
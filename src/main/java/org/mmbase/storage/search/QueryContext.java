@@ -59,6 +59,13 @@ public interface QueryContext {
             return clusterQueries;
         }
 
+        /**
+         * @since MMBase-2.0
+         */
+        public Cloud getCloud() {
+            return cloud;
+        }
+
 
     }
 
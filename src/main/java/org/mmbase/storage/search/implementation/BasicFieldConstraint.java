@@ -28,6 +28,11 @@ public class BasicFieldConstraint extends BasicConstraint implements FieldConstr
 
     private boolean caseSensitive = true;
 
+    /**
+     * The compiled predicate, once the constraint is unmodifiable.
+     */
+    private transient ConstraintPredicate predicate = null;
+
     /**
      * Constructor.
      * Protected, so only subclasses can be instantiated.
@@ -56,9 +61,22 @@ public class BasicFieldConstraint extends BasicConstraint implements FieldConstr
         return this;
     }
 
+    /**
+     * {@inheritDoc}
+     * The constraint is {@linkplain ConstraintPredicate#compile compiled} for this, and the result
+     * is reused as soon as the constraint is unmodifiable.
+     * @throws UnsupportedOperationException if this kind of constraint cannot be evaluated in memory.
+     */
     @Override
     public boolean matches(Object o) {
-        throw new UnsupportedOperationException();
+        ConstraintPredicate p = predicate;
+        if (p == null) {
+            p = ConstraintPredicate.compile(this);
+            if (! modifiable) {
+                predicate = p;
+            }
+        }
+        return p.test(o);
     }
 
     @Override
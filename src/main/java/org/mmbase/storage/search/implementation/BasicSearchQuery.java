@@ -47,6 +47,11 @@ public class BasicSearchQuery implements SearchQuery, org.mmbase.util.PublicClon
 
     private int savedHashcode = -1;
 
+    /**
+     * The snapshot of this query, once it is unmodifiable.
+     */
+    private transient QuerySnapshot snapshot = null;
+
     /**
      * Whether this Query is cacheable.
      */
@@ -121,6 +126,8 @@ public class BasicSearchQuery implements SearchQuery, org.mmbase.util.PublicClon
         try {
             BasicSearchQuery clone = (BasicSearchQuery) super.clone();
             clone.modifiable = true;
+            clone.snapshot = null;
+            clone.savedHashcode = -1;
             clone.copySteps(this);
             clone.copyFields(this);
             clone.copySortOrders(this);
@@ -627,11 +634,32 @@ public class BasicSearchQuery implements SearchQuery, org.mmbase.util.PublicClon
         return ! wasModifiable;
     }
 
+    /**
+     * Returns the {@link QuerySnapshot} of this query. Once the query is unmodifiable, this is
+     * calculated only once.
+     * @since MMBase-2.0
+     */
+    public QuerySnapshot getSnapshot() {
+        if (modifiable) {
+            return QuerySnapshot.of(this);
+        }
+        if (snapshot == null) {
+            snapshot = QuerySnapshot.of(this);
+        }
+        return snapshot;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) {
             return true;
         }
+        if (obj instanceof BasicSearchQuery && ! modifiable && ! ((BasicSearchQuery) obj).modifiable) {
+            // unmodifiable queries with the same snapshot are equal, without comparing all of their parts
+            if (getSnapshot() == ((BasicSearchQuery) obj).getSnapshot()) {
+                return true;
+            }
+        }
         if (obj instanceof SearchQuery) {
             SearchQuery query = (SearchQuery) obj;
             return distinct == query.isDistinct()
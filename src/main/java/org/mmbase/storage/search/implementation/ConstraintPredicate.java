@@ -0,0 +1,555 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+package org.mmbase.storage.search.implementation;
+
+import java.util.*;
+import java.util.regex.Pattern;
+import org.mmbase.bridge.Field;
+import org.mmbase.bridge.Node;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.Casting;
+import org.mmbase.util.logging.*;
+
+/**
+ * A {@link Constraint} compiled to an in-memory predicate. Compiling resolves everything which
+ * does not depend on the tested value: how values must be cast (determined by the type of the
+ * field, or, if that is unknown, by the class of the constraint value), which comparison is done,
+ * and, for LIKE, the pattern. A LIKE pattern which only has '%' wildcards at its start or end is
+ * matched without regular expressions. LIKE and REGEXP always compare values as strings.
+ *
+ * A predicate of a {@link FieldConstraint} tests values of its field with {@link #test}. A
+ * <code>null</code> value is not constrained: it matches, unless the constraint is inverse. Only a
+ * {@link FieldNullConstraint} distinguishes <code>null</code>s. A predicate of a composite
+ * constraint can test a value if all its childs can, and evaluates its childs only as long as the
+ * result is not known yet. Any predicate can {@linkplain #matches(Node) test a node}.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ * @see FieldConstraint#matches
+ */
+public abstract class ConstraintPredicate {
+    private static final Logger log = Logging.getLoggerInstance(ConstraintPredicate.class);
+
+    /**
+     * Compiles a constraint.
+     * @throws UnsupportedOperationException if the constraint, or one of its childs, cannot be
+     * evaluated in memory, like a {@link StringSearchConstraint} or a {@link LegacyConstraint}.
+     */
+    public static ConstraintPredicate compile(Constraint constraint) {
+        if (constraint instanceof CompositeConstraint) {
+            CompositeConstraint c = (CompositeConstraint) constraint;
+            List<Constraint> childs = c.getChilds();
+            ConstraintPredicate[] compiled = new ConstraintPredicate[childs.size()];
+            for (int i = 0; i < compiled.length; i++) {
+                compiled[i] = compile(childs.get(i));
+            }
+            return new CompositePredicate(compiled, c.getLogicalOperator() == CompositeConstraint.LOGICAL_AND, c.isInverse());
+        } else if (constraint instanceof FieldNullConstraint) {
+            return new FieldPredicate((FieldConstraint) constraint) {
+                @Override
+                public boolean test(Object value) {
+                    return (value == null) != inverse;
+                }
+            };
+        } else if (constraint instanceof FieldValueDateConstraint) {
+            final FieldValueDateConstraint c = (FieldValueDateConstraint) constraint;
+            final int part = c.getPart();
+            return new LongPredicate(c, c.getOperator(), INTEGRAL, Casting.toLong(c.getValue())) {
+                @Override
+                long toLong(Object value) {
+                    return getDatePart(Casting.toDate(value), part);
+                }
+            };
+        } else if (constraint instanceof FieldValueConstraint) {
+            return compile((FieldValueConstraint) constraint);
+        } else if (constraint instanceof FieldValueBetweenConstraint) {
+            final FieldValueBetweenConstraint c = (FieldValueBetweenConstraint) constraint;
+            final int kind = getKind(c.getField(), c.getLowerLimit());
+            final Comparable<Object> lower = cast(kind, c.getLowerLimit(), c.isCaseSensitive());
+            final Comparable<Object> upper = cast(kind, c.getUpperLimit(), c.isCaseSensitive());
+            return new ValuePredicate(c) {
+                @Override
+                boolean testValue(Object value) {
+                    Comparable<Object> v = cast(kind, value, c.isCaseSensitive());
+                    return lower.compareTo(v) <= 0 && upper.compareTo(v) >= 0;
+                }
+            };
+        } else if (constraint instanceof FieldValueInConstraint) {
+            final FieldValueInConstraint c = (FieldValueInConstraint) constraint;
+            SortedSet<Object> values = c.getValues();
+            final int kind = getKind(c.getField(), values.isEmpty() ? null : values.first());
+            final Set<Object> set = new HashSet<Object>();
+            for (Object value : values) {
+                set.add(cast(kind, value, c.isCaseSensitive()));
+            }
+            return new ValuePredicate(c) {
+                @Override
+                boolean testValue(Object value) {
+                    return set.contains(cast(kind, value, c.isCaseSensitive()));
+                }
+            };
+        } else if (constraint instanceof CompareFieldsConstraint) {
+            final CompareFieldsConstraint c = (CompareFieldsConstraint) constraint;
+            final int kind = getKind(c.getField().getType());
+            final int operator = c.getOperator();
+            checkOperator(operator);
+            return new FieldPredicate(c) {
+                @Override
+                public boolean test(Object value1, Object value2) {
+                    if (value1 == null || value2 == null) {
+                        return ! inverse;
+                    }
+                    return compare(operator, cast(kind, value1, c.isCaseSensitive()).compareTo(cast(kind, value2, c.isCaseSensitive()))) != inverse;
+                }
+                @Override
+                public boolean matches(Node node) {
+                    return test(getValue(node, c.getField()), getValue(node, c.getField2()));
+                }
+            };
+        } else {
+            throw new UnsupportedOperationException("Constraints of type " + constraint.getClass().getName() + " cannot be evaluated in memory (" + constraint + ")");
+        }
+    }
+
+    private static ConstraintPredicate compile(final FieldValueConstraint c) {
+        final int operator = c.getOperator();
+        final int kind = operator == FieldCompareConstraint.LIKE || operator == FieldCompareConstraint.REGEXP ? STRING : getKind(c.getField(), c.getValue());
+        switch(kind) {
+        case BOOLEAN: {
+            if (operator != FieldCompareConstraint.EQUAL && operator != FieldCompareConstraint.NOT_EQUAL) {
+                throw new UnsupportedOperationException("Operator " + FieldCompareConstraint.OPERATOR_DESCRIPTIONS[operator] + " is not supported for booleans");
+            }
+            final boolean value = Casting.toBoolean(c.getValue());
+            return new ValuePredicate(c) {
+                @Override
+                boolean testValue(Object v) {
+                    return (Casting.toBoolean(v) == value) == (operator == FieldCompareConstraint.EQUAL);
+                }
+            };
+        }
+        case FLOATING: {
+            if (! isComparison(operator)) {
+                return unsupported(c, "numeric types");
+            }
+            final double value = Casting.toDouble(c.getValue());
+            return new ValuePredicate(c) {
+                @Override
+                boolean testValue(Object v) {
+                    return compare(operator, Double.compare(Casting.toDouble(v), value));
+                }
+            };
+        }
+        case INTEGRAL:
+        case DATE:
+        case NODE: {
+            if (! isComparison(operator)) {
+                return unsupported(c, "numeric types");
+            }
+            return new LongPredicate(c, operator, kind, toLong(kind, c.getValue()));
+        }
+        default: {
+            final String value = Casting.toString(c.getValue());
+            final boolean caseSensitive = c.isCaseSensitive();
+            if (operator == FieldCompareConstraint.LIKE) {
+                return compileLike(c, value, caseSensitive);
+            } else if (operator == FieldCompareConstraint.REGEXP) {
+                final Pattern pattern = Pattern.compile(value, caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                return new ValuePredicate(c) {
+                    @Override
+                    boolean testValue(Object v) {
+                        return pattern.matcher(Casting.toString(v)).find();
+                    }
+                };
+            } else if (! isComparison(operator)) {
+                return unsupported(c, "strings");
+            }
+            return new ValuePredicate(c) {
+                @Override
+                boolean testValue(Object v) {
+                    String s = Casting.toString(v);
+                    return compare(operator, caseSensitive ? s.compareTo(value) : s.compareToIgnoreCase(value));
+                }
+            };
+        }
+        }
+    }
+
+    /**
+     * Compiles a LIKE constraint, in which '%' matches any string, and '_' (or '?') any character.
+     * If the pattern is a literal which is perhaps preceded or followed by a '%', it is matched
+     * with {@link String#regionMatches}, otherwise with a regular expression.
+     */
+    private static ConstraintPredicate compileLike(FieldValueConstraint c, String like, final boolean caseSensitive) {
+        int start = 0;
+        int end = like.length();
+        final boolean anyStart = end > 0 && like.charAt(0) == '%';
+        if (anyStart) {
+            start++;
+        }
+        final boolean anyEnd = end > start && like.charAt(end - 1) == '%';
+        if (anyEnd) {
+            end--;
+        }
+        final String literal = like.substring(start, end);
+        boolean simple = true;
+        for (int i = 0; i < literal.length() && simple; i++) {
+            char ch = literal.charAt(i);
+            simple = ch != '%' && ch != '_' && ch != '?';
+        }
+        if (simple) {
+            final int length = literal.length();
+            return new ValuePredicate(c) {
+                @Override
+                boolean testValue(Object v) {
+                    String s = Casting.toString(v);
+                    if (anyStart && anyEnd) {
+                        // contains
+                        for (int i = 0; i <= s.length() - length; i++) {
+                            if (s.regionMatches(! caseSensitive, i, literal, 0, length)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    } else if (anyStart) {
+                        return s.length() >= length && s.regionMatches(! caseSensitive, s.length() - length, literal, 0, length);
+                    } else if (anyEnd) {
+                        return s.regionMatches(! caseSensitive, 0, literal, 0, length);
+                    } else {
+                        return s.length() == length && s.regionMatches(! caseSensitive, 0, literal, 0, length);
+                    }
+                }
+            };
+        }
+        StringBuilder regexp = new StringBuilder();
+        StringBuilder chars = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char ch = like.charAt(i);
+            if (ch == '%' || ch == '_' || ch == '?') {
+                if (chars.length() > 0) {
+                    regexp.append(Pattern.quote(chars.toString()));
+                    chars.setLength(0);
+                }
+                regexp.append(ch == '%' ? ".*" : ".");
+            } else {
+                chars.append(ch);
+            }
+        }
+        if (chars.length() > 0) {
+            regexp.append(Pattern.quote(chars.toString()));
+        }
+        final Pattern pattern = Pattern.compile(regexp.toString(), Pattern.DOTALL | (caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE));
+        if (log.isDebugEnabled()) {
+            log.debug("Compiled " + like + " to " + pattern);
+        }
+        return new ValuePredicate(c) {
+            @Override
+            boolean testValue(Object v) {
+                return pattern.matcher(Casting.toString(v)).matches();
+            }
+        };
+    }
+
+    /**
+     * Operators which are not supported for a type of value are logged, and the constraint then
+     * matches everything (if not inverse).
+     */
+    private static ConstraintPredicate unsupported(FieldConstraint c, String type) {
+        log.warn("Operator " + FieldCompareConstraint.OPERATOR_DESCRIPTIONS[((FieldCompareConstraint) c).getOperator()] + " is not supported for " + type + " (" + c + ")");
+        return new ValuePredicate(c) {
+            @Override
+            boolean testValue(Object v) {
+                return true;
+            }
+        };
+    }
+
+    private static boolean isComparison(int operator) {
+        switch(operator) {
+        case FieldCompareConstraint.LESS:
+        case FieldCompareConstraint.LESS_EQUAL:
+        case FieldCompareConstraint.EQUAL:
+        case FieldCompareConstraint.NOT_EQUAL:
+        case FieldCompareConstraint.GREATER:
+        case FieldCompareConstraint.GREATER_EQUAL:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static void checkOperator(int operator) {
+        if (! isComparison(operator)) {
+            throw new UnsupportedOperationException("Operator " + FieldCompareConstraint.OPERATOR_DESCRIPTIONS[operator] + " is not supported");
+        }
+    }
+
+    /**
+     * Translates the result of a {@link Comparable#compareTo} to the result of the given {@link FieldCompareConstraint} operator.
+     */
+    static boolean compare(int operator, int compared) {
+        switch(operator) {
+        case FieldCompareConstraint.LESS:          return compared < 0;
+        case FieldCompareConstraint.LESS_EQUAL:    return compared <= 0;
+        case FieldCompareConstraint.EQUAL:         return compared == 0;
+        case FieldCompareConstraint.NOT_EQUAL:     return compared != 0;
+        case FieldCompareConstraint.GREATER:       return compared > 0;
+        case FieldCompareConstraint.GREATER_EQUAL: return compared >= 0;
+        default:
+            throw new UnsupportedOperationException("Operator " + operator + " is not supported");
+        }
+    }
+
+    // How values are cast before they are compared.
+    private static final int BOOLEAN  = 0;
+    private static final int INTEGRAL = 1;
+    private static final int FLOATING = 2;
+    private static final int DATE     = 3;
+    private static final int NODE     = 4;
+    private static final int STRING   = 5;
+
+    private static int getKind(Object value) {
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        } else if (value instanceof Float || value instanceof Double || value instanceof java.math.BigDecimal) {
+            return FLOATING;
+        } else if (value instanceof Number) {
+            return INTEGRAL;
+        } else if (value instanceof Date) {
+            return DATE;
+        } else if (value instanceof Node) {
+            return NODE;
+        } else if (value instanceof CharSequence || value instanceof org.w3c.dom.Document) {
+            return STRING;
+        } else {
+            throw new UnsupportedOperationException("Values of type " + (value == null ? null : value.getClass().getName()) + " are not supported");
+        }
+    }
+
+    /**
+     * The kind of the type of the field. If that type is unknown, the kind of the value. Integral
+     * fields are compared with floating point values as floating point numbers.
+     */
+    private static int getKind(StepField field, Object value) {
+        int type = field.getType();
+        if (type == Field.TYPE_UNKNOWN) {
+            return value == null ? STRING : getKind(value);
+        }
+        int kind = getKind(type);
+        if ((kind == INTEGRAL || kind == NODE) && (value instanceof Float || value instanceof Double || value instanceof java.math.BigDecimal)) {
+            return FLOATING;
+        }
+        return kind;
+    }
+
+    private static int getKind(int fieldType) {
+        switch(fieldType) {
+        case Field.TYPE_BOOLEAN:  return BOOLEAN;
+        case Field.TYPE_INTEGER:
+        case Field.TYPE_LONG:     return INTEGRAL;
+        case Field.TYPE_FLOAT:
+        case Field.TYPE_DOUBLE:
+        case Field.TYPE_DECIMAL:  return FLOATING;
+        case Field.TYPE_DATETIME: return DATE;
+        case Field.TYPE_NODE:     return NODE;
+        default:                  return STRING;
+        }
+    }
+
+    private static long toLong(int kind, Object value) {
+        switch(kind) {
+        case DATE: return Casting.toDate(value).getTime();
+        case NODE: return value instanceof Node ? ((Node) value).getNumber() : Casting.toInt(value);
+        default:   return Casting.toLong(value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Comparable<Object> cast(int kind, Object value, boolean caseSensitive) {
+        Comparable<?> result;
+        switch(kind) {
+        case BOOLEAN:  result = Casting.toBoolean(value); break;
+        case FLOATING: result = Casting.toDouble(value); break;
+        case INTEGRAL:
+        case DATE:
+        case NODE:     result = toLong(kind, value); break;
+        default: {
+            String s = Casting.toString(value);
+            result = caseSensitive ? s : s.toLowerCase();
+        }
+        }
+        return (Comparable<Object>) result;
+    }
+
+    /**
+     * Extracts a part (as defined in {@link FieldValueDateConstraint}) from a date, like SQL's EXTRACT does.
+     */
+    public static int getDatePart(Date date, int part) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        switch(part) {
+        case FieldValueDateConstraint.CENTURY:     return (cal.get(Calendar.YEAR) + 99) / 100;
+        case FieldValueDateConstraint.QUARTER:     return cal.get(Calendar.MONTH) / 3 + 1;
+        case FieldValueDateConstraint.MONTH:       return cal.get(Calendar.MONTH) + 1;
+        case FieldValueDateConstraint.HOUR:        return cal.get(Calendar.HOUR_OF_DAY);
+        case FieldValueDateConstraint.YEAR:
+        case FieldValueDateConstraint.WEEK:
+        case FieldValueDateConstraint.DAY_OF_MONTH:
+        case FieldValueDateConstraint.DAY_OF_YEAR:
+        case FieldValueDateConstraint.DAY_OF_WEEK:
+        case FieldValueDateConstraint.MINUTE:
+        case FieldValueDateConstraint.SECOND:
+        case FieldValueDateConstraint.MILLISECOND: return cal.get(part);
+        default:
+            throw new IllegalArgumentException("Unknown date part " + part);
+        }
+    }
+
+    /**
+     * The value of a field in a node. That is a node of the step of the field, or a cluster node,
+     * of which the field names are prefixed with the alias of the step.
+     */
+    static Object getValue(Node node, StepField field) {
+        String name = field.getFieldName();
+        if (! node.getNodeManager().hasField(name)) {
+            Step step = field.getStep();
+            name = (step.getAlias() == null ? step.getTableName() : step.getAlias()) + "." + name;
+        }
+        return node.getValue(name);
+    }
+
+    /**
+     * Tests a value of the field of the constraint.
+     * @throws UnsupportedOperationException if this is not the predicate of a constraint on one field.
+     */
+    public boolean test(Object value) {
+        throw new UnsupportedOperationException("" + this);
+    }
+
+    /**
+     * Tests the values of the two fields of a {@link CompareFieldsConstraint}.
+     * @throws UnsupportedOperationException if this is not the predicate of a constraint which compares two fields.
+     */
+    public boolean test(Object value1, Object value2) {
+        throw new UnsupportedOperationException("" + this);
+    }
+
+    /**
+     * Tests the values of a node.
+     */
+    public abstract boolean matches(Node node);
+
+
+    /**
+     * Predicate of a constraint on a field.
+     */
+    static class FieldPredicate extends ConstraintPredicate {
+        final FieldConstraint constraint;
+        final boolean inverse;
+
+        FieldPredicate(FieldConstraint c) {
+            constraint = c;
+            inverse = c.isInverse();
+        }
+
+        @Override
+        public boolean matches(Node node) {
+            return test(getValue(node, constraint.getField()));
+        }
+
+        @Override
+        public String toString() {
+            return "Predicate(" + constraint + ")";
+        }
+    }
+
+    /**
+     * Predicate of a constraint which compares the value of a field. Implementations only test non-null values.
+     */
+    abstract static class ValuePredicate extends FieldPredicate {
+        ValuePredicate(FieldConstraint c) {
+            super(c);
+        }
+
+        abstract boolean testValue(Object value);
+
+        @Override
+        public final boolean test(Object value) {
+            if (value == null) {
+                return ! inverse;
+            }
+            return testValue(value) != inverse;
+        }
+    }
+
+    /**
+     * Compares values as longs, without boxing them.
+     */
+    static class LongPredicate extends ValuePredicate {
+        final int operator;
+        final int kind;
+        final long value;
+
+        LongPredicate(FieldConstraint c, int operator, int kind, long value) {
+            super(c);
+            this.operator = operator;
+            this.kind = kind;
+            this.value = value;
+        }
+
+        long toLong(Object v) {
+            return ConstraintPredicate.toLong(kind, v);
+        }
+
+        @Override
+        boolean testValue(Object v) {
+            long l = toLong(v);
+            return compare(operator, l < value ? -1 : (l == value ? 0 : 1));
+        }
+    }
+
+    static class CompositePredicate extends ConstraintPredicate {
+        final ConstraintPredicate[] childs;
+        final boolean and;
+        final boolean inverse;
+
+        CompositePredicate(ConstraintPredicate[] c, boolean a, boolean i) {
+            childs = c;
+            and = a;
+            inverse = i;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            for (ConstraintPredicate child : childs) {
+                if (child.test(value) != and) {
+                    return and == inverse;
+                }
+            }
+            return and != inverse;
+        }
+
+        @Override
+        public boolean matches(Node node) {
+            for (ConstraintPredicate child : childs) {
+                if (child.matches(node) != and) {
+                    return and == inverse;
+                }
+            }
+            return and != inverse;
+        }
+
+        @Override
+        public String toString() {
+            return (inverse ? "NOT " : "") + (and ? "AND" : "OR") + Arrays.asList(childs);
+        }
+    }
+
+}
@@ -0,0 +1,389 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+package org.mmbase.storage.search.implementation;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.logging.*;
+
+/**
+ * Rewrites queries to a canonical form, so that queries which are logically the same, but were
+ * constructed differently, are {@linkplain QuerySnapshot equal} and can share an entry in a query
+ * cache. The rewrites are:
+ * <ul>
+ *   <li>Nested composite constraints with the same operator are flattened, and a composite with one
+ *   child is replaced by the child.</li>
+ *   <li>The childs of composite constraints are sorted.</li>
+ *   <li>An 'in' constraint with one value becomes an 'equal' constraint.</li>
+ *   <li>In an 'and', '&gt;=' and '&lt;=' constraints and 'between' constraints on the same field are
+ *   merged to one 'between', '&gt;=' or '&lt;=' constraint.</li>
+ *   <li>A top level 'number in' or 'number =' constraint is moved to the {@linkplain Step#getNodes
+ *   nodes} of its step if that has none, and is dropped if it allows all nodes of the step anyway.</li>
+ * </ul>
+ *
+ * A normalizer also counts how often the queries, and their canonical forms, were seen among the
+ * last queries before, which shows what normalizing gains for a cache of that size.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ */
+public class QueryNormalizer {
+    private static final Logger log = Logging.getLoggerInstance(QueryNormalizer.class);
+
+    private final int window;
+    private final Map<QuerySnapshot, Boolean> seen;
+    private final Map<QuerySnapshot, Boolean> seenCanonical;
+
+    private final AtomicLong count         = new AtomicLong();
+    private final AtomicLong changed       = new AtomicLong();
+    private final AtomicLong hits          = new AtomicLong();
+    private final AtomicLong canonicalHits = new AtomicLong();
+
+    /**
+     * @param window The number of recent queries for which hits are counted, e.g. the size of the
+     * query cache.
+     */
+    public QueryNormalizer(int window) {
+        this.window = window;
+        seen          = createWindow();
+        seenCanonical = createWindow();
+    }
+
+    public QueryNormalizer() {
+        this(1024);
+    }
+
+    private Map<QuerySnapshot, Boolean> createWindow() {
+        return new LinkedHashMap<QuerySnapshot, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<QuerySnapshot, Boolean> eldest) {
+                return size() > window;
+            }
+        };
+    }
+
+    private static boolean hit(Map<QuerySnapshot, Boolean> map, QuerySnapshot snapshot) {
+        synchronized(map) {
+            return map.put(snapshot, Boolean.TRUE) != null;
+        }
+    }
+
+    /**
+     * Returns the canonical form of a query, which is a new query. The given query is not changed.
+     */
+    public BasicSearchQuery normalize(SearchQuery query) {
+        QuerySnapshot before = QuerySnapshot.of(query);
+        BasicSearchQuery result = canonical(query);
+        QuerySnapshot after = QuerySnapshot.of(result);
+        count.incrementAndGet();
+        if (before != after) {
+            changed.incrementAndGet();
+            if (log.isDebugEnabled()) {
+                log.debug("Normalized " + query + " to " + result);
+            }
+        }
+        if (hit(seen, before)) {
+            hits.incrementAndGet();
+        }
+        if (hit(seenCanonical, after)) {
+            canonicalHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * The number of normalized queries.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * The number of normalized queries which were changed by it.
+     */
+    public long getChanged() {
+        return changed.get();
+    }
+
+    /**
+     * The fraction of the queries which were the same as one of the recent ones.
+     */
+    public double getHitRate() {
+        long c = count.get();
+        return c == 0 ? 0.0 : (double) hits.get() / c;
+    }
+
+    /**
+     * The fraction of the queries of which the canonical form was the same as the one of a recent query.
+     */
+    public double getCanonicalHitRate() {
+        long c = count.get();
+        return c == 0 ? 0.0 : (double) canonicalHits.get() / c;
+    }
+
+    public void reset() {
+        count.set(0);
+        changed.set(0);
+        hits.set(0);
+        canonicalHits.set(0);
+        synchronized(seen) {
+            seen.clear();
+        }
+        synchronized(seenCanonical) {
+            seenCanonical.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueryNormalizer(queries: " + getCount() + ", changed: " + getChanged() +
+            ", hit rate: " + getHitRate() + ", canonical hit rate: " + getCanonicalHitRate() + ")";
+    }
+
+
+    /**
+     * Returns the canonical form of a query, without counting it.
+     */
+    public static BasicSearchQuery canonical(SearchQuery query) {
+        BasicSearchQuery result = new BasicSearchQuery(query);
+        Constraint constraint = query.getConstraint();
+        if (constraint != null) {
+            // a copy of which the fields are on the steps of the result, so that those can be changed
+            constraint = normalize(BasicSearchQuery.copyConstraint(result, constraint));
+            List<Constraint> top;
+            if (constraint instanceof CompositeConstraint && ! constraint.isInverse()
+                && ((CompositeConstraint) constraint).getLogicalOperator() == CompositeConstraint.LOGICAL_AND) {
+                top = ((CompositeConstraint) constraint).getChilds();
+            } else {
+                top = Collections.singletonList(constraint);
+            }
+            List<Constraint> remaining = new ArrayList<Constraint>();
+            for (Constraint c : top) {
+                if (! moveToStep(result, c)) {
+                    remaining.add(c);
+                }
+            }
+            if (remaining.size() != top.size()) {
+                constraint = remaining.isEmpty() ? null : remaining.size() == 1 ? remaining.get(0) :
+                    new BasicCompositeConstraint(CompositeConstraint.LOGICAL_AND, remaining.toArray(new Constraint[remaining.size()]));
+            }
+            result.setConstraint(constraint);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the canonical form of a constraint. The given constraint is not changed, but parts
+     * of it may be in the result.
+     */
+    public static Constraint normalize(Constraint constraint) {
+        if (constraint instanceof CompositeConstraint) {
+            CompositeConstraint composite = (CompositeConstraint) constraint;
+            int operator = composite.getLogicalOperator();
+            List<Constraint> childs = new ArrayList<Constraint>();
+            for (Constraint child : composite.getChilds()) {
+                Constraint c = normalize(child);
+                if (c instanceof CompositeConstraint && ! c.isInverse() && ((CompositeConstraint) c).getLogicalOperator() == operator) {
+                    childs.addAll(((CompositeConstraint) c).getChilds());
+                } else {
+                    childs.add(c);
+                }
+            }
+            if (operator == CompositeConstraint.LOGICAL_AND) {
+                childs = mergeRanges(childs);
+            }
+            if (childs.size() == 1 && ! composite.isInverse()) {
+                return childs.get(0);
+            }
+            sort(childs);
+            BasicCompositeConstraint result = new BasicCompositeConstraint(operator, childs.toArray(new Constraint[childs.size()]));
+            result.setInverse(composite.isInverse());
+            return result;
+        } else if (constraint instanceof FieldValueInConstraint && ((FieldValueInConstraint) constraint).getValues().size() == 1) {
+            FieldValueInConstraint in = (FieldValueInConstraint) constraint;
+            BasicFieldValueConstraint result = new BasicFieldValueConstraint(in.getField(), in.getValues().first());
+            result.setOperator(FieldCompareConstraint.EQUAL);
+            result.setCaseSensitive(in.isCaseSensitive());
+            result.setInverse(in.isInverse());
+            return result;
+        } else {
+            return constraint;
+        }
+    }
+
+    /**
+     * Sorts constraints on their string representations, which contain all of their properties.
+     */
+    private static void sort(List<Constraint> constraints) {
+        final Map<Constraint, String> keys = new IdentityHashMap<Constraint, String>();
+        for (Constraint c : constraints) {
+            keys.put(c, c.getClass().getName() + c.toString());
+        }
+        Collections.sort(constraints, new Comparator<Constraint>() {
+                @Override
+                public int compare(Constraint c1, Constraint c2) {
+                    return keys.get(c1).compareTo(keys.get(c2));
+                }
+            });
+    }
+
+    /**
+     * A range on a field, collected from the childs of an 'and'.
+     */
+    private static class Range {
+        final StepField field;
+        final boolean caseSensitive;
+        Object lower = null;
+        Object upper = null;
+        final int index;
+        Range(StepField f, boolean cs, int i) {
+            field = f;
+            caseSensitive = cs;
+            index = i;
+        }
+        Constraint toConstraint() {
+            BasicFieldConstraint result;
+            if (lower != null && upper != null) {
+                result = new BasicFieldValueBetweenConstraint(field, lower, upper);
+            } else {
+                BasicFieldValueConstraint c = new BasicFieldValueConstraint(field, lower != null ? lower : upper);
+                c.setOperator(lower != null ? FieldCompareConstraint.GREATER_EQUAL : FieldCompareConstraint.LESS_EQUAL);
+                result = c;
+            }
+            result.setCaseSensitive(caseSensitive);
+            return result;
+        }
+    }
+
+    /**
+     * Compares two values of a field, or returns <code>null</code> if they cannot be compared.
+     */
+    @SuppressWarnings("unchecked")
+    private static Integer compare(Object value1, Object value2, boolean caseSensitive) {
+        if (value1 instanceof Number && value2 instanceof Number) {
+            return Double.compare(((Number) value1).doubleValue(), ((Number) value2).doubleValue());
+        } else if (value1 instanceof String && value2 instanceof String && caseSensitive) {
+            return ((String) value1).compareTo((String) value2);
+        } else if (value1 instanceof Date && value2 instanceof Date) {
+            return ((Date) value1).compareTo((Date) value2);
+        }
+        return null;
+    }
+
+    private static String getKey(StepField field, boolean caseSensitive) {
+        Step step = field.getStep();
+        return (step.getAlias() == null ? step.getTableName() : step.getAlias()) + "." + field.getFieldName() + (caseSensitive ? "" : "/ci");
+    }
+
+    /**
+     * Merges the '&gt;=', '&lt;=' and 'between' constraints on the same field of an 'and'.
+     */
+    private static List<Constraint> mergeRanges(List<Constraint> childs) {
+        Map<String, Range> ranges = new LinkedHashMap<String, Range>();
+        List<Constraint> result = new ArrayList<Constraint>();
+        for (Constraint c : childs) {
+            if (c.isInverse() || ! (c instanceof FieldConstraint)) {
+                result.add(c);
+                continue;
+            }
+            FieldConstraint fc = (FieldConstraint) c;
+            Object lower;
+            Object upper;
+            if (c instanceof FieldValueBetweenConstraint) {
+                lower = ((FieldValueBetweenConstraint) c).getLowerLimit();
+                upper = ((FieldValueBetweenConstraint) c).getUpperLimit();
+            } else if (c instanceof FieldValueConstraint && ! (c instanceof FieldValueDateConstraint)) {
+                FieldValueConstraint v = (FieldValueConstraint) c;
+                if (v.getOperator() == FieldCompareConstraint.GREATER_EQUAL) {
+                    lower = v.getValue();
+                    upper = null;
+                } else if (v.getOperator() == FieldCompareConstraint.LESS_EQUAL) {
+                    lower = null;
+                    upper = v.getValue();
+                } else {
+                    result.add(c);
+                    continue;
+                }
+            } else {
+                result.add(c);
+                continue;
+            }
+            String key = getKey(fc.getField(), fc.isCaseSensitive());
+            Range range = ranges.get(key);
+            if (range == null) {
+                range = new Range(fc.getField(), fc.isCaseSensitive(), result.size());
+                range.lower = lower;
+                range.upper = upper;
+                ranges.put(key, range);
+                result.add(c);
+                continue;
+            }
+            Integer lowerCompare = lower == null || range.lower == null ? Integer.valueOf(0) : compare(lower, range.lower, fc.isCaseSensitive());
+            Integer upperCompare = upper == null || range.upper == null ? Integer.valueOf(0) : compare(upper, range.upper, fc.isCaseSensitive());
+            if (lowerCompare == null || upperCompare == null) {
+                // values which cannot be compared, leave it alone
+                result.add(c);
+                continue;
+            }
+            if (lower != null && (range.lower == null || lowerCompare > 0)) {
+                range.lower = lower;
+            }
+            if (upper != null && (range.upper == null || upperCompare < 0)) {
+                range.upper = upper;
+            }
+            // the first constraint on the field is replaced by the merged range
+            result.set(range.index, range.toConstraint());
+        }
+        return result;
+    }
+
+    /**
+     * Moves a 'number in' or 'number =' constraint to the nodes of its step, if that does not change the result.
+     * @return Whether the constraint can be dropped
+     */
+    private static boolean moveToStep(BasicSearchQuery query, Constraint c) {
+        if (c.isInverse() || ! (c instanceof FieldConstraint) || ! ((FieldConstraint) c).getField().getFieldName().equals("number")) {
+            return false;
+        }
+        Set<Integer> numbers = new TreeSet<Integer>();
+        if (c instanceof FieldValueInConstraint) {
+            for (Object value : ((FieldValueInConstraint) c).getValues()) {
+                if (! (value instanceof Number)) {
+                    return false;
+                }
+                numbers.add(((Number) value).intValue());
+            }
+        } else if (c instanceof FieldValueConstraint && ! (c instanceof FieldValueDateConstraint)
+                   && ((FieldValueConstraint) c).getOperator() == FieldCompareConstraint.EQUAL
+                   && ((FieldValueConstraint) c).getValue() instanceof Number) {
+            numbers.add(((Number) ((FieldValueConstraint) c).getValue()).intValue());
+        } else {
+            return false;
+        }
+        if (numbers.isEmpty()) {
+            return false;
+        }
+        Step step = ((FieldConstraint) c).getField().getStep();
+        if (! (step instanceof BasicStep)) {
+            return false;
+        }
+        SortedSet<Integer> nodes = step.getNodes();
+        if (nodes == null || nodes.isEmpty()) {
+            for (Integer number : numbers) {
+                step.addNode(number);
+            }
+            return true;
+        }
+        return numbers.containsAll(nodes);
+    }
+
+}
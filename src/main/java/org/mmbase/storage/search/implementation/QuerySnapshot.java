@@ -0,0 +1,229 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+package org.mmbase.storage.search.implementation;
+
+import java.util.*;
+import java.lang.ref.WeakReference;
+import org.mmbase.storage.search.*;
+
+/**
+ * An immutable, hash-consed representation of a {@link SearchQuery}. Every part of the query (a
+ * step, a field, a sort order, a constraint) is represented by a snapshot too, and snapshots are
+ * interned: equal parts, also of different queries, share one instance. So two snapshots are
+ * equal if and only if they are the same object. The hash code of a snapshot is calculated once,
+ * from its own values and the (already calculated) hash codes of the snapshots of its parts, so
+ * taking the snapshot of a query takes time proportional to its size only.
+ *
+ * A snapshot is stricter than {@link BasicSearchQuery#equals}: queries with equal snapshots are
+ * equal, but equal queries may, e.g. if a constraint value is an Integer in one and a Long in the
+ * other, have different snapshots. So a snapshot can be used as a key in a cache in stead of the
+ * query itself. Its hash code is not the one of the query, though.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ */
+public final class QuerySnapshot {
+
+    private static final int STRIPES = 32;
+
+    /**
+     * All snapshots which are in use, in a number of maps, so that snapshots with different hash
+     * codes can be interned simultaneously. The keys are held weakly, so snapshots which are not
+     * in use any more are removed.
+     */
+    private static final List<Map<QuerySnapshot, WeakReference<QuerySnapshot>>> INTERNED = new ArrayList<Map<QuerySnapshot, WeakReference<QuerySnapshot>>>(STRIPES);
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            INTERNED.add(new WeakHashMap<QuerySnapshot, WeakReference<QuerySnapshot>>());
+        }
+    }
+
+    /**
+     * Returns the snapshot of a query. For a query which is not {@linkplain SearchQuery#markUsed
+     * used} yet, the snapshot does not change if the query is changed afterwards.
+     */
+    public static QuerySnapshot of(SearchQuery query) {
+        List<Object> steps = new ArrayList<Object>();
+        for (Step step : query.getSteps()) {
+            steps.add(of(step));
+        }
+        List<Object> fields = new ArrayList<Object>();
+        for (StepField field : query.getFields()) {
+            fields.add(of(field));
+        }
+        List<Object> sortOrders = new ArrayList<Object>();
+        for (SortOrder sortOrder : query.getSortOrders()) {
+            sortOrders.add(of(sortOrder));
+        }
+        Constraint constraint = query.getConstraint();
+        return intern("query",
+                      query.isDistinct(), query.getMaxNumber(), query.getOffset(),
+                      intern("steps", steps.toArray()),
+                      intern("fields", fields.toArray()),
+                      intern("sortorders", sortOrders.toArray()),
+                      constraint == null ? null : of(constraint));
+    }
+
+    static QuerySnapshot of(Step step) {
+        SortedSet<Integer> nodes = step.getNodes();
+        Object nodeList = nodes == null ? null : Collections.unmodifiableList(new ArrayList<Integer>(nodes));
+        if (step instanceof RelationStep) {
+            RelationStep relationStep = (RelationStep) step;
+            return intern(step.getClass().getName(), step.getTableName(), step.getAlias(), nodeList,
+                          relationStep.getDirectionality(), relationStep.getCheckedDirectionality(), relationStep.getRole());
+        } else {
+            return intern(step.getClass().getName(), step.getTableName(), step.getAlias(), nodeList);
+        }
+    }
+
+    static QuerySnapshot of(StepField field) {
+        if (field instanceof AggregatedField) {
+            return intern(field.getClass().getName(),
+                          of(field.getStep()), field.getFieldName(), field.getAlias(), ((AggregatedField) field).getAggregationType());
+        } else {
+            return intern(field.getClass().getName(), of(field.getStep()), field.getFieldName(), field.getAlias());
+        }
+    }
+
+    static QuerySnapshot of(SortOrder sortOrder) {
+        return intern(sortOrder.getClass().getName(),
+                      of(sortOrder.getField()), sortOrder.getDirection(), sortOrder.isCaseSensitive(),
+                      sortOrder instanceof DateSortOrder ? ((DateSortOrder) sortOrder).getPart() : null);
+    }
+
+    static QuerySnapshot of(Constraint constraint) {
+        String type = constraint.getClass().getName();
+        if (constraint instanceof CompositeConstraint) {
+            CompositeConstraint c = (CompositeConstraint) constraint;
+            List<Constraint> childs = c.getChilds();
+            Object[] args = new Object[childs.size() + 2];
+            args[0] = c.isInverse();
+            args[1] = c.getLogicalOperator();
+            for (int i = 0; i < childs.size(); i++) {
+                args[i + 2] = of(childs.get(i));
+            }
+            return intern(type, args);
+        } else if (constraint instanceof FieldConstraint) {
+            FieldConstraint c = (FieldConstraint) constraint;
+            QuerySnapshot field = of(c.getField());
+            int operator = c instanceof FieldCompareConstraint ? ((FieldCompareConstraint) c).getOperator() : 0;
+            if (c instanceof FieldValueDateConstraint) {
+                FieldValueDateConstraint d = (FieldValueDateConstraint) c;
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field, operator, d.getValue(), d.getPart());
+            } else if (c instanceof FieldValueConstraint) {
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field, operator, ((FieldValueConstraint) c).getValue());
+            } else if (c instanceof FieldValueBetweenConstraint) {
+                FieldValueBetweenConstraint b = (FieldValueBetweenConstraint) c;
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field, b.getLowerLimit(), b.getUpperLimit());
+            } else if (c instanceof FieldValueInConstraint) {
+                List<Object> values = Collections.unmodifiableList(new ArrayList<Object>(((FieldValueInConstraint) c).getValues()));
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field, values);
+            } else if (c instanceof CompareFieldsConstraint) {
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field, operator, of(((CompareFieldsConstraint) c).getField2()));
+            } else if (c instanceof FieldValueInQueryConstraint) {
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field, of(((FieldValueInQueryConstraint) c).getInQuery()));
+            } else if (c instanceof FieldNullConstraint) {
+                return intern(type, c.isInverse(), c.isCaseSensitive(), field);
+            }
+        } else if (constraint instanceof LegacyConstraint) {
+            return intern(type, constraint.isInverse(), ((LegacyConstraint) constraint).getConstraint());
+        }
+        // unknown kind of constraint, it is its own snapshot
+        return intern(type, constraint);
+    }
+
+    private static QuerySnapshot intern(String type, Object... args) {
+        QuerySnapshot snapshot = new QuerySnapshot(type, args);
+        Map<QuerySnapshot, WeakReference<QuerySnapshot>> interned = INTERNED.get((snapshot.hash ^ (snapshot.hash >>> 16)) & (STRIPES - 1));
+        synchronized(interned) {
+            WeakReference<QuerySnapshot> ref = interned.get(snapshot);
+            QuerySnapshot existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            interned.put(snapshot, new WeakReference<QuerySnapshot>(snapshot));
+            return snapshot;
+        }
+    }
+
+    /**
+     * The number of snapshots (of queries and their parts) which are currently in use.
+     */
+    public static int getInternedCount() {
+        int count = 0;
+        for (Map<QuerySnapshot, WeakReference<QuerySnapshot>> interned : INTERNED) {
+            synchronized(interned) {
+                count += interned.size();
+            }
+        }
+        return count;
+    }
+
+    private final String type;
+    private final int hash;
+    /**
+     * Values, and the snapshots of the parts. The parts are interned already, so they are compared by identity.
+     */
+    private final Object[] args;
+
+    private QuerySnapshot(String type, Object[] args) {
+        this.type = type;
+        this.args = args;
+        // the hash codes of the snapshots of the parts are not calculated again
+        int h = type.hashCode();
+        for (Object arg : args) {
+            h = 31 * h + (arg == null ? 0 : arg.hashCode());
+        }
+        this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Compares only the values of this snapshot itself, and the identity of the snapshots of the
+     * parts. Used for interning; afterwards equal snapshots are the same object.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (! (o instanceof QuerySnapshot)) {
+            return false;
+        }
+        QuerySnapshot s = (QuerySnapshot) o;
+        if (hash != s.hash || ! type.equals(s.type) || args.length != s.args.length) {
+            return false;
+        }
+        for (int i = 0; i < args.length; i++) {
+            Object a = args[i];
+            Object b = s.args[i];
+            if (a instanceof QuerySnapshot || b instanceof QuerySnapshot) {
+                if (a != b) {
+                    return false;
+                }
+            } else if (a == null ? b != null : ! a.equals(b)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        String simpleType = type.substring(type.lastIndexOf('.') + 1);
+        return simpleType + Arrays.asList(args);
+    }
+
+}
@@ -9,8 +9,10 @@ See http://www.MMBase.org/license
  */
 package org.mmbase.storage.search.legacy;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
 import org.mmbase.bridge.*;
+import org.mmbase.core.event.*;
 import org.mmbase.storage.search.*;
 import org.mmbase.storage.search.implementation.*;
 import org.mmbase.util.logging.*;
@@ -316,62 +318,84 @@ public class ConstraintParser {
         return result;
     }
 
+    /**
+     * The characters which are tokens by themselves. Spaces separate tokens too, but are not tokens.
+     */
+    private static final String DELIMITERS = "()'\"=<>!,";
+    private static final String[] DELIMITER_TOKENS = new String[DELIMITERS.length()];
+    static {
+        for (int i = 0; i < DELIMITERS.length(); i++) {
+            DELIMITER_TOKENS[i] = DELIMITERS.substring(i, i + 1).intern();
+        }
+    }
+
     /**
      * Parses SQL search condition string into separate tokens, discarding
      * white spaces, concatenating strings between (single/double) quotes,
      * and replacing escaped (single/double) quotes in strings by the
      * original character.
+     * <p>
+     * The string is scanned once, by index. Tokens are substrings of the
+     * constraint, only strings containing escaped quotes are copied.
      *
      * @param sqlConstraint The SQL constraint string.
      * @return List of tokens.
+     * @throws IllegalArgumentException if a string is not terminated.
      */
     // package visibility!
     static List<String> tokenize(String sqlConstraint) {
-        // Parse into separate tokens.
         List<String> tokens = new ArrayList<String>();
-        StringTokenizer st = new StringTokenizer(sqlConstraint, " ()'\"=<>!,", true);
-        tokenize:
-            while (st.hasMoreTokens()) {
-                String token = st.nextToken(" ()'\"=<>!,");
-
+        int length = sqlConstraint.length();
+        int i = 0;
+        while (i < length) {
+            char c = sqlConstraint.charAt(i);
+            if (c == ' ') {
+                // Skip white spaces.
+                i++;
+            } else if (c == '\'' || c == '"') {
                 // String, delimited by single or double quotes.
-                if (token.equals("'") || token.equals("\"")) {
-                    tokens.add("'");
-                    StringBuilder sb = new StringBuilder();
-                    while (true) {
-                        String token2 = st.nextToken(token);
-                        if (token2.equals(token)) {
-                            if (!st.hasMoreTokens()) {
-                                // Token 2 is end delimiter and last token.
-                                tokens.add(sb.toString());
-                                tokens.add("'");
-                                break tokenize;
-                            } else {
-                                String token3 = st.nextToken(" ()'\"=<>!,");
-                                if (token3.equals(token)) {
-                                    // Token 2 and 3 are escaped delimiter.
-                                    sb.append(token);
-                                } else {
-                                    // Token 2 is end delimiter, but not last token.
-                                    tokens.add(sb.toString());
-                                    tokens.add("'");
-                                    token = token3;
-                                    break;
-                                }
-                            }
+                tokens.add("'");
+                StringBuilder sb = null;
+                int start = i + 1;
+                while (true) {
+                    int end = sqlConstraint.indexOf(c, start);
+                    if (end == -1) {
+                        throw new IllegalArgumentException("Unterminated string at " + i + ": \"" + sqlConstraint + "\"");
+                    }
+                    if (end + 1 < length && sqlConstraint.charAt(end + 1) == c) {
+                        // Escaped delimiter.
+                        if (sb == null) {
+                            sb = new StringBuilder();
+                        }
+                        sb.append(sqlConstraint, start, end + 1);
+                        start = end + 2;
+                    } else {
+                        // End delimiter.
+                        if (sb == null) {
+                            tokens.add(sqlConstraint.substring(start, end));
                         } else {
-                            // Token 2 is string.
-                            sb.append(token2);
+                            tokens.add(sb.append(sqlConstraint, start, end).toString());
                         }
+                        i = end + 1;
+                        break;
                     }
                 }
-
-                // Add token, but skip white spaces.
-                if (!token.equals(" ")) {
-                    tokens.add(token);
+                tokens.add("'");
+            } else {
+                int delimiter = DELIMITERS.indexOf(c);
+                if (delimiter != -1) {
+                    tokens.add(DELIMITER_TOKENS[delimiter]);
+                    i++;
+                } else {
+                    int start = i;
+                    while (i < length && sqlConstraint.charAt(i) != ' ' && DELIMITERS.indexOf(sqlConstraint.charAt(i)) == -1) {
+                        i++;
+                    }
+                    tokens.add(sqlConstraint.substring(start, i));
                 }
             }
-            return tokens;
+        }
+        return tokens;
     }
 
     /**
@@ -514,6 +538,19 @@ public class ConstraintParser {
      * @return The constraint.
      */
     public Constraint toConstraint(String sqlConstraint) {
+        CacheKey key = new CacheKey(queryContext, sqlConstraint, steps, query);
+        Template template = cache.get(key);
+        if (template == null) {
+            template = new Template(parse(sqlConstraint), steps);
+            cache.put(key, template);
+        }
+        return template.bind(steps);
+    }
+
+    /**
+     * Parses the constraint, without using the cache.
+     */
+    private Constraint parse(String sqlConstraint) {
         Constraint result = null;
         try {
             ListIterator<String> iTokens = tokenize(sqlConstraint).listIterator();
@@ -542,6 +579,203 @@ public class ConstraintParser {
         return result;
     }
 
+    private static volatile int maxCacheSize = 1000;
+
+    /**
+     * Parsed constraints, least recently used first.
+     */
+    private static final Map<CacheKey, Template> cache = Collections.synchronizedMap(new LinkedHashMap<CacheKey, Template>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Template> eldest) {
+                return size() > maxCacheSize;
+            }
+        });
+
+    static {
+        // Parsing depends on the fields of the node managers, so if they change, everything must be parsed again.
+        EventManager.getInstance().addEventListener(new SystemEventListener() {
+                @Override
+                public int getWeight() {
+                    return 0;
+                }
+                @Override
+                public void notify(SystemEvent se) {
+                    if (se instanceof BuildersRead) {
+                        log.debug("Builders read, clearing cache of parsed constraints");
+                        cache.clear();
+                    }
+                }
+            });
+    }
+
+    /**
+     * The maximal number of parsed constraints which are kept by {@link #toConstraint}. The least
+     * recently used ones are evicted first. Defaults to 1000.
+     * @since MMBase-2.0
+     */
+    public static void setMaxCacheSize(int size) {
+        maxCacheSize = size;
+        cache.clear();
+    }
+
+    /**
+     * The number of parsed constraints which are currently cached.
+     * @since MMBase-2.0
+     */
+    public static int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * How a constraint string is parsed depends on the query context, which provides the fields,
+     * and on the aliases and the tables of the steps. If the query is a {@link NodeQuery}, a field
+     * without an alias belongs to its node step.
+     *
+     * For a bridge query context, that is its cloud context, because all its clouds know the same
+     * fields. Different cloud contexts may have node managers with the same names, so the key
+     * refers to the cloud context (or to another query context) itself, and not e.g. to its
+     * URI. It does so weakly, and a key of which the context is gone, equals no other key.
+     */
+    private static final class CacheKey {
+        private final WeakReference<Object> context;
+        private final String constraint;
+        private final String[] steps;
+        private final int nodeStep;
+        private final int hash;
+
+        CacheKey(QueryContext queryContext, String constraint, List<? extends Step> s, SearchQuery query) {
+            Object c = queryContext instanceof QueryContext.Bridge ?
+                ((QueryContext.Bridge) queryContext).getCloud().getCloudContext() :
+                queryContext;
+            this.context = new WeakReference<Object>(c);
+            this.constraint = constraint;
+            steps = new String[2 * s.size()];
+            int h = System.identityHashCode(c) * 31 + constraint.hashCode();
+            for (int i = 0; i < s.size(); i++) {
+                Step step = s.get(i);
+                steps[2 * i]     = step.getAlias();
+                steps[2 * i + 1] = step.getTableName();
+                h = h * 31 + (steps[2 * i] == null ? 0 : steps[2 * i].hashCode());
+                h = h * 31 + steps[2 * i + 1].hashCode();
+            }
+            nodeStep = query instanceof NodeQuery ? indexOf(s, ((NodeQuery) query).getNodeStep()) : -1;
+            hash = h * 31 + nodeStep;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (! (o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey k = (CacheKey) o;
+            Object c = context.get();
+            return hash == k.hash && nodeStep == k.nodeStep &&
+                constraint.equals(k.constraint) &&
+                Arrays.equals(steps, k.steps) &&
+                c != null && c == k.context.get();
+        }
+    }
+
+    private static int indexOf(List<? extends Step> steps, Step step) {
+        for (int i = 0; i < steps.size(); i++) {
+            if (steps.get(i) == step) {
+                return i;
+            }
+        }
+        return steps.indexOf(step);
+    }
+
+    /**
+     * A parsed constraint, which is never handed out itself, but is copied for every query which
+     * uses it. The fields of the copy belong to the steps of that query.
+     *
+     * The template itself does not refer to the steps of the query it was parsed for, but to
+     * placeholder steps with the same index, table and alias.
+     */
+    private static final class Template {
+        private final Constraint constraint;
+        private final List<Step> steps;
+
+        Template(Constraint parsed, List<? extends Step> from) {
+            BasicSearchQuery placeholders = new BasicSearchQuery();
+            for (Step step : from) {
+                placeholders.addStep(step.getTableName()).setAlias(step.getAlias());
+            }
+            this.steps = placeholders.getSteps();
+            this.constraint = parsed == null ? null : bind(parsed, from, steps);
+        }
+
+        Constraint bind(List<? extends Step> to) {
+            return constraint == null ? null : bind(constraint, steps, to);
+        }
+
+        private static StepField bind(StepField field, List<? extends Step> from, List<? extends Step> to) {
+            int index = indexOf(from, field.getStep());
+            if (index == -1) {
+                throw new IllegalStateException("Step of " + field + " not found in " + from);
+            }
+            return new BasicStepField(to.get(index), ((BasicStepField) field).getField());
+        }
+
+        private static BasicConstraint bind(Constraint c, List<? extends Step> from, List<? extends Step> to) {
+            BasicConstraint result;
+            if (c instanceof CompositeConstraint) {
+                CompositeConstraint composite = (CompositeConstraint) c;
+                BasicCompositeConstraint newComposite = new BasicCompositeConstraint(composite.getLogicalOperator());
+                for (Constraint child : composite.getChilds()) {
+                    newComposite.addChild(bind(child, from, to));
+                }
+                result = newComposite;
+            } else if (c instanceof LegacyConstraint) {
+                result = new BasicLegacyConstraint(((LegacyConstraint) c).getConstraint());
+            } else if (c instanceof FieldConstraint) {
+                StepField field = bind(((FieldConstraint) c).getField(), from, to);
+                BasicFieldConstraint newConstraint;
+                if (c instanceof FieldValueConstraint) {
+                    FieldValueConstraint constraint = (FieldValueConstraint) c;
+                    newConstraint = new BasicFieldValueConstraint(field, constraint.getValue()).setOperator(constraint.getOperator());
+                } else if (c instanceof CompareFieldsConstraint) {
+                    CompareFieldsConstraint constraint = (CompareFieldsConstraint) c;
+                    newConstraint = new BasicCompareFieldsConstraint(field, bind(constraint.getField2(), from, to)).setOperator(constraint.getOperator());
+                } else if (c instanceof FieldNullConstraint) {
+                    newConstraint = new BasicFieldNullConstraint(field);
+                } else if (c instanceof FieldValueInConstraint) {
+                    BasicFieldValueInConstraint in = new BasicFieldValueInConstraint(field);
+                    for (Object value : ((FieldValueInConstraint) c).getValues()) {
+                        in.addValue(value);
+                    }
+                    newConstraint = in;
+                } else if (c instanceof FieldValueBetweenConstraint) {
+                    FieldValueBetweenConstraint constraint = (FieldValueBetweenConstraint) c;
+                    newConstraint = new BasicFieldValueBetweenConstraint(field, constraint.getLowerLimit(), constraint.getUpperLimit());
+                } else if (c instanceof StringSearchConstraint) {
+                    StringSearchConstraint constraint = (StringSearchConstraint) c;
+                    BasicStringSearchConstraint stringSearch = new BasicStringSearchConstraint(field, constraint.getSearchType(), constraint.getMatchType(), constraint.getSearchTerms());
+                    for (Map.Entry<String, Object> entry : constraint.getParameters().entrySet()) {
+                        stringSearch.setParameter(entry.getKey(), entry.getValue());
+                    }
+                    newConstraint = stringSearch;
+                } else {
+                    throw new IllegalStateException("Unexpected constraint " + c);
+                }
+                newConstraint.setCaseSensitive(((FieldConstraint) c).isCaseSensitive());
+                result = newConstraint;
+            } else {
+                throw new IllegalStateException("Unexpected constraint " + c);
+            }
+            result.setInverse(c.isInverse());
+            return result;
+        }
+    }
+
 
     /**
      * Parses a <em>field</em> string, and produces a corresponding
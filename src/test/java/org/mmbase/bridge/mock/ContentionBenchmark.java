@@ -0,0 +1,119 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.mock;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.util.*;
+import org.mmbase.datatypes.*;
+import org.mmbase.storage.search.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Measures the throughput of a {@link MockCloudContext} with a mixed workload of node reads,
+ * queries and commits, with 1, 8 and 32 threads. Run it with <code>main</code>; it is not a test.
+ *
+ * @author  Michiel Meeuwissen
+ * @version $Id$
+ * @since   MMBase-2.0
+ */
+public class ContentionBenchmark  {
+
+    private static final int NODES = 10000;
+
+    private final MockCloudContext cloudContext = new MockCloudContext();
+    private final int[] numbers = new int[NODES];
+
+    ContentionBenchmark() {
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cloudContext.addNodeManager("aa", map);
+        cloudContext.createIndex("aa", "pos", true);
+        for (int i = 0; i < NODES; i++) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put("title", "Title " + i);
+            values.put("pos", i);
+            numbers[i] = cloudContext.addNode("aa", values);
+        }
+    }
+
+    /**
+     * One operation: 80% node reads, 15% queries and 5% commits.
+     */
+    void operation(Cloud cloud, NodeManager aa, Random random) {
+        int choice = random.nextInt(100);
+        if (choice < 80) {
+            cloud.getNode(numbers[random.nextInt(NODES)]).getStringValue("title");
+        } else if (choice < 95) {
+            NodeQuery q = aa.createQuery();
+            int pos = random.nextInt(NODES);
+            Queries.addConstraint(q, Queries.createConstraint(q, "pos", FieldCompareConstraint.BETWEEN, pos, pos + 10, true));
+            aa.getList(q);
+        } else {
+            Node node = cloud.getNode(numbers[random.nextInt(NODES)]);
+            node.setIntValue("pos", random.nextInt(NODES));
+            node.commit();
+        }
+    }
+
+    /**
+     * @return The number of operations per second
+     */
+    double run(int threads, final long millis) throws Exception {
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        Cloud cloud = cloudContext.getCloud("mmbase");
+                        NodeManager aa = cloud.getNodeManager("aa");
+                        Random random = new Random(seed);
+                        start.await();
+                        long end = System.currentTimeMillis() + millis;
+                        long count = 0;
+                        while (System.currentTimeMillis() < end) {
+                            operation(cloud, aa, random);
+                            count++;
+                        }
+                        operations.addAndGet(count);
+                        return null;
+                    }
+                }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long duration = System.nanoTime() - begin;
+        executor.shutdown();
+        return operations.get() * 1000000000.0 / duration;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        DataTypes.initialize();
+        long millis = argv.length > 0 ? Long.parseLong(argv[0]) : 5000;
+        ContentionBenchmark benchmark = new ContentionBenchmark();
+        // warm up
+        benchmark.run(4, millis / 5);
+        for (int threads : new int[] {1, 8, 32}) {
+            System.out.println(threads + " threads: " + Math.round(benchmark.run(threads, millis)) + " operations/s");
+        }
+    }
+
+}
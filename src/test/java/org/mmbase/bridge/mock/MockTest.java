@@ -15,6 +15,8 @@ import org.mmbase.bridge.mock.MockBuilderReader;
 import org.mmbase.bridge.*;
 import org.mmbase.bridge.util.*;
 import org.mmbase.datatypes.*;
+import org.mmbase.storage.search.*;
+import org.mmbase.util.Casting;
 import java.util.*;
 import org.junit.*;
 import static org.junit.Assert.*;
@@ -110,6 +112,33 @@ public class MockTest  {
 
     }
 
+    @Test
+    public void duplicateAlias() {
+        Cloud cloud = getCloudContext().getCloud("mmbase");
+        Node node1 = cloud.getNodeManager("object").createNode();
+        node1.commit();
+        node1.createAlias("duplicatealias");
+        assertFalse(cloud.hasNode("duplicatealias"));
+        assertTrue(node1.getAliases().contains("duplicatealias"));
+        node1.commit();
+        Node node2 = cloud.getNodeManager("object").createNode();
+        node2.commit();
+        try {
+            node2.createAlias("duplicatealias");
+            fail("Should have thrown exception");
+        } catch (BridgeException be) {
+        }
+        assertEquals(node1.getNumber(), cloud.getNode("duplicatealias").getNumber());
+        node1.delete();
+        assertFalse(cloud.hasNode("duplicatealias"));
+        node2.createAlias("duplicatealias");
+        node2.cancel();
+        assertFalse(cloud.hasNode("duplicatealias"));
+        node2.createAlias("duplicatealias");
+        node2.commit();
+        assertEquals(node2.getNumber(), cloud.getNode("duplicatealias").getNumber());
+    }
+
     @Test
     public void builderReader() throws Exception {
         Cloud cloud = getCloudContext().getCloud("mmbase");
@@ -187,6 +216,25 @@ public class MockTest  {
         assertTrue(object.getDescendants().contains(insrel));
     }
 
+    @Test
+    public void nodeManagerCache() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        cc.addCore();
+        cc.addCoreModel();
+        Cloud c = cc.getCloud("mmbase");
+        NodeManager object = c.getNodeManager("object");
+        assertSame(object, c.getNodeManager("object"));
+        assertSame(c.getRelationManager("related"), c.getRelationManager("related"));
+        assertTrue(object.getDescendants().contains(c.getNodeManager("insrel")));
+        assertFalse(c.getNodeManager("insrel").getDescendants().contains(object));
+
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        assertNotSame(object, c.getNodeManager("object"));
+        assertTrue(c.hasNodeManager("aa"));
+    }
+
     @Test
     public void count() throws Exception {
         MockCloudContext cc = MockCloudContext.getInstance();
@@ -195,6 +243,44 @@ public class MockTest  {
         assertEquals("" + cc.nodes, 5, Queries.count(typedef.createQuery()));
     }
 
+    @Test
+    public void countPerType() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("aa", map);
+        cc.addNodeManager("bb", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        NodeManager bb = cloud.getNodeManager("bb");
+        List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < 5; i++) {
+            Node n = aa.createNode();
+            n.setStringValue("title", "" + i);
+            n.commit();
+            nodes.add(n);
+        }
+        assertEquals(5, Queries.count(aa.createQuery()));
+        assertEquals(0, Queries.count(bb.createQuery()));
+
+        Node changed = nodes.get(0);
+        changed.setNodeManager(bb);
+        changed.commit();
+        assertEquals(4, Queries.count(aa.createQuery()));
+        assertEquals(1, Queries.count(bb.createQuery()));
+        assertEquals(4, cc.countNodes(Arrays.asList("aa")));
+        assertEquals(Arrays.asList(changed.getNumber()), new ArrayList<Integer>(cc.getNodeNumbers("bb")));
+        assertEquals(1, bb.getList(bb.createQuery()).size());
+
+        nodes.get(1).delete();
+        changed.delete();
+        assertEquals(3, Queries.count(aa.createQuery()));
+        assertEquals(0, Queries.count(bb.createQuery()));
+        assertEquals(3, aa.getList(aa.createQuery()).size());
+        assertTrue(cc.getNodeNumbers("bb").isEmpty());
+    }
+
     @Test
     public void nodeQuery() throws Exception {
         MockCloudContext cc = MockCloudContext.getInstance();
@@ -220,6 +306,814 @@ public class MockTest  {
         assertEquals("" + cc.nodes, 5, result.size());
     }
 
+    @Test
+    public void queryWithConstraint() throws Exception {
+        MockCloudContext cc = MockCloudContext.getInstance();
+        Cloud c = cc.getCloud("mmbase");
+        NodeManager typedef = c.getNodeManager("typedef");
+        NodeQuery q = typedef.createQuery();
+        Queries.addConstraint(q, Queries.createConstraint(q, "name", FieldCompareConstraint.LIKE, "%REL"));
+        NodeList result = typedef.getList(q);
+        assertEquals("" + result, 2, result.size());
+        assertEquals(2, Queries.count(q));
+
+        NodeQuery q2 = typedef.createQuery();
+        Constraint in = Queries.createConstraint(q2, "name", Queries.OPERATOR_IN, Arrays.asList("object", "insrel", "nonexisting"));
+        q2.setInverse(in, true);
+        Queries.addConstraint(q2, in);
+        assertEquals(3, typedef.getList(q2).size());
+    }
+
+    @Test
+    public void relatedNodesQuery() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        cc.addCore();
+        cc.addCoreModel();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("news", map);
+        cc.addNodeManager("urls", map);
+        Cloud cloud = cc.getCloud("mmbase");
+
+        Node news = cloud.getNodeManager("news").createNode();
+        news.commit();
+        Node url1 = cloud.getNodeManager("urls").createNode();
+        url1.commit();
+        Node url2 = cloud.getNodeManager("urls").createNode();
+        url2.commit();
+        Node url3 = cloud.getNodeManager("urls").createNode();
+        url3.commit();
+        RelationManager related = cloud.getRelationManager("related");
+        related.createRelation(news, url1).commit();
+        related.createRelation(url2, news).commit();
+
+        NodeManager urls = cloud.getNodeManager("urls");
+        assertEquals(2, cloud.getList(Queries.createRelatedNodesQuery(news, urls, "related", "both")).size());
+        NodeList destinations = cloud.getList(Queries.createRelatedNodesQuery(news, urls, "related", "destination"));
+        assertEquals(1, destinations.size());
+        assertEquals(url1.getNumber(), destinations.getNode(0).getNumber());
+        NodeList sources = cloud.getList(Queries.createRelatedNodesQuery(news, urls, "related", "source"));
+        assertEquals(1, sources.size());
+        assertEquals(url2.getNumber(), sources.getNode(0).getNumber());
+        assertEquals(0, cloud.getList(Queries.createRelatedNodesQuery(url3, cloud.getNodeManager("news"), "related", "both")).size());
+    }
+
+    @Test
+    public void fieldIndex() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        cc.createIndex("aa", "title", false);
+        cc.createIndex("aa", "pos", true);
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        for (int i = 0; i < 10; i++) {
+            Node n = aa.createNode();
+            n.setStringValue("title", "Title " + (i % 3));
+            n.setIntValue("pos", i);
+            n.commit();
+        }
+        NodeQuery q = aa.createQuery();
+        Queries.addConstraint(q, Queries.createConstraint(q, "title", FieldCompareConstraint.EQUAL, "title 1"));
+        assertEquals(3, aa.getList(q).size());
+
+        NodeQuery q2 = aa.createQuery();
+        Queries.addConstraint(q2, Queries.createConstraint(q2, "pos", FieldCompareConstraint.GREATER_EQUAL, 7));
+        assertEquals(3, Queries.count(q2));
+
+        Node changed = aa.getList(q2).getNode(0);
+        changed.setIntValue("pos", 1);
+        changed.commit();
+        assertEquals(2, Queries.count(q2));
+
+        // sorting does not create indices
+        NodeQuery q3 = aa.createQuery();
+        q3.addSortOrder(q3.getStepField(aa.getField("title")), SortOrder.ORDER_ASCENDING);
+        assertEquals(10, aa.getList(q3).size());
+        assertFalse(cc.getFieldIndex("aa", "title").sorted);
+    }
+
+    @Test
+    public void nullComparisons() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        NodeManager aa = cc.getCloud("mmbase").getNodeManager("aa");
+        for (int i = 0; i < 4; i++) {
+            Node n = aa.createNode();
+            if (i > 0) {
+                n.setStringValue("title", "title " + i);
+            }
+            n.setIntValue("pos", i);
+            n.commit();
+        }
+
+        // like in SQL, comparing null is unknown, also when inverse
+        NodeQuery q = aa.createQuery();
+        Constraint c = Queries.createConstraint(q, "title", FieldCompareConstraint.EQUAL, "title 1");
+        q.setInverse(c, true);
+        Queries.addConstraint(q, c);
+        assertEquals(2, Queries.count(q));
+
+        NodeQuery q2 = aa.createQuery();
+        Constraint title = Queries.createConstraint(q2, "title", FieldCompareConstraint.EQUAL, "title 1");
+        Constraint pos = Queries.createConstraint(q2, "pos", FieldCompareConstraint.LESS, 2);
+        CompositeConstraint and = q2.createConstraint(title, CompositeConstraint.LOGICAL_AND, pos);
+        q2.setInverse(and, true);
+        Queries.addConstraint(q2, and);
+        // NOT (unknown AND true) is unknown, so the node without title does not match
+        assertEquals(2, Queries.count(q2));
+
+        NodeQuery q3 = aa.createQuery();
+        title = Queries.createConstraint(q3, "title", FieldCompareConstraint.EQUAL, "title 1");
+        pos = Queries.createConstraint(q3, "pos", FieldCompareConstraint.LESS, 2);
+        CompositeConstraint or = q3.createConstraint(title, CompositeConstraint.LOGICAL_OR, pos);
+        q3.setInverse(or, true);
+        Queries.addConstraint(q3, or);
+        // NOT (unknown OR true) is false
+        assertEquals(2, Queries.count(q3));
+
+        NodeQuery q4 = aa.createQuery();
+        Constraint isNull = q4.createConstraint(q4.getStepField(aa.getField("title")));
+        Queries.addConstraint(q4, isNull);
+        assertEquals(1, Queries.count(q4));
+    }
+
+    @Test
+    public void aggregation() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        for (int i = 0; i < 10; i++) {
+            Node n = aa.createNode();
+            n.setStringValue("title", "Title " + (i % 3));
+            n.setIntValue("pos", i);
+            n.commit();
+        }
+        NodeQuery q = aa.createQuery();
+        assertEquals(0, Casting.toInt(Queries.min(q, q.getStepField(aa.getField("pos")))));
+        assertEquals(9, Casting.toInt(Queries.max(q, q.getStepField(aa.getField("pos")))));
+        assertEquals("Title 0", Queries.min(q, q.getStepField(aa.getField("title"))));
+
+        Queries.addConstraint(q, Queries.createConstraint(q, "pos", FieldCompareConstraint.LESS, 5));
+        assertEquals(4, Casting.toInt(Queries.max(q, q.getStepField(aa.getField("pos")))));
+
+        Query grouped = q.aggregatingClone();
+        Step step = grouped.getSteps().get(0);
+        grouped.addAggregatedField(step, aa.getField("title"), AggregatedField.AGGREGATION_TYPE_GROUP_BY);
+        grouped.addAggregatedField(step, aa.getField("pos"), AggregatedField.AGGREGATION_TYPE_COUNT);
+        NodeList groups = cloud.getList(grouped);
+        assertEquals(3, groups.size());
+        int total = 0;
+        for (Node group : groups) {
+            total += group.getIntValue("pos");
+        }
+        assertEquals(5, total);
+
+        // offset and max number apply to the groups
+        Query limited = grouped.clone();
+        limited.setOffset(1);
+        limited.setMaxNumber(1);
+        assertEquals(1, cloud.getList(limited).size());
+        limited = grouped.clone();
+        limited.setOffset(2);
+        assertEquals(1, cloud.getList(limited).size());
+    }
+
+    @Test
+    public void sortOrders() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        for (int i = 0; i < 20; i++) {
+            Node n = aa.createNode();
+            n.setStringValue("title", (i % 2 == 0 ? "a" : "B") + (i % 5));
+            n.setIntValue("pos", (i * 7) % 20);
+            n.commit();
+        }
+        NodeQuery q = aa.createQuery();
+        Queries.addSortOrders(q, "pos", "DOWN");
+        NodeList all = aa.getList(q);
+        assertEquals(20, all.size());
+        assertEquals(19, all.getNode(0).getIntValue("pos"));
+        assertEquals(0,  all.getNode(19).getIntValue("pos"));
+
+        // small page, which uses a heap
+        q.setOffset(2);
+        q.setMaxNumber(3);
+        NodeList page = aa.getList(q);
+        assertEquals(3, page.size());
+        assertEquals(17, page.getNode(0).getIntValue("pos"));
+        assertEquals(15, page.getNode(2).getIntValue("pos"));
+
+        // large page, which sorts everything
+        q.setOffset(15);
+        q.setMaxNumber(10);
+        page = aa.getList(q);
+        assertEquals(5, page.size());
+        assertEquals(4, page.getNode(0).getIntValue("pos"));
+
+        // case insensitive on title, then on pos
+        NodeQuery q2 = aa.createQuery();
+        Queries.addSortOrders(q2, "title,pos", "UP,UP");
+        q2.setMaxNumber(3);
+        NodeList titles = aa.getList(q2);
+        assertEquals("a0", titles.getNode(0).getStringValue("title"));
+        assertEquals("a0", titles.getNode(1).getStringValue("title"));
+        assertTrue(titles.getNode(0).getIntValue("pos") < titles.getNode(1).getIntValue("pos"));
+        assertEquals("B0", titles.getNode(2).getStringValue("title"));
+    }
+
+    @Test
+    public void bulkLoad() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        cc.addCore();
+        cc.addCoreModel();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        cc.createIndex("aa", "pos", true);
+
+        BulkLoader loader = new BulkLoader(cc);
+        loader.setBatchSize(2);
+        loader.loadCsv("aa", new java.io.StringReader("number,title,pos,alias\n" +
+                                                      "a1,\"Title, one\",1,bulkalias\n" +
+                                                      "a2,Title two,2,\n" +
+                                                      "a3,\"Title \"\"three\"\"\",3,\n"));
+        String xml =
+            "<insrel exportsource=\"mmbase://test\" timestamp=\"20100101000000\">" +
+            "<node number=\"r1\" owner=\"admin\" snumber=\"a1\" dnumber=\"a2\" rtype=\"related\"/>" +
+            "<node number=\"r2\" owner=\"admin\" snumber=\"bulkalias\" dnumber=\"a3\" rtype=\"related\"/>" +
+            "</insrel>";
+        loader.loadXml(new java.io.ByteArrayInputStream(xml.getBytes("UTF-8")));
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("title", "Title four");
+        record.put("pos", 4);
+        records.add(record);
+        loader.load("aa", records.iterator());
+        assertEquals(6, loader.finish());
+
+        Cloud cloud = cc.getCloud("mmbase");
+        Node a1 = cloud.getNode(loader.getNodeNumber("a1"));
+        assertEquals("Title, one", a1.getStringValue("title"));
+        assertEquals(1, a1.getIntValue("pos"));
+        assertEquals(a1.getNumber(), cloud.getNode("bulkalias").getNumber());
+        assertEquals("Title \"three\"", cloud.getNode(loader.getNodeNumber("a3")).getStringValue("title"));
+        Node r2 = cloud.getNode(loader.getNodeNumber("r2"));
+        assertEquals(a1.getNumber(), r2.getIntValue("snumber"));
+        assertEquals(loader.getNodeNumber("a3").intValue(), r2.getIntValue("dnumber"));
+
+        // the index is built at the end
+        NodeQuery q = cloud.getNodeManager("aa").createQuery();
+        Queries.addConstraint(q, Queries.createConstraint(q, "pos", FieldCompareConstraint.GREATER_EQUAL, 3));
+        assertEquals(2, Queries.count(q));
+        assertNotNull(cc.getFieldIndex("aa", "pos"));
+
+        // a failed load is ended by closing the loader
+        BulkLoader failing = new BulkLoader(cc);
+        failing.setBatchSize(1);
+        try {
+            failing.loadCsv("aa", new java.io.StringReader("title,pos\nTitle five,5\nTitle six,6,\"unterminated\n"));
+            fail();
+        } catch (java.io.IOException ioe) {
+            assertNull(cc.getFieldIndex("aa", "pos"));
+        } finally {
+            failing.close();
+        }
+        assertNotNull(cc.getFieldIndex("aa", "pos"));
+        assertEquals(3, Queries.count(q));
+
+        // a batch with an alias which is in use, is not stored at all
+        int before = Queries.count(cloud.getNodeManager("aa").createQuery());
+        BulkLoader conflicting = new BulkLoader(cc);
+        conflicting.setBatchSize(2);
+        try {
+            Map<String, Object> fresh = new HashMap<String, Object>();
+            fresh.put("title", "fresh");
+            fresh.put("alias", "freshalias");
+            conflicting.add("aa", fresh);
+            Map<String, Object> taken = new HashMap<String, Object>();
+            taken.put("title", "taken");
+            taken.put("alias", "bulkalias");
+            conflicting.add("aa", taken);
+            fail();
+        } catch (BridgeException be) {
+        } finally {
+            conflicting.close();
+        }
+        assertFalse(cloud.hasNode("freshalias"));
+        assertEquals(before, Queries.count(cloud.getNodeManager("aa").createQuery()));
+    }
+
+    @Test
+    public void jdbc() throws Exception {
+        JdbcCloudContext cc = new JdbcCloudContext("jdbc:h2:mem:mocktest");
+        try {
+            Map<String, DataType> map = new HashMap<String, DataType>();
+            map.put("number", Constants.DATATYPE_INTEGER);
+            map.put("title", Constants.DATATYPE_STRING);
+            map.put("pos", Constants.DATATYPE_INTEGER);
+            cc.addNodeManager("aa", map);
+            Cloud cloud = cc.getCloud("mmbase");
+            NodeManager aa = cloud.getNodeManager("aa");
+            int first = -1;
+            for (int i = 0; i < 5; i++) {
+                Node node = aa.createNode();
+                node.setStringValue("title", "Title " + i);
+                node.setIntValue("pos", 5 - i);
+                node.commit();
+                if (i == 0) {
+                    first = node.getNumber();
+                }
+            }
+            Transaction t = cloud.getTransaction("jdbc");
+            Node changed = t.getNode(first);
+            changed.setIntValue("pos", 10);
+            changed.commit();
+            t.commit();
+
+            NodeQuery q = aa.createQuery();
+            Queries.addConstraint(q, Queries.createConstraint(q, "pos", FieldCompareConstraint.GREATER_EQUAL, 3));
+            Queries.addSortOrders(q, "pos", "down");
+            String sql = cc.getSearchQueryHandler().createSqlString(q);
+            assertTrue(sql, sql.contains("FROM \"mm_aa\" s0 WHERE (s0.\"pos\" >= 3) ORDER BY s0.\"pos\" DESC NULLS FIRST"));
+            NodeList list = aa.getList(q);
+            assertEquals(3, list.size());
+            assertEquals(10, list.getNode(0).getIntValue("pos"));
+            assertEquals("Title 1", list.getNode(1).getStringValue("title"));
+            assertEquals(3, Queries.count(q));
+            assertEquals(SearchQueryHandler.SUPPORT_NONE,
+                         cc.getSearchQueryHandler().getSupportLevel(Queries.createConstraint(q, "title", FieldCompareConstraint.REGEXP, "T.*"), q));
+
+            // '?' is a wildcard, like in memory
+            assertEquals("a_b\\\\c%", SqlQueryHandler.getLikePattern("a?b\\c%"));
+            NodeQuery like = aa.createQuery();
+            Queries.addConstraint(like, Queries.createConstraint(like, "title", FieldCompareConstraint.LIKE, "Title ?"));
+            assertEquals(5, Queries.count(like));
+
+            // deleted nodes are removed from the tables
+            list.getNode(0).delete();
+            assertEquals(2, Queries.count(q));
+
+            // a change which cannot be written, makes the cloud context refuse further work
+            java.sql.Connection other = java.sql.DriverManager.getConnection("jdbc:h2:mem:mocktest");
+            try {
+                other.createStatement().executeUpdate("DROP TABLE \"mm_aa\"");
+            } finally {
+                other.close();
+            }
+            Node failing = aa.createNode();
+            failing.setStringValue("title", "failing");
+            try {
+                failing.commit();
+                fail();
+            } catch (BridgeException be) {
+            }
+            assertTrue(cc.isBroken());
+            try {
+                Queries.count(q);
+                fail();
+            } catch (BridgeException be) {
+            }
+            cc.clear();
+            assertFalse(cc.isBroken());
+        } finally {
+            cc.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void jdbcLockOrder() throws Exception {
+        final JdbcCloudContext cc = new JdbcCloudContext("jdbc:h2:mem:mocklocks");
+        try {
+            Map<String, DataType> map = new HashMap<String, DataType>();
+            map.put("number", Constants.DATATYPE_INTEGER);
+            map.put("title", Constants.DATATYPE_STRING);
+            cc.addNodeManager("aa", map);
+            final NodeManager aa = cc.getCloud("mmbase").getNodeManager("aa");
+            Thread committer = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < 500; i++) {
+                            Node node = aa.createNode();
+                            node.setStringValue("title", "Title " + i);
+                            node.commit();
+                        }
+                    }
+                };
+            committer.start();
+            // reading builders adds nodes while the node managers are locked
+            for (int i = 0; i < 500; i++) {
+                synchronized(cc.nodeManagers) {
+                    Map<String, Object> values = new HashMap<String, Object>();
+                    values.put("title", "Locked " + i);
+                    cc.addNode("aa", values);
+                }
+            }
+            committer.join();
+            assertEquals(1000, Queries.count(aa.createQuery()));
+        } finally {
+            cc.close();
+        }
+    }
+
+    @Test
+    public void columnar() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        Node before = aa.createNode();
+        before.setStringValue("title", "before");
+        before.commit();
+
+        cc.setColumnar(true);
+        assertTrue(cc.isColumnar());
+        assertEquals("before", cloud.getNode(before.getNumber()).getStringValue("title"));
+        for (int i = 0; i < 10; i++) {
+            Node n = aa.createNode();
+            n.setStringValue("title", "Title " + (i % 3));
+            n.setIntValue("pos", i);
+            n.commit();
+        }
+        NodeQuery q = aa.createQuery();
+        Queries.addConstraint(q, Queries.createConstraint(q, "title", FieldCompareConstraint.EQUAL, "title 1"));
+        assertEquals(3, aa.getList(q).size());
+
+        Node changed = aa.getList(q).getNode(0);
+        changed.setStringValue("title", "changed");
+        changed.commit();
+        assertEquals(2, aa.getList(q).size());
+        assertEquals("changed", cloud.getNode(changed.getNumber()).getStringValue("title"));
+        assertEquals(changed.getIntValue("pos"), cloud.getNode(changed.getNumber()).getIntValue("pos"));
+
+        // query results are copies, not views on the columns
+        Map<String, Object> record = new NodeQueryHandler((MockCloud) cloud).getRecords(aa.createQuery()).get(0);
+        Node recorded = cloud.getNode((Integer) record.get("number"));
+        String title = recorded.getStringValue("title");
+        recorded.setStringValue("title", "changed again");
+        recorded.commit();
+        assertEquals(title, record.get("title"));
+
+        cc.setColumnar(false);
+        assertEquals("changed", cloud.getNode(changed.getNumber()).getStringValue("title"));
+    }
+
+    @Test
+    public void columnStoreReusesRows() {
+        ColumnStore store = new ColumnStore("aa");
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("number", 1);
+        values.put("title", "first");
+        Map<String, Object> first = store.newRow(values);
+        values.put("number", 2);
+        values.put("title", "second");
+        Map<String, Object> second = store.newRow(values);
+        assertEquals(2, store.size());
+
+        ColumnStore.release(first);
+        assertEquals(1, store.size());
+        assertEquals(1, first.get("number"));
+        assertNull(first.get("title"));
+
+        values.put("number", 3);
+        values.put("title", "third");
+        Map<String, Object> third = store.newRow(values);
+        assertEquals(2, store.capacity());
+        assertEquals("third", third.get("title"));
+        // the released view does not show the values of the row that took its place
+        assertEquals(1, first.get("number"));
+        assertNull(first.get("title"));
+        assertEquals("second", second.get("title"));
+        try {
+            first.put("title", "again");
+            fail();
+        } catch (IllegalStateException ise) {
+        }
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        for (int i = 0; i < 10; i++) {
+            Node n = aa.createNode();
+            n.setStringValue("title", "Title " + i);
+            n.setIntValue("pos", i);
+            n.commit();
+        }
+        Node aliased = aa.getList(aa.createQuery()).getNode(3);
+        aliased.createAlias("snapshotalias");
+
+        java.io.File file = java.io.File.createTempFile("mock", ".snapshot");
+        file.deleteOnExit();
+        cc.writeSnapshot(file);
+
+        MockCloudContext read = new MockCloudContext();
+        read.readSnapshot(file);
+        Cloud readCloud = read.getCloud("mmbase");
+        assertTrue(readCloud.hasNodeManager("aa"));
+        NodeManager readAa = readCloud.getNodeManager("aa");
+        assertEquals(10, Queries.count(readAa.createQuery()));
+        Node readAliased = readCloud.getNode("snapshotalias");
+        assertEquals(aliased.getNumber(), readAliased.getNumber());
+        assertEquals(aliased.getStringValue("title"), readAliased.getStringValue("title"));
+
+        // new nodes get new numbers
+        Node n = readAa.createNode();
+        n.commit();
+        assertTrue(n.getNumber() > aliased.getNumber());
+        assertEquals(cc.getNodes().size() + 1, read.getNodes().size());
+
+        // reading does not decode the values, not even into columns
+        MockCloudContext columnar = new MockCloudContext();
+        columnar.setColumnar(true);
+        columnar.readSnapshot(file);
+        assertFalse(((Snapshot.LazyValues) columnar.getNodes().get(aliased.getNumber()).values).isDecoded());
+        assertEquals(aliased.getStringValue("title"), columnar.getCloud("mmbase").getNode("snapshotalias").getStringValue("title"));
+        Node changedColumnar = columnar.getCloud("mmbase").getNode("snapshotalias");
+        changedColumnar.setStringValue("title", "changed");
+        changedColumnar.commit();
+        assertFalse(columnar.getNodes().get(aliased.getNumber()).values instanceof Snapshot.LazyValues);
+        assertEquals("changed", columnar.getCloud("mmbase").getNode("snapshotalias").getStringValue("title"));
+
+        // the snapshot can be replaced while it is in use
+        columnar.writeSnapshot(file);
+        assertEquals(10, Queries.count(columnar.getCloud("mmbase").getNodeManager("aa").createQuery()));
+        assertFalse(new java.io.File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void journal() throws Exception {
+        java.io.File directory = java.io.File.createTempFile("mock", ".journal");
+        directory.delete();
+        directory.deleteOnExit();
+
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("aa", map);
+        cc.openJournal(directory, Journal.Sync.ALWAYS, 0);
+
+        Cloud cloud = cc.getCloud("mmbase");
+        NodeManager aa = cloud.getNodeManager("aa");
+        Node kept = aa.createNode();
+        kept.setStringValue("title", "first");
+        kept.commit();
+        // a new node is logged once
+        MockCloudContext counting = new MockCloudContext();
+        counting.addNodeManager("aa", map);
+        assertEquals(1, Journal.replay(counting, new java.io.File(directory, "journal")));
+        kept.setStringValue("title", "second");
+        kept.commit();
+        kept.createAlias("journalalias");
+        Node deleted = aa.createNode();
+        deleted.commit();
+        deleted.delete();
+        assertTrue(cc.getJournal().getSize() > 0);
+        cc.closeJournal();
+
+        MockCloudContext replayed = new MockCloudContext();
+        replayed.openJournal(directory, Journal.Sync.NONE, 0);
+        Cloud replayedCloud = replayed.getCloud("mmbase");
+        assertEquals("second", replayedCloud.getNode(kept.getNumber()).getStringValue("title"));
+        assertEquals(kept.getNumber(), replayedCloud.getNode("journalalias").getNumber());
+        assertFalse(replayedCloud.hasNode(deleted.getNumber()));
+        // compacted on opening
+        assertEquals(0, replayed.getJournal().getSize());
+        replayed.closeJournal();
+
+        // an empty journal does not cause a new snapshot
+        java.io.File snapshot = new java.io.File(directory, "snapshot");
+        assertTrue(snapshot.setLastModified(0));
+        MockCloudContext reopened = new MockCloudContext();
+        reopened.openJournal(directory, Journal.Sync.NONE, 0);
+        assertEquals("second", reopened.getCloud("mmbase").getNode(kept.getNumber()).getStringValue("title"));
+        assertEquals(0, snapshot.lastModified());
+        reopened.closeJournal();
+    }
+
+    private static byte[] readFile(java.io.File file) throws java.io.IOException {
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return bytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void journalCrashDuringCompaction() throws Exception {
+        java.io.File directory = java.io.File.createTempFile("mock", ".journal");
+        directory.delete();
+        directory.deleteOnExit();
+        java.io.File journalFile = new java.io.File(directory, "journal");
+        java.io.File snapshot = new java.io.File(directory, "snapshot");
+
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("aa", map);
+        cc.openJournal(directory, Journal.Sync.ALWAYS, 0);
+        NodeManager aa = cc.getCloud("mmbase").getNodeManager("aa");
+        Node deleted = aa.createNode();
+        deleted.commit();
+        Node kept = aa.createNode();
+        kept.setStringValue("title", "kept");
+        kept.commit();
+        cc.compact();
+
+        // changes to nodes of the snapshot
+        deleted.createAlias("crashalias");
+        deleted.delete();
+        kept.setStringValue("title", "changed");
+        kept.commit();
+
+        // the process stops after the new snapshot was written, but before the journal was emptied
+        byte[] journal = readFile(journalFile);
+        cc.compact();
+        cc.closeJournal();
+        java.io.FileOutputStream out = new java.io.FileOutputStream(journalFile);
+        out.write(journal);
+        out.close();
+
+        MockCloudContext reopened = new MockCloudContext();
+        reopened.openJournal(directory, Journal.Sync.NONE, 0);
+        Cloud cloud = reopened.getCloud("mmbase");
+        assertFalse(cloud.hasNode(deleted.getNumber()));
+        assertEquals("changed", cloud.getNode(kept.getNumber()).getStringValue("title"));
+        // the old journal is not replayed again
+        assertEquals(0, reopened.getJournal().getSize());
+        reopened.closeJournal();
+
+        // the process stops while the snapshot is replaced, after the old one was removed
+        assertTrue(snapshot.renameTo(new java.io.File(directory, "snapshot.tmp")));
+        MockCloudContext recovered = new MockCloudContext();
+        recovered.openJournal(directory, Journal.Sync.NONE, 0);
+        assertEquals("changed", recovered.getCloud("mmbase").getNode(kept.getNumber()).getStringValue("title"));
+        assertTrue(snapshot.exists());
+        recovered.closeJournal();
+    }
+
+    @Test
+    public void concurrentCommits() throws Exception {
+        final MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cc.addNodeManager("aa", map);
+        cc.createIndex("aa", "pos", true);
+        final int threads = 8;
+        final int perThread = 100;
+        java.util.concurrent.ExecutorService executor = java.util.concurrent.Executors.newFixedThreadPool(threads);
+        List<java.util.concurrent.Future<?>> futures = new ArrayList<java.util.concurrent.Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        Cloud cloud = cc.getCloud("mmbase");
+                        NodeManager aa = cloud.getNodeManager("aa");
+                        for (int i = 0; i < perThread; i++) {
+                            Node n = aa.createNode();
+                            n.setIntValue("pos", i);
+                            n.commit();
+                            n.setIntValue("pos", i + 1);
+                            n.commit();
+                            aa.getList(aa.createQuery());
+                        }
+                    }
+                }));
+        }
+        for (java.util.concurrent.Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertEquals(threads * perThread, cc.getNodes().size());
+        assertEquals(threads * perThread, cc.getLastNodeNumber());
+        NodeManager aa = cc.getCloud("mmbase").getNodeManager("aa");
+        NodeQuery q = aa.createQuery();
+        Queries.addConstraint(q, Queries.createConstraint(q, "pos", FieldCompareConstraint.EQUAL, 0));
+        assertEquals(0, Queries.count(q));
+    }
+
+    @Test
+    public void nodeValues() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("aa", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        assertSame(cloud.getNodeManager("aa"), cloud.getNodeManager("aa"));
+
+        Node n = cloud.getNodeManager("aa").createNode();
+        n.setStringValue("title", "original");
+        n.commit();
+        Node first = cloud.getNode(n.getNumber());
+        Node second = cloud.getNode(n.getNumber());
+        first.setStringValue("title", "changed");
+        assertEquals("changed", first.getStringValue("title"));
+        assertEquals("original", second.getStringValue("title"));
+        assertEquals("original", cloud.getNode(n.getNumber()).getStringValue("title"));
+        first.commit();
+        assertEquals("changed", cloud.getNode(n.getNumber()).getStringValue("title"));
+        assertEquals("original", second.getStringValue("title"));
+
+        Map<String, Object> shared = new HashMap<String, Object>();
+        shared.put("title", "shared");
+        Map<String, Object> values = new MockNode.Values(shared);
+        assertEquals("shared", values.remove("title"));
+        assertFalse(values.containsKey("title"));
+        assertNull(values.get("title"));
+        assertTrue(values.isEmpty());
+        assertEquals("shared", shared.get("title"));
+        values.put("title", "again");
+        assertEquals("again", values.get("title"));
+        assertEquals(1, values.size());
+    }
+
+    @Test
+    public void nodeEvents() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("eventtest", map);
+        final List<org.mmbase.core.event.NodeEvent> events = new ArrayList<org.mmbase.core.event.NodeEvent>();
+        org.mmbase.core.event.NodeEventListener listener = new org.mmbase.core.event.NodeEventListener() {
+                public void notify(org.mmbase.core.event.NodeEvent event) {
+                    if (event.getBuilderName().equals("eventtest")) {
+                        events.add(event);
+                    }
+                }
+            };
+        org.mmbase.core.event.EventManager.getInstance().addEventListener(listener);
+        try {
+            Cloud cloud = cc.getCloud("mmbase");
+            Node n = cloud.getNodeManager("eventtest").createNode();
+            n.setStringValue("title", "a");
+            n.commit();
+            n.setStringValue("title", "b");
+            n.commit();
+            n.delete();
+            assertEquals(3, events.size());
+            assertEquals(org.mmbase.core.event.Event.TYPE_NEW, events.get(0).getType());
+            assertEquals("a", events.get(0).getNewValue("title"));
+            assertEquals(org.mmbase.core.event.Event.TYPE_CHANGE, events.get(1).getType());
+            assertEquals("a", events.get(1).getOldValue("title"));
+            assertEquals("b", events.get(1).getNewValue("title"));
+            assertEquals(Collections.singleton("title"), events.get(1).getChangedFields());
+            assertEquals(org.mmbase.core.event.Event.TYPE_DELETE, events.get(2).getType());
+
+            events.clear();
+            Transaction t = cloud.getTransaction("events");
+            for (int i = 0; i < 3; i++) {
+                Node created = t.getNodeManager("eventtest").createNode();
+                created.setStringValue("title", "t" + i);
+                created.commit();
+            }
+            // nothing before the transaction is committed
+            assertEquals(0, events.size());
+            t.commit();
+            assertEquals(3, events.size());
+        } finally {
+            org.mmbase.core.event.EventManager.getInstance().removeEventListener(listener);
+        }
+    }
+
     @Test
     public void transaction() throws Exception {
         MockCloudContext cc = MockCloudContext.getInstance();
@@ -233,6 +1127,71 @@ public class MockTest  {
         assertEquals(c, t.getNonTransactionalCloud());
     }
 
+    @Test
+    public void transactionIsolation() throws Exception {
+        MockCloudContext cc = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        cc.addNodeManager("aa", map);
+        Cloud cloud = cc.getCloud("mmbase");
+        Node existing = cloud.getNodeManager("aa").createNode();
+        existing.setStringValue("title", "shared");
+        existing.commit();
+        Node removed = cloud.getNodeManager("aa").createNode();
+        removed.commit();
+
+        Transaction t = cloud.getTransaction("isolation");
+        Node created = t.getNodeManager("aa").createNode();
+        created.setStringValue("title", "new");
+        created.commit();
+        created.createAlias("transactionalias");
+        Node changed = t.getNode(existing.getNumber());
+        changed.setStringValue("title", "changed");
+        changed.commit();
+        t.getNode(removed.getNumber()).delete();
+
+        // the transaction sees its own changes
+        assertEquals("changed", t.getNode(existing.getNumber()).getStringValue("title"));
+        assertEquals(created.getNumber(), t.getNode("transactionalias").getNumber());
+        assertFalse(t.hasNode(removed.getNumber()));
+        // but the cloud does not
+        assertEquals("shared", cloud.getNode(existing.getNumber()).getStringValue("title"));
+        assertFalse(cloud.hasNode(created.getNumber()));
+        assertNull(cc.getNodeNumber("transactionalias"));
+        assertTrue(cloud.hasNode(removed.getNumber()));
+
+        t.commit();
+        assertTrue(t.isCommitted());
+        assertEquals("changed", cloud.getNode(existing.getNumber()).getStringValue("title"));
+        assertEquals("new", cloud.getNode("transactionalias").getStringValue("title"));
+        assertFalse(cloud.hasNode(removed.getNumber()));
+
+        Transaction canceled = cloud.getTransaction("canceled");
+        Node discarded = canceled.getNode(existing.getNumber());
+        discarded.setStringValue("title", "discarded");
+        discarded.commit();
+        canceled.cancel();
+        assertTrue(canceled.isCanceled());
+        assertEquals("changed", cloud.getNode(existing.getNumber()).getStringValue("title"));
+
+        // a node which was changed outside the transaction after it was read, is not overwritten
+        Transaction conflicting = cloud.getTransaction("conflicting");
+        Node stale = conflicting.getNode(existing.getNumber());
+        Node outside = cloud.getNode(existing.getNumber());
+        outside.setStringValue("title", "outside");
+        outside.commit();
+        stale.setStringValue("title", "stale");
+        stale.commit();
+        try {
+            conflicting.commit();
+            fail();
+        } catch (BridgeException be) {
+        }
+        assertEquals("outside", cloud.getNode(existing.getNumber()).getStringValue("title"));
+        conflicting.cancel();
+    }
+
     @Test
     public void function() throws Exception {
         MockCloudContext cc = MockCloudContext.getInstance();
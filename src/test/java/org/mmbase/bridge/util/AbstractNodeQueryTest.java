@@ -0,0 +1,71 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.util;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.mock.*;
+import org.mmbase.datatypes.*;
+import java.util.*;
+import org.junit.*;
+
+
+/**
+ * Base class for tests on iterating (huge) node queries. Every test class gets its own cloud
+ * context, with a node manager 'aa' with {@link #NODES} nodes, with the titles 'Title 0', 'Title
+ * 1', ... and with 10 nodes for every value (0 - 9) of the field 'pos'.
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public abstract class AbstractNodeQueryTest  {
+
+    protected static final int NODES = 100;
+    private static MockCloudContext cloudContext;
+
+    @BeforeClass
+    public static void setupNodes() throws Exception {
+        cloudContext = new MockCloudContext();
+        Map<String, DataType> map = new HashMap<String, DataType>();
+        map.put("number", Constants.DATATYPE_INTEGER);
+        map.put("title", Constants.DATATYPE_STRING);
+        map.put("pos", Constants.DATATYPE_INTEGER);
+        cloudContext.addNodeManager("aa", map);
+        for (int i = 0; i < NODES; i++) {
+            Map<String, Object> values = new HashMap<String, Object>();
+            values.put("title", "Title " + i);
+            values.put("pos", i % 10);
+            cloudContext.addNode("aa", values);
+        }
+    }
+
+    protected NodeManager getNodeManager() {
+        return cloudContext.getCloud("mmbase").getNodeManager("aa");
+    }
+
+    protected static List<Integer> numbers(Iterator<Node> i) {
+        List<Integer> result = new ArrayList<Integer>();
+        while (i.hasNext()) {
+            result.add(i.next().getNumber());
+        }
+        return result;
+    }
+
+    /**
+     * The node numbers of the query, as they are expected to be returned by the iterators, which
+     * {@link Queries#sortUniquely sort uniquely}.
+     */
+    protected List<Integer> expected(NodeQuery q) {
+        NodeQuery clone = (NodeQuery) q.clone();
+        Queries.sortUniquely(clone);
+        return numbers(clone.getNodeManager().getList(clone).iterator());
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.util;
+
+import org.mmbase.bridge.*;
+import org.mmbase.storage.search.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public class HugeNodeListIteratorTest extends AbstractNodeQueryTest {
+
+    @Test
+    public void iterate() {
+        NodeQuery q = getNodeManager().createQuery();
+        List<Integer> expected = expected(q);
+        assertEquals(NODES, expected.size());
+        assertEquals(expected, numbers(new HugeNodeListIterator(q, 7)));
+    }
+
+    @Test
+    public void iterateLowCardinality() {
+        // 10 nodes for every value of pos, more than the batch size
+        NodeQuery q = getNodeManager().createQuery();
+        q.addSortOrder(q.getStepField(getNodeManager().getField("pos")), SortOrder.ORDER_ASCENDING);
+        List<Integer> expected = expected(q);
+        assertEquals(NODES, expected.size());
+        assertEquals(expected, numbers(new HugeNodeListIterator((NodeQuery) q.clone(), 3)));
+
+        q.addSortOrder(q.getStepField(getNodeManager().getField("title")), SortOrder.ORDER_DESCENDING);
+        assertEquals(expected(q), numbers(new HugeNodeListIterator((NodeQuery) q.clone(), 4)));
+    }
+
+    @Test
+    public void prefetch() {
+        NodeQuery q = getNodeManager().createQuery();
+        List<Integer> expected = expected(q);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int batches = 1; batches <= 3; batches++) {
+                HugeNodeListIterator i = new HugeNodeListIterator((NodeQuery) q.clone(), 7).setPrefetch(batches, executor);
+                assertEquals(expected, numbers(i));
+                i.close();
+            }
+            // also with a batch which is exactly consumed
+            assertEquals(expected, numbers(new HugeNodeListIterator((NodeQuery) q.clone(), 10).setPrefetch(2, executor)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void prefetchAndClose() {
+        NodeQuery q = getNodeManager().createQuery();
+        List<Integer> expected = expected(q);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            HugeNodeListIterator i = new HugeNodeListIterator(q, 7).setPrefetch(2, executor);
+            List<Integer> result = new ArrayList<Integer>();
+            for (int j = 0; j < 20; j++) {
+                result.add(i.nextNode().getNumber());
+            }
+            // no prefetching any more, but still correct
+            i.close();
+            result.addAll(numbers(i));
+            assertEquals(expected, result);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
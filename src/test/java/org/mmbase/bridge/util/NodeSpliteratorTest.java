@@ -0,0 +1,92 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.util;
+
+import org.mmbase.bridge.*;
+import org.mmbase.storage.search.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public class NodeSpliteratorTest extends AbstractNodeQueryTest {
+
+    @Test
+    public void iterate() {
+        NodeQuery q = getNodeManager().createQuery();
+        NodeSpliterator s = new NodeSpliterator(q, 7);
+        assertEquals(NODES, s.estimateSize());
+        assertEquals(expected(q), numbers(s));
+        assertNull(s.trySplit());
+        // the query itself is not changed
+        assertTrue(q.getSortOrders().isEmpty());
+    }
+
+    @Test
+    public void split() {
+        NodeQuery q = getNodeManager().createQuery();
+        NodeSpliterator s = new NodeSpliterator(q, 7);
+        assertTrue(s.hasCharacteristics(NodeSpliterator.ORDERED | NodeSpliterator.DISTINCT | NodeSpliterator.NONNULL));
+        NodeSpliterator prefix = s.trySplit();
+        assertNotNull(prefix);
+        NodeSpliterator prefixOfPrefix = prefix.trySplit();
+        assertNotNull(prefixOfPrefix);
+        assertEquals(NODES, prefixOfPrefix.estimateSize() + prefix.estimateSize() + s.estimateSize());
+
+        // ordered, so the parts can simply be concatenated
+        List<Integer> result = numbers(prefixOfPrefix);
+        result.addAll(numbers(prefix));
+        result.addAll(numbers(s));
+        assertEquals(expected(q), result);
+    }
+
+    @Test
+    public void splitInParts() {
+        NodeQuery q = getNodeManager().createQuery();
+        NodeSpliterator s = new NodeSpliterator(q, 7);
+        List<NodeSpliterator> parts = s.split(3);
+        assertEquals(3, parts.size());
+        assertSame(s, parts.get(2));
+        List<Integer> result = new ArrayList<Integer>();
+        for (NodeSpliterator part : parts) {
+            assertTrue(part.estimateSize() > 0);
+            result.addAll(numbers(part));
+        }
+        assertEquals(expected(q), result);
+        // started, cannot be split any more
+        assertEquals(Collections.singletonList(s), s.split(2));
+    }
+
+    @Test
+    public void splitUnordered() {
+        NodeQuery q = getNodeManager().createQuery();
+        q.addSortOrder(q.getStepField(getNodeManager().getField("pos")), SortOrder.ORDER_ASCENDING);
+        NodeSpliterator s = new NodeSpliterator(q, 3).setPrefetch(1);
+        assertFalse(s.hasCharacteristics(NodeSpliterator.ORDERED));
+        NodeSpliterator prefix = s.trySplit();
+
+        List<Integer> first = numbers(prefix);
+        List<Integer> second = numbers(s);
+        prefix.close();
+        s.close();
+        // disjoint, and together all nodes
+        Set<Integer> all = new HashSet<Integer>(first);
+        all.addAll(second);
+        assertEquals(NODES, first.size() + second.size());
+        assertEquals(new HashSet<Integer>(expected(q)), all);
+    }
+
+}
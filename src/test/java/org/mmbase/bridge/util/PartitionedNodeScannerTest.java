@@ -0,0 +1,98 @@
+/*
+
+This software is OSI Certified Open Source Software.
+OSI Certified is a certification mark of the Open Source Initiative.
+
+The license (Mozilla version 1.0) can be read at the MMBase site.
+See http://www.MMBase.org/license
+
+*/
+
+package org.mmbase.bridge.util;
+
+import org.mmbase.bridge.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+
+/**
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public class PartitionedNodeScannerTest extends AbstractNodeQueryTest {
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void scan() throws Exception {
+        NodeQuery q = getNodeManager().createQuery();
+        PartitionedNodeScanner scanner = new PartitionedNodeScanner(q, 4).setBatchSize(6).setExecutor(executor);
+        final Set<Integer> numbers = Collections.synchronizedSet(new HashSet<Integer>());
+        long count = scanner.scan(new PartitionedNodeScanner.NodeProcessor() {
+                @Override
+                public void process(Node node) {
+                    assertTrue("Twice " + node, numbers.add(node.getNumber()));
+                }
+            });
+        assertEquals(NODES, count);
+        assertEquals(NODES, numbers.size());
+        assertEquals(4, scanner.getPartitions().size());
+        for (PartitionedNodeScanner.Partition part : scanner.getPartitions()) {
+            assertTrue(part.isDone());
+            assertEquals(part.getEstimatedSize(), part.getCount());
+        }
+        assertEquals(1.0, scanner.getProgress(), 0.0001);
+    }
+
+    @Test
+    public void scanWithOwnThreads() throws Exception {
+        NodeQuery q = getNodeManager().createQuery();
+        PartitionedNodeScanner scanner = new PartitionedNodeScanner(q, 3).setBatchSize(6);
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        long count = scanner.scan(new PartitionedNodeScanner.NodeProcessor() {
+                @Override
+                public void process(Node node) {
+                    threads.add(Thread.currentThread().getName());
+                }
+            });
+        assertEquals(NODES, count);
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("PartitionedNodeScanner-"));
+        }
+        assertEquals(1.0, scanner.getProgress(), 0.0001);
+    }
+
+    @Test
+    public void failure() throws Exception {
+        NodeQuery q = getNodeManager().createQuery();
+        PartitionedNodeScanner scanner = new PartitionedNodeScanner(q, 3).setBatchSize(6).setExecutor(executor);
+        try {
+            scanner.scan(new PartitionedNodeScanner.NodeProcessor() {
+                    @Override
+                    public void process(Node node) {
+                        if (node.getStringValue("title").equals("Title 50")) {
+                            throw new IllegalStateException("Title 50");
+                        }
+                    }
+                });
+            fail("Should have thrown BridgeException");
+        } catch (BridgeException be) {
+            assertTrue(be.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(scanner.getCount() < NODES);
+    }
+
+}
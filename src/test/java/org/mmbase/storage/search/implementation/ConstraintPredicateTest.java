@@ -0,0 +1,188 @@
+package org.mmbase.storage.search.implementation;
+
+import org.junit.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.mock.*;
+import org.mmbase.storage.search.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit tests.
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public class ConstraintPredicateTest  {
+
+    private NodeManager news = null;
+    private StepField title = null;
+    private StepField number = null;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        MockCloudContext.getInstance().addCore();
+        MockCloudContext.getInstance().addCoreModel();
+        MockCloudContext.getInstance().addNodeManagers(MockBuilderReader.getBuilderLoader().getChildResourceLoader("mynews"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        news = MockCloudContext.getInstance().getCloud("mmbase").getNodeManager("news");
+        Step step = new BasicStep(news.getName());
+        title  = new BasicStepField(step, news.getField("title"));
+        number = new BasicStepField(step, news.getField("number"));
+    }
+
+    private ConstraintPredicate like(String pattern, boolean caseSensitive) {
+        return ConstraintPredicate.compile(new BasicFieldValueConstraint(title, pattern).setOperator(FieldCompareConstraint.LIKE).setCaseSensitive(caseSensitive));
+    }
+
+    @Test
+    public void testLike() {
+        assertTrue(like("abc%", true).test("abcdef"));
+        assertFalse(like("abc%", true).test("ABCdef"));
+        assertTrue(like("abc%", false).test("ABCdef"));
+        assertTrue(like("%def", true).test("abcdef"));
+        assertFalse(like("%def", true).test("ef"));
+        assertTrue(like("%cd%", false).test("abCDef"));
+        assertFalse(like("%cd%", true).test("abCDef"));
+        assertTrue(like("abc", false).test("ABC"));
+        assertFalse(like("abc", false).test("ABCD"));
+        assertTrue(like("%", true).test(""));
+        // needs a regular expression
+        assertTrue(like("a_c%f", true).test("abcdef"));
+        assertTrue(like("a?c%F", false).test("abc\ndef"));
+        assertFalse(like("a_c", true).test("abbc"));
+        assertTrue(like("a.c", true).test("a.c"));
+        assertFalse(like("a.c", true).test("abc"));
+    }
+
+    @Test
+    public void testCompare() {
+        BasicFieldValueConstraint c = new BasicFieldValueConstraint(number, 10.0);
+        c.setOperator(FieldCompareConstraint.GREATER);
+        ConstraintPredicate p = ConstraintPredicate.compile(c);
+        assertTrue(p.test(11));
+        assertTrue(p.test("10.5"));
+        assertFalse(p.test(10L));
+        // null is not constrained
+        assertTrue(p.test(null));
+
+        c.setInverse(true);
+        assertFalse(ConstraintPredicate.compile(c).test(11));
+
+        BasicFieldValueConstraint s = new BasicFieldValueConstraint(title, "abc");
+        s.setCaseSensitive(false);
+        assertTrue(ConstraintPredicate.compile(s).test("ABC"));
+        s.setCaseSensitive(true);
+        assertFalse(ConstraintPredicate.compile(s).test("ABC"));
+    }
+
+    @Test
+    public void testFieldType() {
+        // compared as numbers, because the field is numeric
+        BasicFieldValueConstraint c = new BasicFieldValueConstraint(number, "9");
+        c.setOperator(FieldCompareConstraint.GREATER);
+        assertTrue(ConstraintPredicate.compile(c).test(10));
+        assertTrue(ConstraintPredicate.compile(c).test("10"));
+
+        // but LIKE is about strings
+        BasicFieldValueConstraint like = new BasicFieldValueConstraint(number, "1%");
+        like.setOperator(FieldCompareConstraint.LIKE);
+        assertTrue(ConstraintPredicate.compile(like).test(123));
+        assertFalse(ConstraintPredicate.compile(like).test(23));
+    }
+
+    @Test
+    public void testCompareFields() {
+        BasicCompareFieldsConstraint c = new BasicCompareFieldsConstraint(number, number);
+        c.setOperator(FieldCompareConstraint.LESS);
+        ConstraintPredicate p = ConstraintPredicate.compile(c);
+        assertTrue(p.test(9, 10));
+        assertFalse(p.test(10, 9));
+        try {
+            p.test(9);
+            fail("Needs two values");
+        } catch (UnsupportedOperationException uoe) {}
+    }
+
+    @Test
+    public void testOtherConstraints() {
+        ConstraintPredicate between = ConstraintPredicate.compile(new BasicFieldValueBetweenConstraint(number, 5, 10));
+        assertTrue(between.test(5));
+        assertTrue(between.test(10));
+        assertFalse(between.test(11));
+
+        ConstraintPredicate in = ConstraintPredicate.compile(new BasicFieldValueInConstraint(number).addValue(1).addValue(3));
+        assertTrue(in.test(3L));
+        assertFalse(in.test(2));
+
+        ConstraintPredicate isNull = ConstraintPredicate.compile(new BasicFieldNullConstraint(title));
+        assertTrue(isNull.test(null));
+        assertFalse(isNull.test(""));
+
+        try {
+            ConstraintPredicate.compile(new BasicLegacyConstraint("a = b"));
+            fail("Legacy constraints cannot be evaluated, must throw UnsupportedOperationException");
+        } catch (UnsupportedOperationException uoe) {}
+    }
+
+    @Test
+    public void testComposite() {
+        BasicFieldValueConstraint greater = new BasicFieldValueConstraint(number, 5);
+        greater.setOperator(FieldCompareConstraint.GREATER);
+        BasicFieldValueConstraint less = new BasicFieldValueConstraint(number, 10);
+        less.setOperator(FieldCompareConstraint.LESS);
+        BasicCompositeConstraint and = new BasicCompositeConstraint(CompositeConstraint.LOGICAL_AND, greater, less);
+        assertTrue(ConstraintPredicate.compile(and).test(7));
+        assertFalse(ConstraintPredicate.compile(and).test(10));
+        and.setInverse(true);
+        assertTrue(ConstraintPredicate.compile(and).test(10));
+
+        BasicCompositeConstraint or = new BasicCompositeConstraint(CompositeConstraint.LOGICAL_OR, greater, less);
+        assertTrue(ConstraintPredicate.compile(or).test(1));
+    }
+
+    @Test
+    public void testMatchesNode() {
+        Node node = news.createNode();
+        node.setStringValue("title", "Hello world");
+        BasicFieldValueConstraint c = new BasicFieldValueConstraint(title, "%world");
+        c.setOperator(FieldCompareConstraint.LIKE);
+        BasicFieldNullConstraint isNull = new BasicFieldNullConstraint(title);
+        isNull.setInverse(true);
+        ConstraintPredicate p = ConstraintPredicate.compile(new BasicCompositeConstraint(CompositeConstraint.LOGICAL_AND, c, isNull));
+        assertTrue(p.matches(node));
+        node.setStringValue("title", "Hello moon");
+        assertFalse(p.matches(node));
+    }
+
+    @Test
+    public void testDatePart() {
+        java.util.Calendar cal = java.util.Calendar.getInstance();
+        cal.clear();
+        cal.set(2000, java.util.Calendar.DECEMBER, 31);
+        // like SQL, the year 2000 is the last one of the 20th century
+        assertEquals(20, ConstraintPredicate.getDatePart(cal.getTime(), FieldValueDateConstraint.CENTURY));
+        assertEquals(4,  ConstraintPredicate.getDatePart(cal.getTime(), FieldValueDateConstraint.QUARTER));
+        assertEquals(12, ConstraintPredicate.getDatePart(cal.getTime(), FieldValueDateConstraint.MONTH));
+        cal.set(2001, java.util.Calendar.JANUARY, 1);
+        assertEquals(21, ConstraintPredicate.getDatePart(cal.getTime(), FieldValueDateConstraint.CENTURY));
+        assertEquals(1,  ConstraintPredicate.getDatePart(cal.getTime(), FieldValueDateConstraint.QUARTER));
+    }
+
+    @Test
+    public void testFieldConstraintMatches() {
+        BasicFieldValueConstraint c = new BasicFieldValueConstraint(title, "a%");
+        c.setOperator(FieldCompareConstraint.LIKE);
+        assertTrue(c.matches("abc"));
+        c.setValue("b%");
+        assertFalse(c.matches("abc"));
+        c.setUnmodifiable();
+        assertTrue(c.matches("bcd"));
+        assertTrue(c.matches("bcd"));
+    }
+
+}
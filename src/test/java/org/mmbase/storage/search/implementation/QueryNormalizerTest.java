@@ -0,0 +1,112 @@
+package org.mmbase.storage.search.implementation;
+
+import org.junit.*;
+import java.util.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.mock.*;
+import org.mmbase.storage.search.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit tests.
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public class QueryNormalizerTest  {
+
+    private NodeManager images = null;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        MockCloudContext.getInstance().addCore();
+        MockCloudContext.getInstance().addNodeManagers(MockBuilderReader.getBuilderLoader().getChildResourceLoader("resources"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Cloud cloud = MockCloudContext.getInstance().getCloud("mmbase");
+        images = cloud.getNodeManager("images");
+    }
+
+    private BasicFieldValueConstraint compare(StepField field, int operator, Object value) {
+        BasicFieldValueConstraint c = new BasicFieldValueConstraint(field, value);
+        c.setOperator(operator);
+        return c;
+    }
+
+    @Test
+    public void testCanonical() {
+        BasicSearchQuery query1 = new BasicSearchQuery();
+        BasicStep step1 = query1.addStep(images.getName());
+        StepField title1 = query1.addField(step1, images.getField("title"));
+        StepField width1 = query1.addField(step1, images.getField("width"));
+        query1.setConstraint(new BasicCompositeConstraint(CompositeConstraint.LOGICAL_AND,
+                                                          new BasicFieldValueConstraint(title1, "foo"),
+                                                          new BasicCompositeConstraint(CompositeConstraint.LOGICAL_AND,
+                                                                                       compare(width1, FieldCompareConstraint.GREATER_EQUAL, 10),
+                                                                                       compare(width1, FieldCompareConstraint.LESS_EQUAL, 20))));
+
+        BasicSearchQuery query2 = new BasicSearchQuery();
+        BasicStep step2 = query2.addStep(images.getName());
+        StepField title2 = query2.addField(step2, images.getField("title"));
+        StepField width2 = query2.addField(step2, images.getField("width"));
+        query2.setConstraint(new BasicCompositeConstraint(CompositeConstraint.LOGICAL_AND,
+                                                          new BasicFieldValueBetweenConstraint(width2, 5, 20),
+                                                          compare(width2, FieldCompareConstraint.GREATER_EQUAL, 10),
+                                                          new BasicFieldValueInConstraint(title2).addValue("foo")));
+
+        assertFalse(query1.equals(query2));
+        BasicSearchQuery canonical1 = QueryNormalizer.canonical(query1);
+        BasicSearchQuery canonical2 = QueryNormalizer.canonical(query2);
+        assertEquals(canonical1, canonical2);
+        assertSame(QuerySnapshot.of(canonical1), QuerySnapshot.of(canonical2));
+        CompositeConstraint constraint = (CompositeConstraint) canonical1.getConstraint();
+        assertEquals(2, constraint.getChilds().size());
+
+        // the queries themselves are not changed
+        assertEquals(3, ((CompositeConstraint) query2.getConstraint()).getChilds().size());
+    }
+
+    @Test
+    public void testNodes() {
+        BasicSearchQuery query1 = new BasicSearchQuery();
+        BasicStep step1 = query1.addStep(images.getName());
+        StepField number1 = query1.addField(step1, images.getField("number"));
+        query1.setConstraint(new BasicFieldValueInConstraint(number1).addValue(2).addValue(1));
+
+        BasicSearchQuery query2 = new BasicSearchQuery();
+        BasicStep step2 = query2.addStep(images.getName());
+        query2.addField(step2, images.getField("number"));
+        step2.addNode(1);
+        step2.addNode(2);
+
+        BasicSearchQuery canonical1 = QueryNormalizer.canonical(query1);
+        assertNull(canonical1.getConstraint());
+        assertEquals(new TreeSet<Integer>(Arrays.asList(1, 2)), canonical1.getSteps().get(0).getNodes());
+        assertEquals(canonical1, QueryNormalizer.canonical(query2));
+    }
+
+    @Test
+    public void testHitRate() {
+        QueryNormalizer normalizer = new QueryNormalizer(10);
+        for (int i = 0; i < 2; i++) {
+            BasicSearchQuery query = new BasicSearchQuery();
+            BasicStep step = query.addStep(images.getName());
+            StepField title = query.addField(step, images.getField("title"));
+            StepField width = query.addField(step, images.getField("width"));
+            BasicFieldValueConstraint c1 = new BasicFieldValueConstraint(title, "foo");
+            BasicFieldValueConstraint c2 = compare(width, FieldCompareConstraint.GREATER, 10);
+            query.setConstraint(i == 0 ?
+                                new BasicCompositeConstraint(CompositeConstraint.LOGICAL_OR, c1, c2) :
+                                new BasicCompositeConstraint(CompositeConstraint.LOGICAL_OR, c2, c1));
+            normalizer.normalize(query);
+        }
+        assertEquals(2, normalizer.getCount());
+        assertEquals(0.0, normalizer.getHitRate(), 0.0);
+        assertEquals(0.5, normalizer.getCanonicalHitRate(), 0.0);
+    }
+
+}
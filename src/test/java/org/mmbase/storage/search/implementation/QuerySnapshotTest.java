@@ -0,0 +1,91 @@
+package org.mmbase.storage.search.implementation;
+
+import org.junit.*;
+import java.util.*;
+
+import org.mmbase.bridge.*;
+import org.mmbase.bridge.mock.*;
+import org.mmbase.storage.search.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit tests.
+ *
+ * @author Michiel Meeuwissen
+ * @version $Id$
+ */
+public class QuerySnapshotTest  {
+
+    private NodeManager images = null;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        MockCloudContext.getInstance().addCore();
+        MockCloudContext.getInstance().addNodeManagers(MockBuilderReader.getBuilderLoader().getChildResourceLoader("resources"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Cloud cloud = MockCloudContext.getInstance().getCloud("mmbase");
+        images = cloud.getNodeManager("images");
+    }
+
+    private BasicSearchQuery createQuery(String title, Object... descriptions) {
+        BasicSearchQuery query = new BasicSearchQuery();
+        BasicStep step = query.addStep(images.getName());
+        StepField field = query.addField(step, images.getField("title"));
+        query.addField(step, images.getField("description"));
+        BasicCompositeConstraint composite = new BasicCompositeConstraint(CompositeConstraint.LOGICAL_OR);
+        composite.addChild(new BasicFieldValueConstraint(field, title));
+        BasicFieldValueInConstraint in = new BasicFieldValueInConstraint(query.getFields().get(1));
+        for (Object description : descriptions) {
+            in.addValue(description);
+        }
+        composite.addChild(in);
+        query.setConstraint(composite);
+        query.addSortOrder(field);
+        return query;
+    }
+
+    @Test
+    public void testOf() {
+        BasicSearchQuery query1 = createQuery("foo", "a", "b");
+        BasicSearchQuery query2 = createQuery("foo", "a", "b");
+        QuerySnapshot snapshot1 = QuerySnapshot.of(query1);
+        assertSame(snapshot1, QuerySnapshot.of(query2));
+        assertEquals(snapshot1.hashCode(), QuerySnapshot.of(query2).hashCode());
+
+        BasicSearchQuery query3 = createQuery("bar", "a", "b");
+        QuerySnapshot snapshot3 = QuerySnapshot.of(query3);
+        assertNotSame(snapshot1, snapshot3);
+        assertFalse(snapshot1.equals(snapshot3));
+        // the parts which are the same are shared
+        assertSame(QuerySnapshot.of(query1.getSteps().get(0)), QuerySnapshot.of(query3.getSteps().get(0)));
+        assertSame(QuerySnapshot.of(((CompositeConstraint) query1.getConstraint()).getChilds().get(1)),
+                   QuerySnapshot.of(((CompositeConstraint) query3.getConstraint()).getChilds().get(1)));
+    }
+
+    @Test
+    public void testGetSnapshot() {
+        BasicSearchQuery query1 = createQuery("foo", "a", "b");
+        BasicSearchQuery query2 = createQuery("foo", "a", "b");
+        query1.markUsed();
+        query2.markUsed();
+        assertSame(query1.getSnapshot(), query2.getSnapshot());
+        assertEquals(query1, query2);
+        assertEquals(query1.hashCode(), query2.hashCode());
+
+        BasicSearchQuery query3 = createQuery("foo", "a", "c");
+        query3.markUsed();
+        assertNotSame(query1.getSnapshot(), query3.getSnapshot());
+        assertFalse(query1.equals(query3));
+
+        // a modifiable query gets a new snapshot after a change
+        BasicSearchQuery query4 = createQuery("foo", "a", "b");
+        assertSame(query1.getSnapshot(), query4.getSnapshot());
+        query4.setMaxNumber(10);
+        assertNotSame(query1.getSnapshot(), query4.getSnapshot());
+    }
+
+}
@@ -91,6 +91,7 @@ public class ConstraintParserTest  {
     }
 
     /** Test of tokenize method, of class org.mmbase.storage.search.legacy.ConstraintParser. */
+    @Test
     public void testTokenize() {
         List<String> tokens = ConstraintParser.tokenize("qwe '' and '123''456' or \"\"\"789\"");
         assertTrue(tokens.toString(), tokens.equals(
@@ -101,6 +102,14 @@ public class ConstraintParserTest  {
         assertTrue(tokens.toString(), tokens.equals(
             Arrays.asList("'", "'", "'", "and", "'", "\"", "'", "and", "'", "\"\"", "'",
                     "and", "'", "''", "'")));
+
+        tokens = ConstraintParser.tokenize("step1.number>=10 AND LOWER(step1.title) IN ('a', 'b c')");
+        assertEquals(Arrays.asList("step1.number", ">", "=", "10", "AND", "LOWER", "(", "step1.title", ")",
+                                   "IN", "(", "'", "a", "'", ",", "'", "b c", "'", ")"), tokens);
+        try {
+            ConstraintParser.tokenize("step1.title = 'abc");
+            fail("Unterminated string, must throw IllegalArgumentException.");
+        } catch (IllegalArgumentException e) {}
     }
 
 
@@ -568,6 +577,73 @@ public class ConstraintParserTest  {
         assertTrue(constraint.isInverse());
     }
 
+    @Test
+    public void testToConstraintCached() {
+        query.addStep(images.getName()).setAlias("step1");
+        String con = "step1.title = 'abc def' OR step1.number IN (1, 2)";
+        Constraint constraint1 = instance.toConstraint(con);
+
+        BasicSearchQuery query2 = new BasicSearchQuery();
+        Step step2 = query2.addStep(images.getName()).setAlias("step1");
+        int size = ConstraintParser.getCacheSize();
+        Constraint constraint2 = new ConstraintParser(ConstraintParser.BRIDGE, query2).toConstraint(con);
+        assertEquals(size, ConstraintParser.getCacheSize());
+        assertEquals(constraint1, constraint2);
+        assertNotSame(constraint1, constraint2);
+        for (Constraint child : ((CompositeConstraint) constraint2).getChilds()) {
+            assertSame(step2, ((FieldConstraint) child).getField().getStep());
+        }
+
+        // other alias, is parsed again
+        BasicSearchQuery query3 = new BasicSearchQuery();
+        query3.addStep(images.getName()).setAlias("step3");
+        Constraint constraint3 = new ConstraintParser(ConstraintParser.BRIDGE, query3).toConstraint(con);
+        assertTrue(constraint3 instanceof LegacyConstraint);
+    }
+
+    @Test
+    public void testToConstraintCacheEviction() {
+        query.addStep(images.getName()).setAlias("step1");
+        ConstraintParser.setMaxCacheSize(2);
+        try {
+            Constraint a = instance.toConstraint("step1.number = 1");
+            instance.toConstraint("step1.number = 2");
+            instance.toConstraint("step1.number = 1");
+            instance.toConstraint("step1.number = 3");
+            assertEquals(2, ConstraintParser.getCacheSize());
+
+            // the least recently used one was evicted, the others are still cached
+            int size = ConstraintParser.getCacheSize();
+            assertEquals(a, instance.toConstraint("step1.number = 1"));
+            instance.toConstraint("step1.number = 3");
+            assertEquals(size, ConstraintParser.getCacheSize());
+        } finally {
+            ConstraintParser.setMaxCacheSize(1000);
+        }
+    }
+
+    @Test
+    public void testToConstraintCachePerCloudContext() {
+        // two cloud contexts, with equally named node managers, but with different fields
+        MockCloudContext contextA = new MockCloudContext();
+        MockCloudContext contextB = new MockCloudContext();
+        Map<String, org.mmbase.datatypes.DataType> map = new HashMap<String, org.mmbase.datatypes.DataType>();
+        map.put("number", org.mmbase.datatypes.Constants.DATATYPE_INTEGER);
+        map.put("title", org.mmbase.datatypes.Constants.DATATYPE_STRING);
+        contextA.addNodeManager("aa", map);
+        map.put("title", org.mmbase.datatypes.Constants.DATATYPE_INTEGER);
+        contextB.addNodeManager("aa", map);
+
+        NodeQuery queryA = contextA.getCloud("mmbase").getNodeManager("aa").createQuery();
+        NodeQuery queryB = contextB.getCloud("mmbase").getNodeManager("aa").createQuery();
+        int size = ConstraintParser.getCacheSize();
+        Constraint constraintA = new ConstraintParser(queryA).toConstraint("title = 1");
+        Constraint constraintB = new ConstraintParser(queryB).toConstraint("title = 1");
+        assertEquals(size + 2, ConstraintParser.getCacheSize());
+        assertEquals(Field.TYPE_STRING,  ((FieldConstraint) constraintA).getField().getType());
+        assertEquals(Field.TYPE_INTEGER, ((FieldConstraint) constraintB).getField().getType());
+    }
+
     @Test
     public void testUnsupported() {
         // Legacy constraint